@@ -0,0 +1,84 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+
+/**
+ * Synthetic annotate output, as sent by the server
+ */
+final class AnnotateStreams {
+
+  private static final String[] AUTHORS = {"julien", "henryju", "tor", "duarte", "a_very_long_name"};
+  private static final String[] DATES = {"21-Oct-14", "02-Jan-15", "30-Jun-09", "11-Nov-98"};
+
+  private AnnotateStreams() {
+    // only static methods
+  }
+
+  static List<String> lines(String filename, int count) {
+    List<String> lines = new ArrayList<>(count + 2);
+    lines.add("Annotations for " + filename);
+    lines.add("***************");
+    for (int i = 0; i < count; i++) {
+      String author = AUTHORS[i % AUTHORS.length];
+      String annotation = String.format("1.%-10d (%-8.8s %s): ", i % 97 + 1, author, DATES[(i / 7) % DATES.length]);
+      lines.add(annotation + "    private static final String FIELD_" + i + " = \"value: " + i + "\";");
+    }
+    return lines;
+  }
+
+  /**
+   * Each line is a single untagged message, like with the "M" response
+   */
+  static List<MessageEvent> untagged(List<String> lines) {
+    List<MessageEvent> events = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      events.add(new MessageEvent("", line, false));
+    }
+    return events;
+  }
+
+  /**
+   * Each line is made of several "MT" messages terminated by a newline one
+   */
+  static List<MessageEvent> tagged(List<String> lines) {
+    List<MessageEvent> events = new ArrayList<>(lines.size() * 3);
+    for (String line : lines) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        events.add(tagged("text " + line.substring(0, colon + 1)));
+        events.add(tagged("text " + line.substring(colon + 1)));
+      } else {
+        events.add(tagged("text " + line));
+      }
+      events.add(tagged("newline"));
+    }
+    return events;
+  }
+
+  private static MessageEvent tagged(String message) {
+    MessageEvent event = new MessageEvent("", message, false);
+    event.setTagged(true);
+    return event;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.netbeans.lib.cvsclient.command.GlobalOptions;
+import org.netbeans.lib.cvsclient.event.CVSListener;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.internal.DefaultTempFolder;
+
+/**
+ * End to end {@link CvsBlameCommand#blame}, the server being replaced by an executor replaying synthetic annotate output
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CvsBlameCommandBenchmark {
+
+  @Param({"200"})
+  public int files;
+
+  @Param({"1000"})
+  public int linesPerFile;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  @Param({"1", "10"})
+  public int batchSize;
+
+  private File baseDir;
+  private CvsBlameCommand blameCommand;
+  private BlameInput input;
+
+  @Setup
+  public void prepare() throws IOException {
+    baseDir = Files.createTempDirectory("cvs-benchmark").toFile();
+    FileUtils.write(new File(baseDir, "CVS/Root"), ":pserver:localhost:/cvsroot", "UTF-8");
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir).setWorkDir(new File(baseDir, "work").toPath());
+    List<InputFile> inputFiles = new ArrayList<>();
+    Map<String, List<String>> outputs = new HashMap<>();
+    for (int i = 0; i < files; i++) {
+      String relativePath = "src/dir" + (i % 10) + "/File" + i + ".java";
+      InputFile inputFile = new TestInputFileBuilder("foo", relativePath)
+        .setModuleBaseDir(baseDir.toPath())
+        .setLines(linesPerFile)
+        .build();
+      fs.add(inputFile);
+      inputFiles.add(inputFile);
+      outputs.put(relativePath, AnnotateStreams.lines(relativePath, linesPerFile));
+    }
+    input = new BlameInput() {
+      @Override
+      public FileSystem fileSystem() {
+        return fs;
+      }
+
+      @Override
+      public Iterable<InputFile> filesToBlame() {
+        return inputFiles;
+      }
+    };
+
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.BLAME_THREADS_PROP_KEY, threads);
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, batchSize);
+    CvsConfiguration config = new CvsConfiguration(settings.asConfig());
+    CvsCommandExecutor replayingExecutor = new CvsCommandExecutor(config) {
+      @Override
+      public boolean processCommand(String command, GlobalOptions globalOptions, String[] args, File workingDir, CVSListener listener) {
+        for (String arg : args) {
+          List<String> output = outputs.get(arg);
+          if (output != null) {
+            for (String line : output) {
+              listener.messageSent(new MessageEvent("", line, false));
+            }
+          }
+        }
+        return true;
+      }
+    };
+    blameCommand = new CvsBlameCommand(config, new DefaultTempFolder(new File(baseDir, "tmp")), replayingExecutor);
+  }
+
+  @TearDown(Level.Trial)
+  public void cleanUp() {
+    FileUtils.deleteQuietly(baseDir);
+  }
+
+  @Benchmark
+  public int blame() {
+    AtomicInteger blamedLines = new AtomicInteger();
+    BlameOutput output = (inputFile, lines) -> blamedLines.addAndGet(lines.size());
+    blameCommand.blame(input, output);
+    return blamedLines.get();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Throughput of {@link CvsBlameConsumer#messageSent} on the annotate output of a single file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CvsBlameConsumerBenchmark {
+
+  @Param({"1000", "50000", "500000"})
+  public int lines;
+
+  @Param({"false", "true"})
+  public boolean tagged;
+
+  private List<MessageEvent> events;
+
+  @Setup
+  public void prepare() {
+    List<String> output = AnnotateStreams.lines("src/Generated.java", lines);
+    events = tagged ? AnnotateStreams.tagged(output) : AnnotateStreams.untagged(output);
+  }
+
+  @Benchmark
+  public List<BlameLine> consume() {
+    CvsBlameConsumer consumer = new CvsBlameConsumer("src/Generated.java");
+    for (MessageEvent event : events) {
+      consumer.messageSent(event);
+    }
+    return consumer.getLines();
+  }
+}
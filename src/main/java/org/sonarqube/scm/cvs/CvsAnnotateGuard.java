@@ -0,0 +1,213 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.netbeans.lib.cvsclient.command.CommandException;
+import org.netbeans.lib.cvsclient.event.CVSListener;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Bounds the time of annotate commands, and of the diff and log commands of incremental blame, so that a single hung command (locked directory, stalled NFS on the server...)
+ * doesn't block the whole analysis:
+ * <ul>
+ * <li>a command taking more than the deadline of its files is aborted by closing its connection, and reported as failed</li>
+ * <li>when hedging is enabled, a command taking more than the 95th percentile of the latencies seen so far is sent again
+ * on another connection, and the first response wins</li>
+ * </ul>
+ * Thread safe.
+ */
+class CvsAnnotateGuard implements AutoCloseable {
+
+  private static final Logger LOG = Loggers.get(CvsAnnotateGuard.class);
+
+  /**
+   * Latencies seen before hedging, so that the percentile is meaningful
+   */
+  static final int MIN_SAMPLES = 20;
+  private static final int MAX_SAMPLES = 1000;
+  /**
+   * Don't hedge commands that are fast anyway
+   */
+  static final long MIN_HEDGE_DELAY_MS = 100;
+
+  @FunctionalInterface
+  interface Command<T extends CVSListener> {
+    T run(T consumer) throws CommandException;
+  }
+
+  private final CvsCommandExecutor commandExecutor;
+  private final CvsMetrics metrics;
+  private final long deadlinePerFileMs;
+  private final boolean hedge;
+
+  /**
+   * Latency per file of the last commands, in a ring
+   */
+  private final long[] samples = new long[MAX_SAMPLES];
+  private int sampleCount = 0;
+
+  @Nullable
+  private final ScheduledExecutorService timer;
+  @Nullable
+  private final ExecutorService hedgeExecutor;
+
+  CvsAnnotateGuard(CvsCommandExecutor commandExecutor, CvsMetrics metrics, long deadlinePerFileMs, boolean hedge) {
+    this.commandExecutor = commandExecutor;
+    this.metrics = metrics;
+    this.deadlinePerFileMs = deadlinePerFileMs;
+    this.hedge = hedge;
+    if (deadlinePerFileMs > 0 || hedge) {
+      AtomicInteger threadCount = new AtomicInteger();
+      this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "cvs-blame-watchdog"));
+      this.hedgeExecutor = hedge ? Executors.newCachedThreadPool(r -> daemon(r, "cvs-blame-hedge-" + threadCount.incrementAndGet())) : null;
+    } else {
+      this.timer = null;
+      this.hedgeExecutor = null;
+    }
+  }
+
+  private static Thread daemon(Runnable r, String name) {
+    Thread thread = new Thread(r, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * Run the command on the calling thread, within the deadline of the files
+   *
+   * @throws CommandException when the command failed or exceeded its deadline
+   */
+  <T extends CVSListener> T execute(int fileCount, Supplier<T> consumerFactory, Command<T> command) throws CommandException {
+    if (timer == null) {
+      return command.run(consumerFactory.get());
+    }
+    long start = System.nanoTime();
+    T primary = consumerFactory.get();
+    AtomicBoolean timedOut = new AtomicBoolean();
+    AtomicReference<T> hedgeResult = new AtomicReference<>();
+    AtomicReference<T> hedgeConsumer = new AtomicReference<>();
+    ScheduledFuture<?> deadline = null;
+    if (deadlinePerFileMs > 0) {
+      deadline = timer.schedule(() -> {
+        timedOut.set(true);
+        abort(primary);
+        abort(hedgeConsumer.get());
+      }, deadlinePerFileMs * fileCount, TimeUnit.MILLISECONDS);
+    }
+    ScheduledFuture<?> hedgeTrigger = scheduleHedge(fileCount, consumerFactory, command, primary, hedgeResult, hedgeConsumer);
+    try {
+      T result = command.run(primary);
+      record(System.nanoTime() - start, fileCount);
+      return result;
+    } catch (CommandException | RuntimeException e) {
+      T won = hedgeResult.get();
+      if (won != null) {
+        LOG.debug("Hedged command of " + fileCount + " file(s) completed first");
+        record(System.nanoTime() - start, fileCount);
+        return won;
+      }
+      if (timedOut.get()) {
+        throw new CommandException("Command of " + fileCount + " file(s) exceeded its deadline of " + deadlinePerFileMs * fileCount + " ms",
+          "Deadline exceeded");
+      }
+      throw e;
+    } finally {
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      if (hedgeTrigger != null) {
+        hedgeTrigger.cancel(false);
+      }
+      if (hedgeResult.get() == null) {
+        abort(hedgeConsumer.get());
+      }
+    }
+  }
+
+  @CheckForNull
+  private <T extends CVSListener> ScheduledFuture<?> scheduleHedge(int fileCount, Supplier<T> consumerFactory, Command<T> command, T primary,
+    AtomicReference<T> hedgeResult, AtomicReference<T> hedgeConsumer) {
+    Long p95 = hedge ? percentile95() : null;
+    if (p95 == null) {
+      return null;
+    }
+    return timer.schedule(() -> {
+      metrics.hedged();
+      T consumer = consumerFactory.get();
+      hedgeConsumer.set(consumer);
+      hedgeExecutor.execute(() -> {
+        try {
+          hedgeResult.set(command.run(consumer));
+          // Unblock the thread waiting for the first request
+          abort(primary);
+        } catch (CommandException | RuntimeException e) {
+          LOG.debug("Hedged command failed: " + e.getMessage());
+        }
+      });
+    }, Math.max(MIN_HEDGE_DELAY_MS, p95 * fileCount), TimeUnit.MILLISECONDS);
+  }
+
+  private void abort(@Nullable CVSListener listener) {
+    if (listener != null) {
+      commandExecutor.abort(listener);
+    }
+  }
+
+  private synchronized void record(long nanos, int fileCount) {
+    samples[sampleCount % MAX_SAMPLES] = TimeUnit.NANOSECONDS.toMillis(nanos) / Math.max(1, fileCount);
+    sampleCount++;
+  }
+
+  /**
+   * @return latency per file, or null when not enough commands completed yet
+   */
+  @CheckForNull
+  synchronized Long percentile95() {
+    if (sampleCount < MIN_SAMPLES) {
+      return null;
+    }
+    long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, MAX_SAMPLES));
+    Arrays.sort(sorted);
+    return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+  }
+
+  @Override
+  public void close() {
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+  }
+}
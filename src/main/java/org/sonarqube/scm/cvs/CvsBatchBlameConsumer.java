@@ -0,0 +1,86 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Consumes the output of an annotate command covering several files. The server
+ * streams one section per file, each one starting with an "Annotations for &lt;file&gt;" header.
+ */
+public class CvsBatchBlameConsumer extends CvsBlameConsumer {
+
+  private static final String HEADER = "Annotations for ";
+
+  private final Map<String, CvsCompactBlame> linesByFile = new LinkedHashMap<>();
+  private final Set<String> reported = new HashSet<>();
+
+  private CvsCompactBlame currentLines;
+
+  public CvsBatchBlameConsumer(Collection<String> filenames) {
+    this(filenames, new CvsBlameDictionary());
+  }
+
+  CvsBatchBlameConsumer(Collection<String> filenames, CvsBlameDictionary dictionary) {
+    super("", dictionary);
+    for (String filename : filenames) {
+      linesByFile.put(filename, new CvsCompactBlame());
+    }
+  }
+
+  @Override
+  void consume(boolean isError, String message) {
+    if (message.startsWith(HEADER)) {
+      String filename = message.substring(HEADER.length()).trim();
+      setFilename(filename);
+      // Server reports paths relative to the directory where the command is executed, which is the module base dir
+      currentLines = linesByFile.get(filename);
+      if (currentLines != null) {
+        reported.add(filename);
+      }
+    }
+    super.consume(isError, message);
+  }
+
+  /**
+   * Lines of files that were not requested are ignored
+   */
+  @Override
+  @CheckForNull
+  protected CvsCompactBlame currentLines() {
+    return currentLines;
+  }
+
+  /**
+   * @return null when the output has no section for the file
+   */
+  @CheckForNull
+  public List<BlameLine> getLines(String filename) {
+    return reported.contains(filename) ? linesByFile.get(filename) : null;
+  }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.netbeans.lib.cvsclient.admin.Entry;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blame results persisted between analyses, one file per entry.
+ * <p>
+ * An entry is identified by the CVSRoot, the path of the file in the repository, the revision checked out
+ * (as recorded in CVS/Entries) and the requested revision/tag. The annotations of a given revision never
+ * change, so entries are never invalidated: the least recently used ones are evicted when the cache grows
+ * over its maximum size.
+ * <p>
+ * Thread safe.
+ */
+class CvsBlameCache {
+
+  private static final Logger LOG = Loggers.get(CvsBlameCache.class);
+
+  /**
+   * Since version 2, a line per run of lines with the same annotation, see {@link CvsCompactBlame}
+   */
+  private static final String FORMAT_VERSION = "2";
+  private static final char SEPARATOR = '\t';
+  private static final String SNAPSHOTS_DIR = "snapshots";
+  private static final int KEY_LENGTH = 40;
+
+  private final File dir;
+  private final long maxSize;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  CvsBlameCache(File dir, long maxSize) {
+    this.dir = dir;
+    this.maxSize = maxSize;
+  }
+
+  @CheckForNull
+  static CvsBlameCache create(CvsConfiguration config) {
+    if (!config.blameCacheEnabled()) {
+      return null;
+    }
+    File dir = config.blameCacheDir();
+    LOG.debug("Blame cache: " + dir.getAbsolutePath());
+    return new CvsBlameCache(dir, config.blameCacheMaxSize() * 1024L * 1024L);
+  }
+
+  /**
+   * @return null when the file can't be cached, because it is not under CVS control or not committed yet
+   */
+  @CheckForNull
+  static String key(String cvsRoot, CvsWorkingCopy workingCopy, File workingFile, @Nullable String tag) {
+    String repositoryPath = workingCopy.repositoryPath(workingFile);
+    Entry entry = workingCopy.entry(workingFile);
+    if (repositoryPath == null || entry == null || entry.isNewUserFile() || entry.isUserFileToBeRemoved()) {
+      return null;
+    }
+    return key(cvsRoot, repositoryPath, entry.getRevision(), tag);
+  }
+
+  static String key(String cvsRoot, String repositoryPath, String revision, @Nullable String tag) {
+    String id = cvsRoot + '\n' + repositoryPath + '\n' + revision + '\n' + (tag != null ? tag : "");
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @CheckForNull
+  List<BlameLine> get(String key) {
+    File file = file(key);
+    if (!file.isFile()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    CvsCompactBlame lines = new CvsCompactBlame();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      if (!FORMAT_VERSION.equals(reader.readLine())) {
+        misses.incrementAndGet();
+        return null;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        parseRun(line, lines);
+      }
+    } catch (IOException | RuntimeException e) {
+      // Corrupted entries are recomputed and overwritten
+      LOG.debug("Ignoring invalid blame cache entry " + file.getAbsolutePath() + ": " + e.getMessage());
+      misses.incrementAndGet();
+      return null;
+    }
+    // Last modification time is the last access time used to evict entries
+    file.setLastModified(System.currentTimeMillis());
+    hits.incrementAndGet();
+    return lines;
+  }
+
+  void put(String key, List<BlameLine> lines) {
+    File file = file(key);
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      // Written aside then moved, so that concurrent analyses never read a partial entry
+      Path tmp = Files.createTempFile(file.getParentFile().toPath(), key, ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        writer.write(FORMAT_VERSION);
+        writer.newLine();
+        CvsCompactBlame runs = CvsCompactBlame.of(lines);
+        for (int run = 0; run < runs.runCount(); run++) {
+          BlameLine line = runs.runAnnotation(run);
+          writer.write(Integer.toString(runs.runLength(run)) + SEPARATOR + line.revision() + SEPARATOR + line.date().getTime() + SEPARATOR
+            + (line.author() != null ? line.author() : ""));
+          writer.newLine();
+        }
+      }
+      Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // The cache is an optimization, blame must not fail because of it
+      LOG.warn("Unable to write blame cache entry " + file.getAbsolutePath() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Delete least recently used entries until the size of the cache is under its maximum. Other files of the directory, like
+   * the snapshots or the compression choices, are neither counted nor deleted.
+   */
+  void evict() {
+    if (!dir.isDirectory()) {
+      return;
+    }
+    List<File> entries;
+    try (Stream<Path> paths = Files.walk(dir.toPath(), 2)) {
+      entries = paths.map(Path::toFile)
+        .filter(f -> f.isFile() && isEntry(f))
+        .collect(Collectors.toList());
+    } catch (IOException e) {
+      LOG.warn("Unable to list blame cache " + dir.getAbsolutePath() + ": " + e.getMessage());
+      return;
+    }
+    long size = entries.stream().mapToLong(File::length).sum();
+    if (size <= maxSize) {
+      return;
+    }
+    entries.sort(Comparator.comparingLong(File::lastModified));
+    int evicted = 0;
+    for (File entry : entries) {
+      if (size <= maxSize) {
+        break;
+      }
+      long length = entry.length();
+      if (entry.delete()) {
+        size -= length;
+        evicted++;
+      }
+    }
+    LOG.debug("Evicted " + evicted + " entries from the blame cache");
+  }
+
+  /**
+   * @return file of the {@link CvsEntriesSnapshot} of a working copy
+   */
+  File snapshotFile(File baseDir, String cvsRoot, @Nullable String tag) {
+    return new File(new File(dir, SNAPSHOTS_DIR), key(cvsRoot, baseDir.getAbsolutePath(), "", tag));
+  }
+
+  int hits() {
+    return hits.get();
+  }
+
+  int misses() {
+    return misses.get();
+  }
+
+  /**
+   * @return true when the file is at the place of the entry of its name, see {@link #file(String)}
+   */
+  private boolean isEntry(File file) {
+    String name = file.getName();
+    if (name.length() != KEY_LENGTH || !file.getParentFile().getParentFile().equals(dir)) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (Character.digit(name.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return name.startsWith(file.getParentFile().getName());
+  }
+
+  private File file(String key) {
+    // Entries are spread in sub directories to keep directories small
+    return new File(new File(dir, key.substring(0, 2)), key);
+  }
+
+  /**
+   * A run is "line count, revision, date, author" separated by tabs
+   */
+  private static void parseRun(String line, CvsCompactBlame lines) {
+    int first = line.indexOf(SEPARATOR);
+    int second = line.indexOf(SEPARATOR, first + 1);
+    int third = second < 0 ? -1 : line.indexOf(SEPARATOR, second + 1);
+    if (first < 0 || second < 0 || third < 0) {
+      throw new IllegalStateException("Invalid line: " + line);
+    }
+    String author = line.substring(third + 1);
+    lines.add(Integer.parseInt(line.substring(0, first)), line.substring(first + 1, second),
+      author.isEmpty() ? null : author, new Date(Long.parseLong(line.substring(second + 1, third))));
+  }
+}
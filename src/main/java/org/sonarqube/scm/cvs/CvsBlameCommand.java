@@ -22,9 +22,36 @@ package org.sonarqube.scm.cvs;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import org.apache.commons.io.FileUtils;
+import org.netbeans.lib.cvsclient.CVSRoot;
+import org.netbeans.lib.cvsclient.admin.Entry;
 import org.netbeans.lib.cvsclient.command.CommandException;
 import org.netbeans.lib.cvsclient.command.GlobalOptions;
 import org.netbeans.lib.cvsclient.connection.AuthenticationException;
@@ -39,52 +66,836 @@ import org.sonar.api.utils.log.Loggers;
 public class CvsBlameCommand extends BlameCommand {
 
   private static final String ANNOTATE = "annotate";
+  private static final String RANNOTATE = "rannotate";
+  private static final String DIFF = "diff";
+  private static final String LOG_COMMAND = "log";
+  private static final String RLOG = "rlog";
+
+  /**
+   * Wait before the first retry of a failed command, doubled for each next one
+   */
+  static final long RETRY_BACKOFF_MS = 500;
+  /**
+   * Average size of a line in RCS files, which hold all the revisions of a file: to estimate the cost of its blame in lines
+   */
+  private static final int RCS_BYTES_PER_LINE = 40;
 
   private static final Logger LOG = Loggers.get(CvsBlameCommand.class);
 
   private final CvsConfiguration config;
   private final TempFolder tempFolder;
   private final CvsCommandExecutor commandExecutor;
+  private final CvsMetrics metrics;
 
-  public CvsBlameCommand(CvsConfiguration config, TempFolder tempFolder, CvsCommandExecutor commandExecutor) {
+  public CvsBlameCommand(CvsConfiguration config, TempFolder tempFolder, CvsCommandExecutor commandExecutor, CvsMetrics metrics) {
     this.config = config;
     this.tempFolder = tempFolder;
     this.commandExecutor = commandExecutor;
+    this.metrics = metrics;
+  }
+
+  CvsBlameCommand(CvsConfiguration config, TempFolder tempFolder, CvsCommandExecutor commandExecutor) {
+    this(config, tempFolder, commandExecutor, new CvsMetrics());
   }
 
   @Override
   public void blame(BlameInput input, BlameOutput output) {
+    long start = System.nanoTime();
+    metrics.reset();
     FileSystem fs = input.fileSystem();
     LOG.debug("Working directory: " + fs.baseDir().getAbsolutePath());
     GlobalOptions globalOptions = buildGlobalOptions(fs.baseDir());
 
-    for (InputFile inputFile : input.filesToBlame()) {
+    CvsWorkingCopy workingCopy = new CvsWorkingCopy();
+    try (CvsAnnotateGuard guard = new CvsAnnotateGuard(commandExecutor, metrics, TimeUnit.SECONDS.toMillis(config.blameTimeout()), config.blameHedge());
+      CvsBlamePipeline pipeline = config.blamePipeline() ? new CvsBlamePipeline() : null) {
+      // The netbeans client sends the entries of the local directory with rannotate too, even if the server ignores them
+      File remoteDir = config.blameModule() || config.blameRannotate() ? tempFolder.newDir("cvs-rannotate") : null;
+      BlameContext context = new BlameContext(globalOptions, fs.baseDir(), remoteDir, workingCopy,
+        RcsBlameEngine.create(config, globalOptions.getCVSRoot(), workingCopy), CvsBlameCache.create(config), guard, pipeline);
+      // Blame is kept compact until it is handed to the scanner
+      BlameOutput expandingOutput = (inputFile, lines) -> output.blameResult(inputFile,
+        lines instanceof CvsCompactBlame ? ((CvsCompactBlame) lines).expand() : lines);
+      blame(input, pipeline != null ? pipeline.output(expandingOutput) : expandingOutput, context);
+    }
+    if (metrics.skippedCount() > 0) {
+      LOG.warn(metrics.skippedCount() + " file(s) skipped because their blame failed");
+    }
+    metrics.report(System.nanoTime() - start, fs.workDir());
+  }
 
-      List<String> args = buildAnnotateArguments(inputFile);
+  private void blame(BlameInput input, BlameOutput output, BlameContext context) {
+    FileSystem fs = input.fileSystem();
+    GlobalOptions globalOptions = context.globalOptions;
+    Iterable<InputFile> filesToBlame = annotatable(input.filesToBlame(), context);
+    CvsEntriesSnapshot snapshot = null;
+    if (context.cache != null) {
+      snapshot = CvsEntriesSnapshot.load(context.cache.snapshotFile(fs.baseDir(), globalOptions.getCVSRoot(), config.revision()));
+      // Unchanged files are set aside before batching, so that batches only contain files to annotate
+      filesToBlame = blameUnchanged(filesToBlame, context, snapshot, output);
+    }
+    if (config.blameModule()) {
+      filesToBlame = blameModule(filesToBlame, context, output);
+    }
+    List<List<InputFile>> batches = batches(filesToBlame, config.blameBatchSize());
+    int threads = config.blameThreads();
+    if (threads > 1) {
+      blameInParallel(batches, context, output, threads);
+    } else {
+      for (List<InputFile> batch : batches) {
+        blame(batch, context, output);
+      }
+    }
+    if (context.blamedFromDiffs.get() > 0) {
+      LOG.info(context.blamedFromDiffs.get() + " file(s) blamed from the differences with their previous revision");
+    }
+    if (snapshot != null) {
+      snapshot.save();
+      context.cache.evict();
+    }
+  }
 
-      CvsBlameConsumer consumer = new CvsBlameConsumer(inputFile.relativePath());
-      try {
-        boolean isSuccess = commandExecutor.processCommand(ANNOTATE, globalOptions, args.toArray(new String[args.size()]), fs.baseDir(), consumer);
-        if (!isSuccess) {
-          throw new IllegalStateException("The CVS annotate command [" + commandToString(globalOptions, args) + "] failed.\n\nStdout:\n"
-            + consumer.getStdout() + "\n\nStderr:\n"
-            + consumer.getStderr());
+  /**
+   * Binary files (checked in with -kb) have no meaningful blame, and annotating files over the line limit is too costly:
+   * both are left without blame before any command is sent.
+   *
+   * @return files to blame
+   */
+  private List<InputFile> annotatable(Iterable<InputFile> filesToBlame, BlameContext context) {
+    int maxLines = config.blameMaxLines();
+    List<InputFile> result = new ArrayList<>();
+    int binary = 0;
+    int tooLarge = 0;
+    for (InputFile inputFile : filesToBlame) {
+      Entry entry = context.workingCopy.entry(inputFile.file());
+      if (entry != null && entry.isBinary()) {
+        LOG.debug("Skipping blame of binary file " + inputFile.relativePath());
+        binary++;
+      } else if (maxLines > 0 && inputFile.lines() > maxLines) {
+        LOG.debug("Skipping blame of " + inputFile.relativePath() + ": " + inputFile.lines() + " lines");
+        tooLarge++;
+      } else {
+        result.add(inputFile);
+      }
+    }
+    if (binary > 0 || tooLarge > 0) {
+      LOG.info("Blame skipped for " + binary + " binary file(s) and " + tooLarge + " file(s) over " + maxLines + " lines");
+    }
+    return result;
+  }
+
+  /**
+   * State shared by all the batches of a blame execution
+   */
+  private static final class BlameContext {
+    private final GlobalOptions globalOptions;
+    private final File baseDir;
+    /**
+     * Empty directory where rannotate commands are executed
+     */
+    @Nullable
+    private final File remoteDir;
+    private final CvsWorkingCopy workingCopy;
+    @Nullable
+    private final RcsBlameEngine rcsEngine;
+    @Nullable
+    private final CvsBlameCache cache;
+    private final CvsAnnotateGuard guard;
+    @Nullable
+    private final CvsBlamePipeline pipeline;
+    private final CvsBlameDictionary dictionary = new CvsBlameDictionary();
+    /**
+     * Keys of the files to be stored in the cache once blamed
+     */
+    private final Map<InputFile, String> cacheKeys = new ConcurrentHashMap<>();
+    /**
+     * Revision of the previous analysis of the files updated since, whose blame may be found in the cache
+     */
+    private final Map<InputFile, String> previousRevisions = new ConcurrentHashMap<>();
+    private final AtomicInteger blamedFromDiffs = new AtomicInteger();
+    private volatile String rootRepository;
+
+    private BlameContext(GlobalOptions globalOptions, File baseDir, @Nullable File remoteDir, CvsWorkingCopy workingCopy,
+      @Nullable RcsBlameEngine rcsEngine, @Nullable CvsBlameCache cache, CvsAnnotateGuard guard, @Nullable CvsBlamePipeline pipeline) {
+      this.globalOptions = globalOptions;
+      this.baseDir = baseDir;
+      this.remoteDir = remoteDir;
+      this.workingCopy = workingCopy;
+      this.rcsEngine = rcsEngine;
+      this.cache = cache;
+      this.guard = guard;
+      this.pipeline = pipeline;
+    }
+
+    private <T extends CvsBlameConsumer> T pipelined(T consumer) {
+      if (pipeline != null) {
+        consumer.parseOn(pipeline);
+      }
+      return consumer;
+    }
+
+    /**
+     * @return path of the repository on the server, from the CVSRoot
+     */
+    private String rootRepository() {
+      if (rootRepository == null) {
+        rootRepository = CVSRoot.parse(globalOptions.getCVSRoot()).getRepository();
+      }
+      return rootRepository;
+    }
+  }
+
+  /**
+   * Files of a same directory are kept together so that the client only sends their
+   * directory once per annotate request.
+   */
+  static List<List<InputFile>> batches(Iterable<InputFile> filesToBlame, int batchSize) {
+    List<InputFile> files = new ArrayList<>();
+    filesToBlame.forEach(files::add);
+    List<List<InputFile>> batches = new ArrayList<>();
+    if (batchSize <= 1) {
+      files.forEach(f -> batches.add(Collections.singletonList(f)));
+      return batches;
+    }
+    files.sort(Comparator.comparing(CvsBlameCommand::directory).thenComparing(InputFile::relativePath));
+    for (int i = 0; i < files.size(); i += batchSize) {
+      batches.add(files.subList(i, Math.min(i + batchSize, files.size())));
+    }
+    return batches;
+  }
+
+  private static String directory(InputFile inputFile) {
+    String relativePath = inputFile.relativePath();
+    int lastSlash = relativePath.lastIndexOf('/');
+    return lastSlash < 0 ? "" : relativePath.substring(0, lastSlash);
+  }
+
+  /**
+   * Longest processing time first: the most costly batches are started first, then each thread takes the next one as soon as it is
+   * done, so that blame doesn't end with a single thread busy with a large file while the other ones are idle.
+   */
+  static List<List<InputFile>> largestFirst(List<List<InputFile>> batches, ToLongFunction<InputFile> cost) {
+    Map<List<InputFile>, Long> costs = new IdentityHashMap<>();
+    for (List<InputFile> batch : batches) {
+      costs.put(batch, batch.stream().mapToLong(cost).sum());
+    }
+    List<List<InputFile>> result = new ArrayList<>(batches);
+    result.sort(Comparator.comparing((List<InputFile> batch) -> costs.get(batch)).reversed());
+    return result;
+  }
+
+  /**
+   * @return estimated cost of the blame of the file, in lines
+   */
+  private static long estimatedCost(InputFile inputFile, BlameContext context) {
+    long cost = inputFile.lines();
+    File rcsFile = context.rcsEngine != null ? context.rcsEngine.rcsFile(inputFile.file()) : null;
+    if (rcsFile != null) {
+      // Rebuilding the annotated revision goes through all the revisions of the RCS file
+      cost = Math.max(cost, rcsFile.length() / RCS_BYTES_PER_LINE);
+    }
+    return cost;
+  }
+
+  private void blameInParallel(List<List<InputFile>> batches, BlameContext context, BlameOutput output, int threads) {
+    // No guarantee that the output provided by the scanner is thread safe
+    BlameOutput synchronizedOutput = (inputFile, lines) -> {
+      synchronized (output) {
+        output.blameResult(inputFile, lines);
+      }
+    };
+    ExecutorService executorService = config.blameVirtualThreads() ? virtualThreadExecutor() : null;
+    // A virtual thread per batch, the number of concurrent commands being limited by the permits
+    Semaphore permits = null;
+    if (executorService != null) {
+      LOG.debug("Executing blame on virtual threads, with at most " + threads + " concurrent commands");
+      // Fair, for batches to be executed in the order they are submitted
+      permits = new Semaphore(threads, true);
+    } else {
+      if (config.blameVirtualThreads()) {
+        LOG.info("Virtual threads are not supported by this Java runtime, blame is executed by " + threads + " threads");
+      } else {
+        LOG.debug("Executing blame with " + threads + " threads");
+      }
+      AtomicInteger threadCount = new AtomicInteger();
+      executorService = Executors.newFixedThreadPool(threads, r -> {
+        Thread thread = new Thread(r, "cvs-blame-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (List<InputFile> batch : largestFirst(batches, inputFile -> estimatedCost(inputFile, context))) {
+        Semaphore batchPermits = permits;
+        futures.add(executorService.submit(() -> blame(batch, context, synchronizedOutput, batchPermits)));
+      }
+      for (Future<?> future : futures) {
+        waitFor(future);
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  private void blame(List<InputFile> batch, BlameContext context, BlameOutput output, @Nullable Semaphore permits) {
+    if (permits == null) {
+      blame(batch, context, output);
+      return;
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting to annotate", e);
+    }
+    try {
+      blame(batch, context, output);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Virtual threads are only available from Java 21, while the plugin is compiled for Java 8
+   *
+   * @return an executor starting a virtual thread per task, or null when the runtime doesn't support them
+   */
+  @CheckForNull
+  static ExecutorService virtualThreadExecutor() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "cvs-blame-", 1L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Preview of Java 19 and 20 throws UnsupportedOperationException when not enabled
+      LOG.debug("Virtual threads not available: " + e);
+      return null;
+    }
+  }
+
+  private static void waitFor(Future<?> future) {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for blame", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private void blame(List<InputFile> batch, BlameContext context, BlameOutput output) {
+    BlameOutput cachingOutput = cachingOutput(context, output);
+    if (context.rcsEngine != null) {
+      batch = blameFromRcsFiles(batch, context, cachingOutput);
+    }
+    if (!context.previousRevisions.isEmpty()) {
+      batch = blameFromDiffs(batch, context, cachingOutput);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<InputFile> toAnnotate = batch;
+    skippingFailures(toAnnotate, () -> annotateBatch(toAnnotate, context, cachingOutput));
+  }
+
+  private void skippingFailures(List<InputFile> files, Runnable annotate) {
+    try {
+      annotate.run();
+    } catch (IllegalStateException e) {
+      if (!config.blameSkipFailures() || e.getCause() instanceof AuthenticationException) {
+        throw e;
+      }
+      String reason = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+      LOG.warn("Skipping blame of " + files.stream().map(InputFile::relativePath).collect(Collectors.joining(", ")) + ": " + reason);
+      metrics.skipped(files.size());
+    }
+  }
+
+  private static BlameOutput cachingOutput(BlameContext context, BlameOutput output) {
+    return (inputFile, lines) -> {
+      String key = context.cacheKeys.get(inputFile);
+      if (key != null) {
+        // Stored as reported by CVS, before any fix of the last line
+        context.cache.put(key, lines);
+      }
+      blameResult(inputFile, withLocalChanges(inputFile, lines, context), output);
+    };
+  }
+
+  /**
+   * Blame annotated along with the content of the lines is aligned with the working file, when it is modified
+   */
+  private static List<BlameLine> withLocalChanges(InputFile inputFile, List<BlameLine> lines, BlameContext context) {
+    List<String> contents = lines instanceof CvsCompactBlame ? ((CvsCompactBlame) lines).contents() : null;
+    if (contents == null || contents.size() != lines.size() || !context.workingCopy.locallyModified(inputFile.file())) {
+      return lines;
+    }
+    try {
+      return CvsLocalChanges.align(lines, contents, CvsLocalChanges.readLines(inputFile.file()), new Date(inputFile.file().lastModified()));
+    } catch (IOException e) {
+      LOG.warn("Unable to read " + inputFile.relativePath() + ", blame of its revision is reported without its local changes: " + e.getMessage());
+      return lines;
+    }
+  }
+
+  /**
+   * Content of the annotated lines is only kept when some files are modified, to align their blame with them
+   */
+  private boolean keepContents(Collection<InputFile> files, BlameContext context) {
+    return config.blameLocalChanges() && files.stream().anyMatch(inputFile -> context.workingCopy.locallyModified(inputFile.file()));
+  }
+
+  private static <T extends CvsBlameConsumer> T keepingContents(T consumer, boolean keepContents) {
+    if (keepContents) {
+      consumer.keepContents();
+    }
+    return consumer;
+  }
+
+  /**
+   * Annotate all the files of the module with a single recursive rannotate, whose output is streamed to the files as it is
+   * received. Not used when RCS files are reachable, since reading them is faster anyway.
+   * <p>
+   * The module is annotated at a single revision, the head or sonar.cvs.revision, which is found for each file with an rlog
+   * of the module: files whose entry is at another revision, like files out of date or on a branch, are annotated by batches.
+   *
+   * @return files missing from the output of the module or at another revision, to be annotated by batches
+   */
+  private List<InputFile> blameModule(Iterable<InputFile> filesToBlame, BlameContext context, BlameOutput output) {
+    List<InputFile> remaining = new ArrayList<>();
+    String module = context.workingCopy.repository(context.baseDir);
+    if (context.rcsEngine != null || module == null) {
+      filesToBlame.forEach(remaining::add);
+      if (module == null) {
+        LOG.warn("No CVS/Repository in " + context.baseDir.getAbsolutePath() + ", files are annotated one by one");
+      }
+      return remaining;
+    }
+    String modulePath = relativeToRoot(module, context.rootRepository());
+    List<InputFile> files = new ArrayList<>();
+    filesToBlame.forEach(files::add);
+    Map<String, String> annotatedRevisions = annotatedRevisions(modulePath, files.size(), context);
+    if (annotatedRevisions == null) {
+      return files;
+    }
+    Map<String, InputFile> filesByPath = new HashMap<>();
+    for (InputFile inputFile : files) {
+      String path = repositoryPath(inputFile, context);
+      String revision = committedRevision(context.workingCopy.entry(inputFile.file()));
+      if (path != null && revision != null && revision.equals(annotatedRevisions.get(path))) {
+        filesByPath.put(path, inputFile);
+      } else {
+        remaining.add(inputFile);
+      }
+    }
+    if (filesByPath.isEmpty()) {
+      return remaining;
+    }
+
+    long start = System.nanoTime();
+    Set<InputFile> blamed = ConcurrentHashMap.newKeySet();
+    List<String> args = buildRannotateArguments(config.revision(), Collections.singletonList(modulePath));
+    try {
+      CvsModuleBlameConsumer consumer = rannotate(args, filesByPath, blamed, context, cachingOutput(context, output));
+      LOG.info("Module " + module + " annotated in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: "
+        + blamed.size() + " file(s) blamed, " + consumer.discarded() + " other file(s) ignored");
+    } catch (IllegalStateException e) {
+      if (e.getCause() instanceof AuthenticationException) {
+        throw e;
+      }
+      String reason = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+      LOG.warn("Unable to annotate module " + module + ", remaining files are annotated one by one: " + reason);
+    }
+    for (InputFile inputFile : filesByPath.values()) {
+      if (!blamed.contains(inputFile)) {
+        remaining.add(inputFile);
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * @return revision annotated by a rannotate of the module, by path of the file relative to the root of the repository,
+   * null when rlog failed
+   */
+  @CheckForNull
+  private Map<String, String> annotatedRevisions(String modulePath, int fileCount, BlameContext context) {
+    List<String> args = config.revision() != null ? Arrays.asList("-N", "-r" + config.revision(), modulePath) : Arrays.asList("-h", "-N", modulePath);
+    try {
+      CvsIncrementalBlame.Output rlog = execute(RLOG, args, fileCount, context);
+      return rlogRevisions(rlog.stdout(), context.rootRepository(), config.revision() == null);
+    } catch (CommandException | IllegalStateException e) {
+      LOG.warn("Unable to find the revisions of module " + modulePath + ", files are annotated by batches: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Annotate files by their path in the repository, at the revision of their entry, so that the state of the working copy
+   * is not sent to the server.
+   *
+   * @return files without a committed revision or missing from the output, to be annotated from the working copy
+   */
+  private List<InputFile> rannotateBatch(List<InputFile> batch, BlameContext context, BlameOutput output) {
+    List<InputFile> remaining = new ArrayList<>();
+    // A command has a single revision, so files of the batch checked out at different revisions need their own command
+    Map<String, Map<String, InputFile>> filesByRevision = new TreeMap<>();
+    for (InputFile inputFile : batch) {
+      String path = repositoryPath(inputFile, context);
+      String revision = config.revision() != null ? config.revision() : committedRevision(context.workingCopy.entry(inputFile.file()));
+      if (path != null && revision != null) {
+        filesByRevision.computeIfAbsent(revision, r -> new LinkedHashMap<>()).put(path, inputFile);
+      } else {
+        remaining.add(inputFile);
+      }
+    }
+    for (Map.Entry<String, Map<String, InputFile>> files : filesByRevision.entrySet()) {
+      Map<String, InputFile> filesByPath = files.getValue();
+      Set<InputFile> blamed = ConcurrentHashMap.newKeySet();
+      rannotate(buildRannotateArguments(files.getKey(), new ArrayList<>(filesByPath.keySet())), filesByPath, blamed, context, output);
+      for (InputFile inputFile : filesByPath.values()) {
+        if (!blamed.contains(inputFile)) {
+          remaining.add(inputFile);
         }
-      } catch (CommandException e) {
-        throw new IllegalStateException("The CVS annotate command [" + commandToString(globalOptions, args) + "] failed", e.getUnderlyingException());
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Each section of the output is reported as soon as it is received
+   *
+   * @param blamed files reported so far, so that sections already handed over by a failed or losing attempt are not reported twice
+   */
+  private CvsModuleBlameConsumer rannotate(List<String> args, Map<String, InputFile> filesByPath, Set<InputFile> blamed, BlameContext context,
+    BlameOutput output) {
+    long start = System.nanoTime();
+    BiConsumer<InputFile, List<BlameLine>> listener = (inputFile, lines) -> {
+      if (blamed.add(inputFile)) {
+        blamed(inputFile, lines, System.nanoTime() - start, output);
+      }
+    };
+    boolean keepContents = keepContents(filesByPath.values(), context);
+    CvsModuleBlameConsumer consumer = annotate(RANNOTATE, args, filesByPath.size(), context,
+      () -> context.pipelined(keepingContents(new CvsModuleBlameConsumer(filesByPath, listener, context.dictionary), keepContents)));
+    consumer.flush();
+    metrics.time(CvsMetrics.Phase.PARSE, consumer.parseNanos());
+    return consumer;
+  }
+
+  /**
+   * @return path of the file relative to the root of the repository, null when not under CVS control
+   */
+  @CheckForNull
+  private static String repositoryPath(InputFile inputFile, BlameContext context) {
+    String path = context.workingCopy.repositoryPath(inputFile.file());
+    return path != null ? relativeToRoot(path, context.rootRepository()) : null;
+  }
+
+  /**
+   * @return revision of the entry, null when the file was added or removed locally
+   */
+  @CheckForNull
+  private static String committedRevision(@Nullable Entry entry) {
+    if (entry == null || entry.isNewUserFile() || entry.isUserFileToBeRemoved()) {
+      return null;
+    }
+    return entry.getRevision();
+  }
+
+  /**
+   * CVS/Repository is either relative to the root of the repository, or absolute on the server
+   */
+  private static String relativeToRoot(String repositoryPath, String rootRepository) {
+    if (repositoryPath.startsWith(rootRepository + "/")) {
+      return repositoryPath.substring(rootRepository.length() + 1);
+    }
+    return repositoryPath;
+  }
+
+  private void annotateBatch(List<InputFile> files, BlameContext context, BlameOutput cachingOutput) {
+    List<InputFile> batch = files;
+    if (config.blameRannotate()) {
+      batch = rannotateBatch(batch, context, cachingOutput);
+      if (batch.isEmpty()) {
+        return;
+      }
+    }
+    if (batch.size() == 1) {
+      annotateAlone(batch.get(0), context, cachingOutput);
+      return;
+    }
+    long start = System.nanoTime();
+    boolean keepContents = keepContents(batch, context);
+    List<String> filenames = batch.stream().map(InputFile::relativePath).collect(Collectors.toList());
+    CvsBatchBlameConsumer consumer = annotate(batch, context,
+      () -> context.pipelined(keepingContents(new CvsBatchBlameConsumer(filenames, context.dictionary), keepContents)));
+    long nanos = annotated(consumer, start);
+    List<InputFile> missing = new ArrayList<>();
+    for (InputFile inputFile : batch) {
+      List<BlameLine> lines = consumer.getLines(inputFile.relativePath());
+      if (lines != null) {
+        blamed(inputFile, lines, nanos, cachingOutput);
+      } else {
+        missing.add(inputFile);
+      }
+    }
+    for (InputFile inputFile : missing) {
+      LOG.debug("No annotations of " + inputFile.relativePath() + " in the output of its batch, it is annotated alone");
+      skippingFailures(Collections.singletonList(inputFile), () -> annotateAlone(inputFile, context, cachingOutput));
+    }
+  }
+
+  private void annotateAlone(InputFile inputFile, BlameContext context, BlameOutput cachingOutput) {
+    long start = System.nanoTime();
+    List<InputFile> batch = Collections.singletonList(inputFile);
+    boolean keepContents = keepContents(batch, context);
+    CvsBlameConsumer consumer = annotate(batch, context,
+      () -> context.pipelined(keepingContents(new CvsBlameConsumer(inputFile.relativePath(), context.dictionary), keepContents)));
+    long nanos = annotated(consumer, start);
+    blamed(inputFile, consumer.getLines(), nanos, cachingOutput);
+  }
+
+  /**
+   * @return time of the annotate command, shared by all the files of the batch
+   */
+  private long annotated(CvsBlameConsumer consumer, long start) {
+    metrics.time(CvsMetrics.Phase.PARSE, consumer.parseNanos());
+    return System.nanoTime() - start;
+  }
+
+  private void blamed(InputFile inputFile, List<BlameLine> lines, long nanos, BlameOutput output) {
+    metrics.blamed(inputFile.relativePath(), nanos, lines.size());
+    output.blameResult(inputFile, lines);
+  }
+
+  /**
+   * Walk all CVS/Entries once, and report files whose entry didn't change since the previous analysis from the cache.
+   * Files whose revision or timestamp changed need a fresh blame, which is then cached. Cache keys are computed before
+   * blame, so that they match the revision that is annotated.
+   *
+   * @return files needing a fresh blame
+   */
+  private List<InputFile> blameUnchanged(Iterable<InputFile> filesToBlame, BlameContext context, CvsEntriesSnapshot snapshot, BlameOutput output) {
+    int entries = context.workingCopy.scan(context.baseDir);
+    LOG.debug(entries + " entries read from CVS/Entries");
+    List<InputFile> remaining = new ArrayList<>();
+    int unchanged = 0;
+    int cached = 0;
+    boolean incremental = config.blameIncremental() && config.revision() == null;
+    for (InputFile inputFile : filesToBlame) {
+      long start = System.nanoTime();
+      Entry entry = context.workingCopy.entry(inputFile.file());
+      boolean unchangedEntry = snapshot.unchanged(inputFile.relativePath(), entry);
+      if (unchangedEntry) {
+        unchanged++;
+      }
+      String key = CvsBlameCache.key(context.globalOptions.getCVSRoot(), context.workingCopy, inputFile.file(), config.revision());
+      // The content of the lines, to align blame with local changes, is not cached
+      boolean modified = config.blameLocalChanges() && context.workingCopy.locallyModified(inputFile.file());
+      List<BlameLine> lines = key != null && unchangedEntry && !modified ? context.cache.get(key) : null;
+      if (lines != null) {
+        cached++;
+        long nanos = System.nanoTime() - start;
+        metrics.time(CvsMetrics.Phase.CACHE, nanos);
+        metrics.blamed(inputFile.relativePath(), nanos, lines.size());
+        blameResult(inputFile, lines, output);
+      } else {
+        remaining.add(inputFile);
+        if (key != null) {
+          context.cacheKeys.put(inputFile, key);
+          String previousRevision = incremental && !modified ? snapshot.previousRevision(inputFile.relativePath()) : null;
+          if (previousRevision != null && !previousRevision.equals(entry.getRevision())) {
+            context.previousRevisions.put(inputFile, previousRevision);
+          }
+        }
+      }
+    }
+    LOG.info(unchanged + " file(s) unchanged since previous analysis, " + cached + " blamed from cache, " + remaining.size() + " to annotate");
+    return remaining;
+  }
+
+  /**
+   * Files updated since the previous analysis are blamed from the cached blame of their previous revision and the differences
+   * with their current revision, so that only the changed lines are transferred.
+   *
+   * @return files to annotate, because the blame of their previous revision is not cached or the differences could not be applied
+   */
+  private List<InputFile> blameFromDiffs(List<InputFile> batch, BlameContext context, BlameOutput output) {
+    List<InputFile> remaining = new ArrayList<>();
+    for (InputFile inputFile : batch) {
+      long start = System.nanoTime();
+      String previousRevision = context.previousRevisions.remove(inputFile);
+      List<BlameLine> lines = previousRevision != null ? blameFromDiff(inputFile, previousRevision, context) : null;
+      if (lines != null) {
+        long nanos = System.nanoTime() - start;
+        metrics.time(CvsMetrics.Phase.DIFF, nanos);
+        context.blamedFromDiffs.incrementAndGet();
+        blamed(inputFile, lines, nanos, output);
+      } else {
+        remaining.add(inputFile);
+      }
+    }
+    return remaining;
+  }
+
+  @CheckForNull
+  private List<BlameLine> blameFromDiff(InputFile inputFile, String previousRevision, BlameContext context) {
+    String repositoryPath = context.workingCopy.repositoryPath(inputFile.file());
+    Entry entry = context.workingCopy.entry(inputFile.file());
+    if (repositoryPath == null || entry == null) {
+      return null;
+    }
+    List<BlameLine> previous = context.cache.get(CvsBlameCache.key(context.globalOptions.getCVSRoot(), repositoryPath, previousRevision, null));
+    if (previous == null) {
+      return null;
+    }
+    String revision = entry.getRevision();
+    try {
+      // cvs diff exits with an error status when the revisions differ, only messages on stderr tell that it failed
+      CvsIncrementalBlame.Output diff = execute(DIFF, Arrays.asList("-r", previousRevision, "-r", revision, inputFile.relativePath()), 1, context);
+      String errors = diff.stderr().trim();
+      if (!errors.isEmpty()) {
+        throw new IllegalStateException(errors);
+      }
+      BlameLine annotation = null;
+      if (CvsIncrementalBlame.addsLines(diff.stdout())) {
+        CvsIncrementalBlame.Output log = execute(LOG_COMMAND, Arrays.asList("-N", "-r" + revision, inputFile.relativePath()), 1, context);
+        annotation = CvsIncrementalBlame.revision(log.stdout(), revision, context.dictionary);
+        if (annotation == null) {
+          throw new IllegalStateException("No date and author of revision " + revision + " in log: " + log.stderr().trim());
+        }
+      }
+      List<BlameLine> lines = CvsIncrementalBlame.apply(previous, diff.stdout(), annotation);
+      // Unexpected or partial output of diff, SONARPLUGINS-3097 CVS do not report blame on last empty line
+      if (lines.size() != inputFile.lines() && lines.size() != inputFile.lines() - 1) {
+        throw new IllegalStateException("Blame of " + lines.size() + " line(s) for a file of " + inputFile.lines() + " line(s)");
+      }
+      return lines;
+    } catch (CommandException | IllegalStateException e) {
+      LOG.debug("Unable to blame " + inputFile.relativePath() + " from the differences between revisions " + previousRevision + " and " + revision
+        + ", it is annotated: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Run a command within the deadline of its files, like annotate
+   */
+  private CvsIncrementalBlame.Output execute(String command, List<String> args, int fileCount, BlameContext context) throws CommandException {
+    String[] arguments = args.toArray(new String[args.size()]);
+    File baseDir = RLOG.equals(command) ? context.remoteDir : context.baseDir;
+    return context.guard.execute(fileCount, CvsIncrementalBlame.Output::new, output -> {
+      try {
+        commandExecutor.processCommand(command, context.globalOptions, arguments, baseDir, output);
       } catch (AuthenticationException e) {
         throw new IllegalStateException("Unable to connect", e);
       }
-      List<BlameLine> lines = consumer.getLines();
-      if (lines.size() == inputFile.lines() - 1) {
-        // SONARPLUGINS-3097 CVS do not report blame on last empty line
-        lines.add(lines.get(lines.size() - 1));
+      return output;
+    });
+  }
+
+  /**
+   * @return files whose RCS file was not found
+   */
+  private List<InputFile> blameFromRcsFiles(List<InputFile> batch, BlameContext context, BlameOutput output) {
+    List<InputFile> remaining = new ArrayList<>();
+    for (InputFile inputFile : batch) {
+      long start = System.nanoTime();
+      List<BlameLine> lines;
+      try {
+        lines = context.rcsEngine.blame(inputFile, keepContents(Collections.singletonList(inputFile), context));
+      } catch (IllegalStateException e) {
+        // Corrupt or truncated RCS file, the server may still be able to annotate it
+        LOG.debug("Unable to blame " + inputFile.relativePath() + " from its RCS file, it is annotated: " + e.getMessage());
+        lines = null;
+      }
+      if (lines != null) {
+        long nanos = System.nanoTime() - start;
+        metrics.time(CvsMetrics.Phase.RCS, nanos);
+        metrics.blamed(inputFile.relativePath(), nanos, lines.size());
+        output.blameResult(inputFile, lines);
+      } else {
+        remaining.add(inputFile);
       }
-      output.blameResult(inputFile, lines);
     }
+    return remaining;
   }
 
-  private static String commandToString(GlobalOptions globalOptions, List<String> args) {
+  private static void blameResult(InputFile inputFile, List<BlameLine> lines, BlameOutput output) {
+    if (!lines.isEmpty() && lines.size() == inputFile.lines() - 1) {
+      // SONARPLUGINS-3097 CVS do not report blame on last empty line
+      lines.add(lines.get(lines.size() - 1));
+    }
+    output.blameResult(inputFile, lines);
+  }
+
+  private <T extends CvsBlameConsumer> T annotate(List<InputFile> batch, BlameContext context, Supplier<T> consumerFactory) {
+    return annotate(ANNOTATE, buildAnnotateArguments(batch), batch.size(), context, consumerFactory);
+  }
+
+  private <T extends CvsBlameConsumer> T annotate(String command, List<String> args, int fileCount, BlameContext context, Supplier<T> consumerFactory) {
+    GlobalOptions globalOptions = context.globalOptions;
+    File baseDir = RANNOTATE.equals(command) ? context.remoteDir : context.baseDir;
+    int retries = Math.max(0, config.blameRetries());
+    for (int attempt = 0;; attempt++) {
+      try {
+        return context.guard.execute(fileCount, consumerFactory, consumer -> annotate(command, globalOptions, args, baseDir, consumer));
+      } catch (CommandException e) {
+        if (attempt >= retries) {
+          throw commandFailure(command, globalOptions, args, e);
+        }
+        // The reused connection may have been dropped by the server since the previous command, or the server may be overloaded
+        long backoff = RETRY_BACKOFF_MS << attempt;
+        LOG.debug("Retrying " + command + " of " + fileCount + " file(s) on a new connection in " + backoff + " ms: " + e.getMessage());
+        metrics.retried();
+        sleep(backoff);
+      }
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting to retry annotate", e);
+    }
+  }
+
+  private <T extends CvsBlameConsumer> T annotate(String command, GlobalOptions globalOptions, List<String> args, File baseDir, T consumer)
+    throws CommandException {
+    try {
+      boolean isSuccess;
+      try {
+        isSuccess = commandExecutor.processCommand(command, globalOptions, args.toArray(new String[args.size()]), baseDir, consumer);
+      } finally {
+        consumer.awaitParsing();
+      }
+      if (!isSuccess) {
+        throw new IllegalStateException("The CVS " + command + " command [" + commandToString(command, globalOptions, args) + "] failed.\n\nStdout:\n"
+          + consumer.getStdout() + "\n\nStderr:\n"
+          + consumer.getStderr());
+      }
+    } catch (AuthenticationException e) {
+      throw new IllegalStateException("Unable to connect", e);
+    }
+    return consumer;
+  }
+
+  private static IllegalStateException commandFailure(String command, GlobalOptions globalOptions, List<String> args, CommandException e) {
+    Throwable cause = e.getUnderlyingException() != null ? e.getUnderlyingException() : e;
+    return new IllegalStateException("The CVS " + command + " command [" + commandToString(command, globalOptions, args) + "] failed", cause);
+  }
+
+  private static String commandToString(String command, GlobalOptions globalOptions, List<String> args) {
     StringBuilder sb = new StringBuilder();
     sb.append("cvs ");
     if (globalOptions.getCVSRoot() != null) {
@@ -94,7 +905,7 @@ public class CvsBlameCommand extends BlameCommand {
     }
     sb.append(globalOptions.getCVSCommand().trim());
     sb.append(" ");
-    sb.append(ANNOTATE);
+    sb.append(command);
     sb.append(" ");
     sb.append(args.stream().collect(Collectors.joining(" ")));
     return sb.toString();
@@ -136,7 +947,56 @@ public class CvsBlameCommand extends BlameCommand {
     return opts;
   }
 
+  /**
+   * Annotate files of the working copy at the given revisions, by batches of files at the same revision, within the deadline
+   * and with the retries of blame. Used to find the lines changed on a branch.
+   *
+   * @param revisions revision to annotate, by path relative to the base directory
+   * @return annotated lines, by path
+   * @throws IllegalStateException when an annotate command fails
+   */
+  Map<String, List<BlameLine>> annotate(File baseDir, Map<String, String> revisions) {
+    Map<String, List<String>> pathsByRevision = new TreeMap<>();
+    revisions.forEach((path, revision) -> pathsByRevision.computeIfAbsent(revision, r -> new ArrayList<>()).add(path));
+    Map<String, List<BlameLine>> result = new HashMap<>();
+    int batchSize = Math.max(1, config.blameBatchSize());
+    try (CvsAnnotateGuard guard = new CvsAnnotateGuard(commandExecutor, metrics, TimeUnit.SECONDS.toMillis(config.blameTimeout()), config.blameHedge())) {
+      BlameContext context = new BlameContext(buildGlobalOptions(baseDir), baseDir, null, new CvsWorkingCopy(), null, null, guard, null);
+      for (Map.Entry<String, List<String>> paths : pathsByRevision.entrySet()) {
+        List<String> sorted = paths.getValue();
+        Collections.sort(sorted);
+        for (int i = 0; i < sorted.size(); i += batchSize) {
+          annotateAtRevision(paths.getKey(), sorted.subList(i, Math.min(i + batchSize, sorted.size())), context, result);
+        }
+      }
+    }
+    return result;
+  }
+
+  private void annotateAtRevision(String revision, List<String> paths, BlameContext context, Map<String, List<BlameLine>> result) {
+    List<String> args = new ArrayList<>(Arrays.asList("-r", revision));
+    args.addAll(paths);
+    if (paths.size() == 1) {
+      CvsBlameConsumer consumer = annotate(ANNOTATE, args, 1, context, () -> new CvsBlameConsumer(paths.get(0), context.dictionary));
+      result.put(paths.get(0), consumer.getLines());
+      return;
+    }
+    CvsBatchBlameConsumer consumer = annotate(ANNOTATE, args, paths.size(), context, () -> new CvsBatchBlameConsumer(paths, context.dictionary));
+    for (String path : paths) {
+      List<BlameLine> lines = consumer.getLines(path);
+      if (lines != null) {
+        result.put(path, lines);
+      } else {
+        annotateAtRevision(revision, Collections.singletonList(path), context, result);
+      }
+    }
+  }
+
   List<String> buildAnnotateArguments(InputFile inputFile) {
+    return buildAnnotateArguments(Collections.singletonList(inputFile));
+  }
+
+  List<String> buildAnnotateArguments(List<InputFile> inputFiles) {
 
     List<String> args = new ArrayList<>();
 
@@ -144,8 +1004,59 @@ public class CvsBlameCommand extends BlameCommand {
       args.add("-r");
       args.add(config.revision());
     }
-    args.add(inputFile.relativePath());
+    for (InputFile inputFile : inputFiles) {
+      args.add(inputFile.relativePath());
+    }
+
+    return args;
+  }
+
+  /**
+   * Revision of each file listed by rlog: its head with -h, or the latest one selected with -r. With -h, files whose default
+   * branch is not the trunk, like imported files on the vendor branch, are left out since annotate reports the head of that branch.
+   *
+   * @return revision by path of the file relative to the root of the repository
+   */
+  static Map<String, String> rlogRevisions(List<String> rlog, String rootRepository, boolean head) {
+    Map<String, String> result = new HashMap<>();
+    String path = null;
+    for (String line : rlog) {
+      if (line.startsWith("RCS file: ")) {
+        path = rcsFilePath(line.substring("RCS file: ".length()).trim(), rootRepository);
+      } else if (path == null) {
+        continue;
+      } else if (head && line.startsWith("head:")) {
+        result.put(path, line.substring("head:".length()).trim());
+      } else if (head && line.startsWith("branch:") && !line.substring("branch:".length()).trim().isEmpty()) {
+        result.remove(path);
+        path = null;
+      } else if (!head && line.startsWith("revision ")) {
+        // Revisions are listed from the latest, possibly followed by "locked by: user;"
+        result.put(path, line.substring("revision ".length()).trim().split("\\s+")[0]);
+        path = null;
+      }
+    }
+    return result;
+  }
 
+  /**
+   * @param rcsFile absolute path of the RCS file on the server, like /cvsroot/module/Attic/Foo.java,v
+   */
+  private static String rcsFilePath(String rcsFile, String rootRepository) {
+    String path = relativeToRoot(rcsFile.endsWith(",v") ? rcsFile.substring(0, rcsFile.length() - 2) : rcsFile, rootRepository);
+    return path.replace("/Attic/", "/");
+  }
+
+  /**
+   * @param paths relative to the root of the repository
+   */
+  static List<String> buildRannotateArguments(@Nullable String revision, List<String> paths) {
+    List<String> args = new ArrayList<>();
+    if (revision != null) {
+      args.add("-r");
+      args.add(revision);
+    }
+    args.addAll(paths);
     return args;
   }
 
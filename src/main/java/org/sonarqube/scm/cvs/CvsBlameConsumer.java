@@ -19,15 +19,12 @@
  */
 package org.sonarqube.scm.cvs;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import org.netbeans.lib.cvsclient.event.CVSAdapter;
 import org.netbeans.lib.cvsclient.event.MessageEvent;
@@ -35,23 +32,50 @@ import org.sonar.api.batch.scm.BlameLine;
 
 public class CvsBlameConsumer extends CVSAdapter {
 
-  private static final String CVS_TIMESTAMP_PATTERN = "dd-MMM-yy";
+  /**
+   * Only the end of stdout is kept, to be reported when the command fails
+   */
+  private static final int STDOUT_TAIL_LINES = 50;
+
+  private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
 
-  /* 1.1 (tor 24-Mar-03): */
-  private static final Pattern LINE_PATTERN = Pattern.compile("(.*)\\((.*)\\s+(.*)\\)");
+  /**
+   * Like {@link java.text.SimpleDateFormat}, two-digit years are interpreted within 80 years before and 20 years after now
+   */
+  private static final int TWO_DIGIT_YEAR_START = LocalDate.now().getYear() - 80;
 
   private final StringBuffer taggedLine = new StringBuffer();
-  private List<BlameLine> lines = new ArrayList<>();
+  private final CvsCompactBlame lines = new CvsCompactBlame();
 
-  private DateFormat format;
   private String filename;
+  private final CvsBlameDictionary dictionary;
+  /**
+   * Whether the content of the annotated lines is kept, see {@link #keepContents()}
+   */
+  private boolean keepContents = false;
 
-  private StringBuilder stdout = new StringBuilder();
+  /**
+   * Time spent in this consumer, as opposed to waiting for the server
+   */
+  private long parseNanos = 0;
+
+  private final Deque<String> stdoutTail = new ArrayDeque<>();
+  private int omittedStdoutLines = 0;
   private StringBuilder stderr = new StringBuilder();
 
+  /**
+   * Parses the messages on another thread, when blame is pipelined
+   */
+  @Nullable
+  private CvsBlamePipeline.Parser parser;
+
   public CvsBlameConsumer(String filename) {
+    this(filename, new CvsBlameDictionary());
+  }
+
+  CvsBlameConsumer(String filename, CvsBlameDictionary dictionary) {
     this.filename = filename;
-    this.format = new SimpleDateFormat(CVS_TIMESTAMP_PATTERN, Locale.US);
+    this.dictionary = dictionary;
   }
 
   /**
@@ -63,6 +87,15 @@ public class CvsBlameConsumer extends CVSAdapter {
    */
   @Override
   public void messageSent(MessageEvent e) {
+    if (parser != null) {
+      parser.add(e);
+    } else {
+      handle(e);
+    }
+  }
+
+  private void handle(MessageEvent e) {
+    long start = System.nanoTime();
     String line = e.getMessage();
 
     if (e.isTagged()) {
@@ -73,51 +106,203 @@ public class CvsBlameConsumer extends CVSAdapter {
     } else {
       consume(e.isError(), line);
     }
+    parseNanos += System.nanoTime() - start;
+  }
+
+  long parseNanos() {
+    return parseNanos;
+  }
+
+  /**
+   * Keep the content of the annotated lines along with their blame, to align it with modified working files
+   */
+  void keepContents() {
+    this.keepContents = true;
+  }
+
+  /**
+   * Parse the messages on a thread of the pipeline, instead of the thread reading them
+   */
+  void parseOn(CvsBlamePipeline pipeline) {
+    this.parser = pipeline.parser(this::handle);
+  }
+
+  /**
+   * Wait for the messages received so far to be parsed, before reading the results
+   */
+  void awaitParsing() {
+    if (parser != null) {
+      parser.finish();
+    }
   }
 
-  private void consume(boolean isError, String message) {
+  void consume(boolean isError, String message) {
     if (isError) {
       stderr.append(message).append("\n");
     } else {
-      stdout.append(message).append("\n");
+      if (stdoutTail.size() == STDOUT_TAIL_LINES) {
+        stdoutTail.removeFirst();
+        omittedStdoutLines++;
+      }
+      stdoutTail.addLast(message);
       consumeLine(message);
     }
   }
 
+  /**
+   * Single pass over a line like "1.1          (tor      24-Mar-03): content". The annotation ends at the first ':',
+   * the revision is before the last '(', and the author and the date are separated by the last whitespace before ')'.
+   */
   private void consumeLine(@Nullable String line) {
-    if (line != null && line.indexOf(':') > 0) {
-      String annotation = line.substring(0, line.indexOf(':'));
-      Matcher matcher = LINE_PATTERN.matcher(annotation);
-      if (matcher.matches()) {
-        String revision = matcher.group(1).trim();
-        String author = matcher.group(2).trim();
-        String dateTimeStr = matcher.group(3).trim();
-
-        Date dateTime = parseDate(dateTimeStr);
-        lines.add(new BlameLine().date(dateTime).revision(revision).author(author));
-      }
+    if (line == null) {
+      return;
+    }
+    int colon = line.indexOf(':');
+    if (colon <= 0 || line.charAt(colon - 1) != ')') {
+      return;
+    }
+    CvsCompactBlame target = currentLines();
+    if (target == null) {
+      return;
+    }
+    int close = colon - 1;
+    int open = line.lastIndexOf('(', close - 1);
+    if (open < 0) {
+      return;
+    }
+    int space = close - 1;
+    while (space > open && !Character.isWhitespace(line.charAt(space))) {
+      space--;
     }
+    if (space <= open) {
+      return;
+    }
+    String revision = dictionary.intern(trimmed(line, 0, open));
+    String author = dictionary.intern(trimmed(line, open + 1, space));
+    Date date = parseDate(line, space + 1, close);
+    target.add(revision, author, date);
+    if (keepContents) {
+      // The content follows "): ", and is empty when nothing follows the colon
+      target.addContent(line.substring(Math.min(colon + 2, line.length())));
+    }
+  }
+
+  private static String trimmed(String line, int start, int end) {
+    int from = start;
+    int to = end;
+    while (from < to && Character.isWhitespace(line.charAt(from))) {
+      from++;
+    }
+    while (to > from && Character.isWhitespace(line.charAt(to - 1))) {
+      to--;
+    }
+    return line.substring(from, to);
+  }
+
+  /**
+   * @return blame of the file being annotated, null when its lines are to be ignored
+   */
+  @CheckForNull
+  protected CvsCompactBlame currentLines() {
+    return lines;
   }
 
+  /**
+   * @return lines of the annotated file, in a compact form where lines of a same revision share the same instance
+   */
   public List<BlameLine> getLines() {
     return lines;
   }
 
+  protected void setFilename(String filename) {
+    this.filename = filename;
+  }
+
   /**
    * Converts the date timestamp from the output into a date object.
    *
    * @return A date representing the timestamp of the log entry.
    */
   protected Date parseDate(String date) {
+    return parseDate(date, 0, date.length());
+  }
+
+  /**
+   * Parse a dd-MMM-yy date, like 24-Mar-03, at the start of the day in the local timezone
+   */
+  private Date parseDate(String line, int start, int end) {
+    int from = start;
+    int to = end;
+    while (from < to && Character.isWhitespace(line.charAt(from))) {
+      from++;
+    }
+    while (to > from && Character.isWhitespace(line.charAt(to - 1))) {
+      to--;
+    }
+    int firstDash = line.indexOf('-', from);
+    int secondDash = firstDash < 0 ? -1 : line.indexOf('-', firstDash + 1);
+    if (firstDash < 0 || secondDash < 0 || secondDash >= to || secondDash - firstDash != 4) {
+      throw invalidDate(line, from, to);
+    }
+    int day = number(line, from, firstDash);
+    int month = month(line, firstDash + 1);
+    int year = number(line, secondDash + 1, to);
+    if (day < 1 || month < 1 || year < 0) {
+      throw invalidDate(line, from, to);
+    }
+    if (to - secondDash - 1 <= 2) {
+      year += TWO_DIGIT_YEAR_START / 100 * 100;
+      if (year < TWO_DIGIT_YEAR_START) {
+        year += 100;
+      }
+    }
     try {
-      return format.parse(date);
-    } catch (ParseException e) {
-      throw new IllegalStateException("Unable to parse date " + date + " in blame of file " + filename, e);
+      return dictionary.date(year, month, day);
+    } catch (RuntimeException e) {
+      throw invalidDate(line, from, to);
+    }
+  }
+
+  private static int number(String line, int start, int end) {
+    if (start >= end) {
+      return -1;
+    }
+    int result = 0;
+    for (int i = start; i < end; i++) {
+      char c = line.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
     }
+    return result;
   }
 
+  private static int month(String line, int start) {
+    for (int m = 0; m < MONTHS.length; m++) {
+      if (line.regionMatches(true, start, MONTHS[m], 0, 3)) {
+        return m + 1;
+      }
+    }
+    return -1;
+  }
+
+  private IllegalStateException invalidDate(String line, int start, int end) {
+    return new IllegalStateException("Unable to parse date " + line.substring(start, end) + " in blame of file " + filename);
+  }
+
+  /**
+   * @return the last lines of stdout
+   */
   public StringBuilder getStdout() {
-    return stdout;
+    StringBuilder sb = new StringBuilder();
+    if (omittedStdoutLines > 0) {
+      sb.append("[").append(omittedStdoutLines).append(" lines omitted]\n");
+    }
+    for (String line : stdoutTail) {
+      sb.append(line).append("\n");
+    }
+    return sb;
   }
 
   public StringBuilder getStderr() {
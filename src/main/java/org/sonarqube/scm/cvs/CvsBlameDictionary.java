@@ -0,0 +1,72 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dates, authors and revisions of annotate output, shared by all the files of a blame execution.
+ * A project usually has few distinct values, so each one is only allocated once and all the
+ * {@link org.sonar.api.batch.scm.BlameLine}s reference the same instances.
+ * <p>
+ * Each dictionary is bounded: once full, values are still returned but no longer retained.
+ * <p>
+ * Thread safe.
+ */
+class CvsBlameDictionary {
+
+  private static final int MAX_SIZE = 10_000;
+
+  private final ZoneId zone = ZoneId.systemDefault();
+  private final Map<Integer, Date> dates = new ConcurrentHashMap<>();
+  private final Map<String, String> strings = new ConcurrentHashMap<>();
+
+  /**
+   * @return start of the day in the local timezone
+   */
+  Date date(int year, int month, int day) {
+    Integer key = (year * 100 + month) * 100 + day;
+    Date date = dates.get(key);
+    if (date == null) {
+      date = Date.from(LocalDate.of(year, month, day).atStartOfDay(zone).toInstant());
+      if (dates.size() < MAX_SIZE) {
+        Date previous = dates.putIfAbsent(key, date);
+        return previous != null ? previous : date;
+      }
+    }
+    return date;
+  }
+
+  String intern(String value) {
+    String interned = strings.get(value);
+    if (interned != null) {
+      return interned;
+    }
+    if (strings.size() < MAX_SIZE) {
+      interned = strings.putIfAbsent(value, value);
+      return interned != null ? interned : value;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+
+/**
+ * Splits blame in three stages joined by bounded queues, so that reading the protocol stream, parsing annotate output and
+ * reporting results overlap:
+ * <ul>
+ * <li>the thread executing a command only queues the messages received, by chunks</li>
+ * <li>a parser thread per running command turns them into blame lines</li>
+ * <li>a single delivery thread hands the results to the {@link BlameOutput}</li>
+ * </ul>
+ * A full queue blocks the previous stage, so that the messages and results in flight are bounded whatever the size of the files.
+ * <p>
+ * Thread safe.
+ */
+class CvsBlamePipeline implements AutoCloseable {
+
+  static final int CHUNK_MESSAGES = 256;
+  static final int PARSE_QUEUE_CHUNKS = 64;
+  static final int DELIVERY_QUEUE_FILES = 32;
+
+  private static final List<MessageEvent> NO_MORE_MESSAGES = new ArrayList<>();
+  private static final Runnable NO_MORE_DELIVERIES = () -> {
+  };
+
+  private final ExecutorService parsers;
+  private final BlockingQueue<Runnable> deliveries;
+  private final Thread deliveryThread;
+  private volatile RuntimeException deliveryFailure;
+
+  CvsBlamePipeline() {
+    this(DELIVERY_QUEUE_FILES);
+  }
+
+  CvsBlamePipeline(int deliveryQueueSize) {
+    AtomicInteger threadCount = new AtomicInteger();
+    this.parsers = Executors.newCachedThreadPool(r -> daemon(r, "cvs-blame-parser-" + threadCount.incrementAndGet()));
+    this.deliveries = new ArrayBlockingQueue<>(deliveryQueueSize);
+    this.deliveryThread = daemon(this::deliverAll, "cvs-blame-delivery");
+    this.deliveryThread.start();
+  }
+
+  private static Thread daemon(Runnable r, String name) {
+    Thread thread = new Thread(r, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * @return parser of the messages of a command, started with the first message
+   */
+  Parser parser(Consumer<MessageEvent> handler) {
+    return new Parser(handler);
+  }
+
+  /**
+   * @return output whose results are reported by the delivery thread
+   */
+  BlameOutput output(BlameOutput output) {
+    return (inputFile, lines) -> deliver(() -> output.blameResult(inputFile, lines));
+  }
+
+  private void deliver(Runnable delivery) {
+    failIfDeliveryFailed();
+    put(deliveries, delivery);
+  }
+
+  private void deliverAll() {
+    while (true) {
+      Runnable delivery = take(deliveries);
+      if (delivery == NO_MORE_DELIVERIES) {
+        return;
+      }
+      // Once failed, results are dropped so that the producers are not blocked until the failure is reported to them
+      if (deliveryFailure == null) {
+        try {
+          delivery.run();
+        } catch (RuntimeException e) {
+          deliveryFailure = e;
+        }
+      }
+    }
+  }
+
+  private void failIfDeliveryFailed() {
+    RuntimeException failure = deliveryFailure;
+    if (failure != null) {
+      throw new IllegalStateException("Unable to report blame: " + failure.getMessage(), failure);
+    }
+  }
+
+  /**
+   * Wait for the results to be delivered
+   *
+   * @throws IllegalStateException when a result couldn't be delivered
+   */
+  @Override
+  public void close() {
+    try {
+      put(deliveries, NO_MORE_DELIVERIES);
+      deliveryThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for blame to be reported", e);
+    } finally {
+      parsers.shutdownNow();
+    }
+    failIfDeliveryFailed();
+  }
+
+  private static <T> void put(BlockingQueue<T> queue, T element) {
+    try {
+      queue.put(element);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the blame pipeline", e);
+    }
+  }
+
+  private static <T> T take(BlockingQueue<T> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the blame pipeline", e);
+    }
+  }
+
+  /**
+   * Parses the messages of a single command, in the order they were received. Not thread safe: messages are added by the thread
+   * executing the command.
+   */
+  final class Parser {
+    private final Consumer<MessageEvent> handler;
+    private final BlockingQueue<List<MessageEvent>> chunks = new ArrayBlockingQueue<>(PARSE_QUEUE_CHUNKS);
+    private List<MessageEvent> chunk = new ArrayList<>(CHUNK_MESSAGES);
+    private Future<?> parsing;
+    private volatile RuntimeException failure;
+
+    private Parser(Consumer<MessageEvent> handler) {
+      this.handler = handler;
+    }
+
+    void add(MessageEvent message) {
+      if (parsing == null) {
+        parsing = parsers.submit(this::parseAll);
+      }
+      chunk.add(message);
+      if (chunk.size() == CHUNK_MESSAGES) {
+        put(chunks, chunk);
+        chunk = new ArrayList<>(CHUNK_MESSAGES);
+      }
+    }
+
+    private void parseAll() {
+      while (true) {
+        List<MessageEvent> messages = take(chunks);
+        if (messages == NO_MORE_MESSAGES) {
+          return;
+        }
+        // Once failed, messages are dropped so that the command is not blocked until the failure is reported
+        if (failure == null) {
+          try {
+            messages.forEach(handler);
+          } catch (RuntimeException e) {
+            failure = e;
+          }
+        }
+      }
+    }
+
+    /**
+     * Wait for the messages added so far to be parsed
+     *
+     * @throws IllegalStateException when parsing failed
+     */
+    void finish() {
+      if (parsing == null) {
+        return;
+      }
+      if (!chunk.isEmpty()) {
+        put(chunks, chunk);
+        chunk = new ArrayList<>(CHUNK_MESSAGES);
+      }
+      put(chunks, NO_MORE_MESSAGES);
+      try {
+        parsing.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for annotate output to be parsed", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      } finally {
+        parsing = null;
+      }
+      RuntimeException parseFailure = failure;
+      if (parseFailure != null) {
+        throw parseFailure;
+      }
+    }
+  }
+}
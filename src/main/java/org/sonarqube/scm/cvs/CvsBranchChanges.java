@@ -0,0 +1,193 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.netbeans.lib.cvsclient.admin.Entry;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Files and lines changed on the branch checked out, compared with a target branch.
+ * <p>
+ * When the RCS files are reachable (see {@link RcsBlameEngine}), a file is changed when its revision checked out
+ * doesn't belong to the history of the target, and a line is changed when it was introduced by such a revision.
+ * Otherwise, only a trunk target is supported: a file is changed when its revision checked out is a branch revision,
+ * and lines are annotated by the server, by batches, to find the ones introduced by branch revisions. Changes compared with another
+ * target are unknown.
+ * <p>
+ * Local modifications are not considered.
+ */
+class CvsBranchChanges {
+
+  private static final Logger LOG = Loggers.get(CvsBranchChanges.class);
+
+  /**
+   * Branch of the files imported with cvs import, which is the default branch until they are changed on the trunk
+   */
+  private static final String VENDOR_BRANCH = "1.1.1";
+
+  /**
+   * Names designating the trunk, in CVS or as the main branch of SonarQube
+   */
+  private static final Set<String> TRUNK_NAMES = new HashSet<>(Arrays.asList("HEAD", "MAIN", "trunk", "master", "main"));
+
+  private final CvsConfiguration config;
+  private final CvsBlameCommand blameCommand;
+
+  CvsBranchChanges(CvsConfiguration config, CvsBlameCommand blameCommand) {
+    this.config = config;
+    this.blameCommand = blameCommand;
+  }
+
+  /**
+   * @return null when the files can't be computed
+   */
+  @CheckForNull
+  Set<Path> changedFiles(String targetBranchName, Path rootBaseDir) {
+    File baseDir = rootBaseDir.toFile();
+    CvsWorkingCopy workingCopy = new CvsWorkingCopy();
+    workingCopy.scan(baseDir);
+    RcsBlameEngine rcsEngine = RcsBlameEngine.create(config, blameCommand.buildGlobalOptions(baseDir).getCVSRoot(), workingCopy);
+    Set<Path> result = new HashSet<>();
+    for (File file : workingCopy.files()) {
+      Entry entry = workingCopy.entry(file);
+      if (entry == null || entry.isUserFileToBeRemoved()) {
+        continue;
+      }
+      if (entry.isNewUserFile()) {
+        result.add(file.toPath());
+        continue;
+      }
+      RcsAnnotator annotator = rcsEngine != null ? rcsEngine.annotator(file) : null;
+      if (annotator == null && !isTrunk(targetBranchName)) {
+        LOG.warn(unsupported(targetBranchName, file));
+        return null;
+      }
+      if (annotator != null ? annotator.isChanged(entry.getRevision(), targetBranchName) : isBranchRevision(entry.getRevision())) {
+        result.add(file.toPath());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return null when the lines can't be computed
+   */
+  @CheckForNull
+  Map<Path, Set<Integer>> changedLines(String targetBranchName, Path rootBaseDir, Set<Path> files) {
+    File baseDir = rootBaseDir.toFile();
+    CvsWorkingCopy workingCopy = new CvsWorkingCopy();
+    RcsBlameEngine rcsEngine = RcsBlameEngine.create(config, blameCommand.buildGlobalOptions(baseDir).getCVSRoot(), workingCopy);
+    Map<Path, Set<Integer>> result = new HashMap<>();
+    // Files to annotate on the server, by path relative to the base directory, with the revision of their entry
+    Map<String, Path> toAnnotate = new HashMap<>();
+    Map<String, String> revisions = new HashMap<>();
+    try {
+      for (Path path : files) {
+        File file = path.toFile();
+        Entry entry = workingCopy.entry(file);
+        if (entry == null || entry.isUserFileToBeRemoved()) {
+          continue;
+        }
+        Set<Integer> lines = entry.isNewUserFile() ? allLines(path) : changedLines(file, entry, targetBranchName, rcsEngine);
+        if (lines != null) {
+          result.put(path, lines);
+        } else {
+          String relativePath = baseDir.toPath().relativize(path).toString().replace('\\', '/');
+          toAnnotate.put(relativePath, path);
+          revisions.put(relativePath, entry.getRevision());
+        }
+      }
+      if (!revisions.isEmpty()) {
+        blameCommand.annotate(baseDir, revisions).forEach((relativePath, lines) -> result.put(toAnnotate.get(relativePath), branchLines(lines)));
+      }
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to compute lines changed on the branch", e);
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * @return null when the file is to be annotated by the server
+   */
+  @CheckForNull
+  private static Set<Integer> changedLines(File file, Entry entry, String targetBranchName, @Nullable RcsBlameEngine rcsEngine) {
+    RcsAnnotator annotator = rcsEngine != null ? rcsEngine.annotator(file) : null;
+    if (annotator != null) {
+      return annotator.changedLines(entry.getRevision(), targetBranchName);
+    }
+    if (!isTrunk(targetBranchName)) {
+      throw new IllegalStateException(unsupported(targetBranchName, file));
+    }
+    if (!isBranchRevision(entry.getRevision())) {
+      return new HashSet<>();
+    }
+    return null;
+  }
+
+  private static Set<Integer> branchLines(List<BlameLine> lines) {
+    return IntStream.range(0, lines.size())
+      .filter(i -> isBranchRevision(lines.get(i).revision()))
+      .mapToObj(i -> i + 1)
+      .collect(Collectors.toSet());
+  }
+
+  private static Set<Integer> allLines(Path path) {
+    try (Stream<String> lines = Files.lines(path, StandardCharsets.ISO_8859_1)) {
+      return IntStream.rangeClosed(1, (int) lines.count()).boxed().collect(Collectors.toSet());
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read " + path, e);
+    }
+  }
+
+  private static boolean isTrunk(@Nullable String targetBranchName) {
+    return targetBranchName == null || TRUNK_NAMES.contains(targetBranchName);
+  }
+
+  private static String unsupported(@Nullable String targetBranchName, File file) {
+    return "Changes compared with " + targetBranchName + " require the RCS file of " + file.getAbsolutePath()
+      + ", only changes compared with the trunk are computed by the server";
+  }
+
+  /**
+   * Trunk revisions have two numbers, branch revisions have more. Revisions of the vendor branch are part of the trunk.
+   */
+  private static boolean isBranchRevision(@Nullable String revision) {
+    return revision != null && revision.indexOf('.') != revision.lastIndexOf('.') && !revision.startsWith(VENDOR_BRANCH + ".");
+  }
+}
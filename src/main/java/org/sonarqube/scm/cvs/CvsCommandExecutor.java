@@ -20,13 +20,13 @@
 package org.sonarqube.scm.cvs;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import org.netbeans.lib.cvsclient.CVSRoot;
-import org.netbeans.lib.cvsclient.Client;
-import org.netbeans.lib.cvsclient.admin.StandardAdminHandler;
-import org.netbeans.lib.cvsclient.command.CommandAbortedException;
+import org.netbeans.lib.cvsclient.command.Command;
 import org.netbeans.lib.cvsclient.command.CommandException;
 import org.netbeans.lib.cvsclient.command.GlobalOptions;
 import org.netbeans.lib.cvsclient.commandLine.CommandFactory;
@@ -36,6 +36,7 @@ import org.netbeans.lib.cvsclient.connection.ConnectionFactory;
 import org.netbeans.lib.cvsclient.connection.PServerConnection;
 import org.netbeans.lib.cvsclient.connection.StandardScrambler;
 import org.netbeans.lib.cvsclient.event.CVSListener;
+import org.sonar.api.Startable;
 import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.batch.ScannerSide;
 import org.sonar.api.utils.log.Logger;
@@ -43,27 +44,54 @@ import org.sonar.api.utils.log.Loggers;
 
 /**
  * Highly inspired from Maven SCM CVS provider
+ * <p>
+ * Thread safe: each command is executed on a connection owned by the calling thread until it completes.
  */
 @InstantiationStrategy(InstantiationStrategy.PER_BATCH)
 @ScannerSide
-public class CvsCommandExecutor {
+public class CvsCommandExecutor implements Startable {
 
   private static final Logger LOG = Loggers.get(CvsCommandExecutor.class);
 
   /**
-   * The connection to the server
+   * System property read by cvsclient before printing a warning on stderr each time a connection is reused
    */
-  private Connection connection;
+  private static final String MULTIPLE_COMMANDS_WARNING = "javacvs.multiple_commands_warning";
 
   /**
-   * The client that manages interactions with the server
+   * Sessions kept opened between commands when connection reuse is enabled. A session is removed
+   * while a command is executed on it, so there are never more sessions than concurrent commands.
    */
-  private Client client;
+  private final ConcurrentLinkedDeque<CvsSession> idleSessions = new ConcurrentLinkedDeque<>();
+
+  /**
+   * Sessions of the commands being executed, by listener, to be able to abort them
+   */
+  private final Map<CVSListener, CvsSession> runningSessions = new ConcurrentHashMap<>();
+
+  /**
+   * SSH sessions of :ext: connections, authenticated once per host and user for the whole batch
+   */
+  private final SshSessionPool sshSessions = new SshSessionPool();
 
   private final CvsConfiguration config;
+  private final CvsMetrics metrics;
+  @Nullable
+  private final CvsCompressionTuner compressionTuner;
 
-  public CvsCommandExecutor(CvsConfiguration config) {
+  public CvsCommandExecutor(CvsConfiguration config, CvsMetrics metrics) {
     this.config = config;
+    this.metrics = metrics;
+    this.compressionTuner = config.compressionAuto() ? CvsCompressionTuner.create(config) : null;
+    if (config.reuseConnection() && System.getProperty(MULTIPLE_COMMANDS_WARNING) == null) {
+      // cvsclient only reads this JVM-wide property, there is no way to silence the warning of a single client. Set once,
+      // and only when connections are reused, so that the warning is not printed on stderr for every command of the batch.
+      System.setProperty(MULTIPLE_COMMANDS_WARNING, "false");
+    }
+  }
+
+  CvsCommandExecutor(CvsConfiguration config) {
+    this(config, new CvsMetrics());
   }
 
   /**
@@ -86,20 +114,112 @@ public class CvsCommandExecutor {
     final String cvsRoot = globalOptions.getCVSRoot();
     CVSRoot root = parseCvsRoot(cvsRoot);
 
-    org.netbeans.lib.cvsclient.command.Command c = CommandFactory.getDefault().createCommand(command, args, 0, globalOptions, workingDir.getAbsolutePath());
+    Command c = createCommand(command, globalOptions, args, workingDir);
 
-    String username = getUsername(root);
-    String password = getPassword(root);
+    if (!config.reuseConnection()) {
+      CvsSession oneShotSession = connect(cvsRoot, root);
+      try {
+        LOG.debug("Executing CVS command: " + c.getCVSCommand());
+        return execute(oneShotSession, root, c, globalOptions, workingDir, listener);
+      } finally {
+        oneShotSession.close();
+      }
+    }
+
+    CvsSession reusedSession = borrowSession(cvsRoot, root);
+    boolean completed = false;
     try {
-      connect(workingDir, root, username, password);
-      client.getEventManager().addCVSListener(listener);
       LOG.debug("Executing CVS command: " + c.getCVSCommand());
-      return client.executeCommand(c, globalOptions);
+      boolean result = execute(reusedSession, root, c, globalOptions, workingDir, listener);
+      completed = true;
+      return result;
+    } finally {
+      if (completed) {
+        idleSessions.push(reusedSession);
+      } else {
+        // The state of the protocol is unknown, next command will use another connection
+        reusedSession.close();
+      }
+    }
+  }
+
+  private boolean execute(CvsSession session, CVSRoot root, Command c, GlobalOptions globalOptions, File workingDir, CVSListener listener)
+    throws AuthenticationException, CommandException {
+    long bytesIn = session.bytesRead();
+    long bytesOut = session.bytesWritten();
+    long start = System.nanoTime();
+    String compressionKey = compressionTuner != null ? CvsCompressionTuner.key(root) : null;
+    boolean sampling = compressionKey != null && session.compressionLevel() == 0 && compressionTuner.level(compressionKey) == null;
+    if (sampling) {
+      session.startSampling(CvsCompressionTuner.MAX_SAMPLE_BYTES);
+    }
+    runningSessions.put(listener, session);
+    try {
+      boolean result = session.execute(c, globalOptions, workingDir, listener);
+      if (sampling) {
+        compressionTuner.sampled(compressionKey, session.stopSampling());
+      }
+      return result;
     } finally {
-      disconnect();
+      runningSessions.remove(listener);
+      metrics.time(CvsMetrics.Phase.COMMAND, System.nanoTime() - start);
+      metrics.transferred(session.bytesRead() - bytesIn, session.bytesWritten() - bytesOut);
     }
   }
 
+  /**
+   * Abort the command being executed with this listener, if any, by closing its connection. The command then fails
+   * in the thread executing it.
+   */
+  public void abort(CVSListener listener) {
+    CvsSession session = runningSessions.get(listener);
+    if (session != null) {
+      LOG.debug("Aborting CVS command");
+      try {
+        session.close();
+      } catch (IllegalStateException e) {
+        LOG.debug("Unable to close the connection of the aborted command", e);
+      }
+    }
+  }
+
+  /**
+   * CommandFactory lazily initializes its singleton without any synchronization
+   */
+  private static synchronized Command createCommand(String command, GlobalOptions globalOptions, String[] args, File workingDir) {
+    return CommandFactory.getDefault().createCommand(command, args, 0, globalOptions, workingDir.getAbsolutePath());
+  }
+
+  private CvsSession borrowSession(String cvsRoot, CVSRoot root) throws AuthenticationException, CommandException {
+    Integer level = compressionLevel(root);
+    CvsSession idle;
+    while ((idle = idleSessions.poll()) != null) {
+      // Sessions opened while probing are replaced once the compression level is chosen
+      if (idle.isOpen() && idle.cvsRoot().equals(cvsRoot) && (level == null || idle.compressionLevel() == level)) {
+        return idle;
+      }
+      idle.close();
+    }
+    return connect(cvsRoot, root);
+  }
+
+  @Override
+  public void start() {
+    // Nothing to do, connection is lazily opened by the first command
+  }
+
+  /**
+   * Close the reused connections and the SSH sessions, if any, at the end of the batch
+   */
+  @Override
+  public void stop() {
+    CvsSession idle;
+    while ((idle = idleSessions.poll()) != null) {
+      idle.close();
+    }
+    sshSessions.close();
+  }
+
   /**
    * Password will be scrambled for pserver method
    */
@@ -150,29 +270,47 @@ public class CvsCommandExecutor {
   /**
    * Creates the connection and the client and connects.
    */
-  private void connect(File baseDir, CVSRoot root, @Nullable String username, @Nullable String password) throws AuthenticationException, CommandAbortedException {
-    if (CVSRoot.METHOD_EXT.equals(root.getMethod())) {
-      connection = new SshConnection(root.getHostName(), root.getPort(), username, password, config.passphrase(), root.getRepository());
-    } else {
-      connection = ConnectionFactory.getConnection(root);
-      if (CVSRoot.METHOD_PSERVER.equals(root.getMethod())) {
-        ((PServerConnection) connection).setEncodedPassword(password);
+  private CvsSession connect(String cvsRoot, CVSRoot root) throws AuthenticationException, CommandException {
+    String username = getUsername(root);
+    String password = getPassword(root);
+    Connection connection = createConnection(root, username, password);
+    long start = System.nanoTime();
+    connection.open();
+    CvsSession session = new CvsSession(cvsRoot, connection);
+    Integer level = compressionLevel(root);
+    if (level != null && level > 0) {
+      try {
+        if (!session.compress(level)) {
+          LOG.debug("Compression not supported by the server");
+        }
+      } catch (CommandException | RuntimeException e) {
+        session.close();
+        throw e;
       }
     }
-    connection.open();
+    metrics.time(CvsMetrics.Phase.CONNECT, System.nanoTime() - start);
+    return session;
+  }
 
-    client = new Client(connection, new StandardAdminHandler());
-    client.setLocalPath(baseDir.getAbsolutePath());
+  /**
+   * @return null when not automatically chosen, or not chosen yet
+   */
+  @CheckForNull
+  private Integer compressionLevel(CVSRoot root) {
+    return compressionTuner != null ? compressionTuner.level(CvsCompressionTuner.key(root)) : null;
   }
 
-  private void disconnect() {
-    if (connection != null && connection.isOpen()) {
-      try {
-        connection.close();
-      } catch (IOException e) {
-        throw new IllegalStateException("Unable to disconnect", e);
+  private Connection createConnection(CVSRoot root, @Nullable String username, @Nullable String password) {
+    Connection connection;
+    if (CVSRoot.METHOD_EXT.equals(root.getMethod())) {
+      connection = new SshConnection(root.getHostName(), root.getPort(), username, password, config.passphrase(), root.getRepository(), sshSessions);
+    } else {
+      connection = ConnectionFactory.getConnection(root);
+      if (CVSRoot.METHOD_PSERVER.equals(root.getMethod())) {
+        ((PServerConnection) connection).setEncodedPassword(password);
       }
     }
+    return connection;
   }
 
 }
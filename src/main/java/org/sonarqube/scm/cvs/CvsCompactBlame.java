@@ -0,0 +1,180 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blame of a file as runs of consecutive lines annotated with the same revision, author and date, which is how annotate output
+ * comes: a table of the distinct annotations of the file, and for each run the index of its annotation and the line where it ends.
+ * <p>
+ * Lines of a same annotation share the same {@link BlameLine} instance of the table, which must not be modified. Only
+ * {@link #expand()}, when blame is delivered to the scanner, allocates an array of the size of the file.
+ * <p>
+ * Lines can only be added at the end. Not thread safe: built by a single thread, then only read.
+ */
+class CvsCompactBlame extends AbstractList<BlameLine> {
+
+  private static final int INITIAL_RUNS = 8;
+
+  private final List<BlameLine> annotations = new ArrayList<>();
+  /**
+   * Exclusive end of each run, in increasing order
+   */
+  private int[] runEnds = new int[INITIAL_RUNS];
+  private int[] runAnnotations = new int[INITIAL_RUNS];
+  private int runCount = 0;
+  private int size = 0;
+  /**
+   * Content of the lines as annotated, only kept to align blame with a modified working file
+   */
+  @Nullable
+  private List<String> contents;
+
+  static CvsCompactBlame of(List<BlameLine> lines) {
+    if (lines instanceof CvsCompactBlame) {
+      return (CvsCompactBlame) lines;
+    }
+    CvsCompactBlame compact = new CvsCompactBlame();
+    compact.addAll(lines);
+    return compact;
+  }
+
+  /**
+   * Add a line at the end, in the current run when its annotation is the same
+   */
+  void add(String revision, @Nullable String author, Date date) {
+    add(1, revision, author, date);
+  }
+
+  /**
+   * Add a run of lines at the end
+   */
+  void add(int lineCount, String revision, @Nullable String author, Date date) {
+    if (lineCount <= 0) {
+      return;
+    }
+    size += lineCount;
+    if (runCount > 0 && matches(annotations.get(runAnnotations[runCount - 1]), revision, author, date)) {
+      runEnds[runCount - 1] = size;
+      return;
+    }
+    if (runCount == runEnds.length) {
+      runEnds = Arrays.copyOf(runEnds, runCount * 2);
+      runAnnotations = Arrays.copyOf(runAnnotations, runCount * 2);
+    }
+    runAnnotations[runCount] = annotation(revision, author, date);
+    runEnds[runCount] = size;
+    runCount++;
+  }
+
+  /**
+   * A file has few distinct annotations, and the most recent ones are looked for first
+   */
+  private int annotation(String revision, @Nullable String author, Date date) {
+    for (int i = annotations.size() - 1; i >= 0; i--) {
+      if (matches(annotations.get(i), revision, author, date)) {
+        return i;
+      }
+    }
+    annotations.add(new BlameLine().revision(revision).author(author).date(date));
+    return annotations.size() - 1;
+  }
+
+  private static boolean matches(BlameLine annotation, String revision, @Nullable String author, Date date) {
+    return annotation.revision().equals(revision) && Objects.equals(annotation.author(), author) && annotation.date().equals(date);
+  }
+
+  /**
+   * Content of the last line added
+   */
+  void addContent(String content) {
+    if (contents == null) {
+      contents = new ArrayList<>(size);
+    }
+    contents.add(content);
+  }
+
+  /**
+   * @return content of the lines, null when it was not kept
+   */
+  @CheckForNull
+  List<String> contents() {
+    return contents;
+  }
+
+  @Override
+  public void add(int index, BlameLine line) {
+    if (index != size) {
+      throw new UnsupportedOperationException("Lines can only be added at the end");
+    }
+    add(line.revision(), line.author(), line.date());
+    modCount++;
+  }
+
+  @Override
+  public BlameLine get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Line " + index + " of " + size);
+    }
+    int run = Arrays.binarySearch(runEnds, 0, runCount, index + 1);
+    // Either the run ending right after the line, or the insertion point: the first run ending after it
+    return annotations.get(runAnnotations[run >= 0 ? run : (-run - 1)]);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  int runCount() {
+    return runCount;
+  }
+
+  int runLength(int run) {
+    return runEnds[run] - (run == 0 ? 0 : runEnds[run - 1]);
+  }
+
+  BlameLine runAnnotation(int run) {
+    return annotations.get(runAnnotations[run]);
+  }
+
+  /**
+   * @return a line per line of the file, as expected by the scanner
+   */
+  List<BlameLine> expand() {
+    List<BlameLine> lines = new ArrayList<>(size);
+    for (int run = 0; run < runCount; run++) {
+      BlameLine annotation = runAnnotation(run);
+      for (int i = runLength(run); i > 0; i--) {
+        lines.add(annotation);
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.CheckForNull;
+import org.netbeans.lib.cvsclient.CVSRoot;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Chooses the compression level of the connections to a CVS server from the responses received on uncompressed
+ * connections: compression only pays off when the time saved transferring the compressed bytes is more than the time
+ * spent compressing and decompressing them, which depends on the link and on how well the responses compress.
+ * <p>
+ * The choice is kept per CVSROOT in a properties file, so that the next analyses don't probe again until it expires.
+ * <p>
+ * Thread safe.
+ */
+class CvsCompressionTuner {
+
+  private static final Logger LOG = Loggers.get(CvsCompressionTuner.class);
+
+  /**
+   * Sub directory of the blame cache directory, not to be taken for blame cache entries
+   */
+  static final String DIR = "compression";
+  static final String FILENAME = "compression.properties";
+  static final int[] LEVELS = {1, 3, 6, 9};
+  /**
+   * Responses sampled before choosing, once enough bytes were received
+   */
+  static final int SAMPLE_RESPONSES = 5;
+  static final int MIN_SAMPLE_BYTES = 8 * 1024;
+  static final int MAX_SAMPLE_BYTES = 256 * 1024;
+  /**
+   * Responses too small to be worth compressing: no compression is chosen when not enough bytes were received after them
+   */
+  static final int MAX_SAMPLE_RESPONSES = 50;
+  static final long TTL_MS = TimeUnit.DAYS.toMillis(7);
+  /**
+   * Minimum decrease of the time per byte to compress at all
+   */
+  private static final double MIN_GAIN = 0.1;
+
+  private final File file;
+  private final Map<String, Integer> levels = new HashMap<>();
+  private final Map<String, Probe> probes = new HashMap<>();
+  private final Properties choices = new Properties();
+
+  CvsCompressionTuner(File file) {
+    this.file = file;
+    load();
+  }
+
+  static CvsCompressionTuner create(CvsConfiguration config) {
+    return new CvsCompressionTuner(new File(new File(config.blameCacheDir(), DIR), FILENAME));
+  }
+
+  /**
+   * The password is not part of the key
+   */
+  static String key(CVSRoot root) {
+    return ":" + root.getMethod() + ":" + (root.getUserName() != null ? (root.getUserName() + "@") : "") + root.getHostName() + ":" + root.getPort()
+      + root.getRepository();
+  }
+
+  /**
+   * @return the compression level of the connections to the server, or null while the responses are sampled
+   */
+  @CheckForNull
+  synchronized Integer level(String key) {
+    Integer level = levels.get(key);
+    if (level != null) {
+      return level;
+    }
+    String choice = choices.getProperty(key);
+    if (choice == null) {
+      return null;
+    }
+    try {
+      String[] fields = choice.split(",");
+      long chosenAt = Long.parseLong(fields[1]);
+      if (System.currentTimeMillis() - chosenAt > TTL_MS) {
+        return null;
+      }
+      level = Integer.parseInt(fields[0]);
+    } catch (RuntimeException e) {
+      LOG.debug("Ignoring invalid compression choice of " + key + ": " + choice);
+      return null;
+    }
+    levels.put(key, level);
+    return level;
+  }
+
+  /**
+   * Record a response received on an uncompressed connection, and choose the level once enough responses were sampled
+   */
+  synchronized void sampled(String key, Sample sample) {
+    if (levels.containsKey(key)) {
+      return;
+    }
+    Probe probe = probes.computeIfAbsent(key, k -> new Probe());
+    probe.add(sample);
+    int level;
+    if (probe.responses >= SAMPLE_RESPONSES && probe.bytes.size() >= MIN_SAMPLE_BYTES) {
+      double nanosPerByte = (double) probe.nanos / probe.count;
+      level = choose(nanosPerByte, probe.bytes.toByteArray());
+      LOG.info(String.format(Locale.ENGLISH, "Compression level %d chosen for %s (%.1f ns per byte received)", level, key, nanosPerByte));
+    } else if (probe.responses >= MAX_SAMPLE_RESPONSES) {
+      level = 0;
+      LOG.info("No compression for " + key + ": responses are too small");
+    } else {
+      return;
+    }
+    probes.remove(key);
+    levels.put(key, level);
+    choices.setProperty(key, level + "," + System.currentTimeMillis());
+    store();
+  }
+
+  /**
+   * Estimated time per byte of response with each level, the one of the server being approximated by the local one
+   */
+  static int choose(double nanosPerByte, byte[] sample) {
+    int best = 0;
+    double bestCost = nanosPerByte;
+    for (int level : LEVELS) {
+      double cost = cost(level, nanosPerByte, sample);
+      if (cost < bestCost) {
+        best = level;
+        bestCost = cost;
+      }
+    }
+    return bestCost <= nanosPerByte * (1 - MIN_GAIN) ? best : 0;
+  }
+
+  private static double cost(int level, double nanosPerByte, byte[] sample) {
+    byte[] compressed = new byte[sample.length + 64];
+    long best = Long.MAX_VALUE;
+    int compressedSize = 0;
+    // Best of two runs, the first one being penalized by the JIT
+    for (int run = 0; run < 2; run++) {
+      long start = System.nanoTime();
+      compressedSize = deflate(level, sample, compressed);
+      inflate(compressed, compressedSize, sample.length);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return (double) compressedSize / sample.length * nanosPerByte + (double) best / sample.length;
+  }
+
+  private static int deflate(int level, byte[] input, byte[] output) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      int size = 0;
+      while (!deflater.finished() && size < output.length) {
+        size += deflater.deflate(output, size, output.length - size);
+      }
+      return size;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void inflate(byte[] input, int length, int size) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(input, 0, length);
+      inflater.inflate(new byte[size]);
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private void load() {
+    if (!file.isFile()) {
+      return;
+    }
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.ISO_8859_1)) {
+      choices.load(reader);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Ignoring invalid compression choices " + file.getAbsolutePath() + ": " + e.getMessage());
+    }
+  }
+
+  private void store() {
+    try {
+      Path dir = file.getParentFile().toPath();
+      Files.createDirectories(dir);
+      // Written aside then moved, like blame cache entries, so that concurrent analyses never read a partial file
+      Path tmp = Files.createTempFile(dir, FILENAME, ".tmp");
+      try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.ISO_8859_1)) {
+        choices.store(writer, "Compression level of CVS connections, and when it was chosen");
+      }
+      Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to write " + file.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Bytes received for a command on an uncompressed connection, and the time spent waiting for them on the network
+   */
+  static class Sample {
+    private final byte[] bytes;
+    private final long count;
+    private final long nanos;
+
+    Sample(byte[] bytes, long count, long nanos) {
+      this.bytes = bytes;
+      this.count = count;
+      this.nanos = nanos;
+    }
+  }
+
+  private static class Probe {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int responses;
+    private long count;
+    private long nanos;
+
+    private void add(Sample sample) {
+      responses++;
+      count += sample.count;
+      nanos += sample.nanos;
+      bytes.write(sample.bytes, 0, Math.min(sample.bytes.length, MAX_SAMPLE_BYTES - bytes.size()));
+    }
+  }
+}
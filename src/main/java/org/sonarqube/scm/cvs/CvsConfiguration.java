@@ -19,6 +19,7 @@
  */
 package org.sonarqube.scm.cvs;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import javax.annotation.CheckForNull;
@@ -43,6 +44,25 @@ public class CvsConfiguration {
   public static final String COMPRESSION_LEVEL_PROP_KEY = "sonar.cvs.compressionLevel";
   public static final String USE_CVSRC_PROP_KEY = "sonar.cvs.useCvsrc";
   public static final String REV_PROP_KEY = "sonar.cvs.revision";
+  public static final String REUSE_CONNECTION_PROP_KEY = "sonar.cvs.reuseConnection";
+  public static final String BLAME_THREADS_PROP_KEY = "sonar.cvs.blame.threads";
+  public static final String BLAME_BATCH_SIZE_PROP_KEY = "sonar.cvs.blame.batchSize";
+  public static final String LOCAL_REPOSITORY_PROP_KEY = "sonar.cvs.localRepository";
+  public static final String BLAME_CACHE_PROP_KEY = "sonar.cvs.blame.cache";
+  public static final String BLAME_CACHE_DIR_PROP_KEY = "sonar.cvs.blame.cache.dir";
+  public static final String BLAME_CACHE_MAX_SIZE_PROP_KEY = "sonar.cvs.blame.cache.maxSize";
+  public static final String BLAME_TIMEOUT_PROP_KEY = "sonar.cvs.blame.timeout";
+  public static final String BLAME_RETRIES_PROP_KEY = "sonar.cvs.blame.retries";
+  public static final String BLAME_HEDGE_PROP_KEY = "sonar.cvs.blame.hedge";
+  public static final String BLAME_SKIP_FAILURES_PROP_KEY = "sonar.cvs.blame.skipFailures";
+  public static final String BLAME_MODULE_PROP_KEY = "sonar.cvs.blame.module";
+  public static final String BLAME_RANNOTATE_PROP_KEY = "sonar.cvs.blame.rannotate";
+  public static final String COMPRESSION_AUTO_PROP_KEY = "sonar.cvs.compression.auto";
+  public static final String BLAME_PIPELINE_PROP_KEY = "sonar.cvs.blame.pipeline";
+  public static final String BLAME_VIRTUAL_THREADS_PROP_KEY = "sonar.cvs.blame.virtualThreads";
+  public static final String BLAME_MAX_LINES_PROP_KEY = "sonar.cvs.blame.maxLines";
+  public static final String BLAME_INCREMENTAL_PROP_KEY = "sonar.cvs.blame.incremental";
+  public static final String BLAME_LOCAL_CHANGES_PROP_KEY = "sonar.cvs.blame.localChanges";
 
   public static final String CVS_ROOT_PROP_KEY = "sonar.cvs.cvsRoot";
 
@@ -125,6 +145,184 @@ public class CvsConfiguration {
         .category(CoreProperties.CATEGORY_SCM)
         .subCategory(CATEGORY_CVS)
         .index(7)
+        .build(),
+      PropertyDefinition.builder(REUSE_CONNECTION_PROP_KEY)
+        .name("Reuse connection")
+        .description("Execute all annotate commands of the analysis over a single connection instead of opening one per file")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(8)
+        .build(),
+      PropertyDefinition.builder(BLAME_THREADS_PROP_KEY)
+        .name("Blame threads")
+        .description("Number of files annotated concurrently, each one over its own connection")
+        .type(PropertyType.INTEGER)
+        .defaultValue("1")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(9)
+        .build(),
+      PropertyDefinition.builder(BLAME_BATCH_SIZE_PROP_KEY)
+        .name("Blame batch size")
+        .description("Maximum number of files annotated by a single request. Files of a same directory are grouped together.")
+        .type(PropertyType.INTEGER)
+        .defaultValue("1")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(10)
+        .build(),
+      PropertyDefinition.builder(LOCAL_REPOSITORY_PROP_KEY)
+        .name("Local repository")
+        .description("Path of the repository when it is mounted on the file system. Blame is then computed from RCS files instead of "
+          + "being requested to the server. Not needed for :local: CVSRoot.")
+        .type(PropertyType.STRING)
+        .onlyOnQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(BLAME_CACHE_PROP_KEY)
+        .name("Blame cache")
+        .description("Keep blame of each file revision between analyses, so that only files checked out at a new revision are annotated")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(BLAME_CACHE_DIR_PROP_KEY)
+        .name("Blame cache directory")
+        .description("Directory of the blame cache. Default is ~/.sonar/cvs-blame-cache")
+        .type(PropertyType.STRING)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(13)
+        .build(),
+      PropertyDefinition.builder(BLAME_CACHE_MAX_SIZE_PROP_KEY)
+        .name("Blame cache maximum size")
+        .description("Maximum size of the blame cache in MB. Least recently used entries are evicted beyond.")
+        .type(PropertyType.INTEGER)
+        .defaultValue("100")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(14)
+        .build(),
+      PropertyDefinition.builder(BLAME_TIMEOUT_PROP_KEY)
+        .name("Blame timeout")
+        .description("Maximum time in seconds to annotate a file. A command exceeding the time of its files is aborted and retried. 0 for no limit.")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(15)
+        .build(),
+      PropertyDefinition.builder(BLAME_RETRIES_PROP_KEY)
+        .name("Blame retries")
+        .description("Number of times a failed annotate command is retried on a new connection, with an exponential backoff")
+        .type(PropertyType.INTEGER)
+        .defaultValue("1")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(16)
+        .build(),
+      PropertyDefinition.builder(BLAME_HEDGE_PROP_KEY)
+        .name("Hedged blame requests")
+        .description("Send an annotate command again on another connection when it takes more than 95% of the previous ones, and keep the first response")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(17)
+        .build(),
+      PropertyDefinition.builder(BLAME_SKIP_FAILURES_PROP_KEY)
+        .name("Skip files failing blame")
+        .description("Files whose annotate command still fails after retries are reported as skipped instead of failing the analysis")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(18)
+        .build(),
+      PropertyDefinition.builder(BLAME_MODULE_PROP_KEY)
+        .name("Blame whole module")
+        .description("Annotate all the files of the module with a single recursive rannotate command, instead of one command per file or batch. "
+          + "Faster for full analyses where most files need blame.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(19)
+        .build(),
+      PropertyDefinition.builder(BLAME_RANNOTATE_PROP_KEY)
+        .name("Blame by repository path")
+        .description("Annotate files by their path in the repository (rannotate) at the revision of their entry, instead of sending the state "
+          + "of the working copy with each command. Files added or removed locally are still annotated from the working copy.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(20)
+        .build(),
+      PropertyDefinition.builder(COMPRESSION_AUTO_PROP_KEY)
+        .name("Automatic compression")
+        .description("Compress the connections (like cvs -z) at the level measured to be the fastest for the link to the server, "
+          + "or not at all on fast links. The choice is kept per CVSROOT in the blame cache directory for 7 days.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(21)
+        .build(),
+      PropertyDefinition.builder(BLAME_PIPELINE_PROP_KEY)
+        .name("Pipelined blame")
+        .description("Parse annotate output and report blame on other threads than the one reading from the server, "
+          + "so that network and CPU overlap.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(22)
+        .build(),
+      PropertyDefinition.builder(BLAME_VIRTUAL_THREADS_PROP_KEY)
+        .name("Blame on virtual threads")
+        .description("On Java 21 and later, annotate each file or batch on its own virtual thread. The number of blame threads is then "
+          + "only the maximum number of concurrent commands, and can be raised for high latency servers without using more threads.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(23)
+        .build(),
+      PropertyDefinition.builder(BLAME_MAX_LINES_PROP_KEY)
+        .name("Maximum lines to blame")
+        .description("Files with more lines are not annotated, like binary files (-kb in CVS/Entries) which are never annotated. 0 for no limit.")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(24)
+        .build(),
+      PropertyDefinition.builder(BLAME_INCREMENTAL_PROP_KEY)
+        .name("Incremental blame")
+        .description("When the blame of the previous revision of a file is in the blame cache, only get the differences with the new "
+          + "revision from the server, and attribute the changed lines to it instead of annotating the whole file again.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(25)
+        .build(),
+      PropertyDefinition.builder(BLAME_LOCAL_CHANGES_PROP_KEY)
+        .name("Blame local changes")
+        .description("Align the blame of files modified in the working copy with their content: lines changed or added locally are "
+          + "attributed to an uncommitted revision, dated from the last modification of the file.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue(FALSE)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CVS)
+        .index(26)
         .build());
   }
 
@@ -165,4 +363,83 @@ public class CvsConfiguration {
     return settings.get(PASSPHRASE_PROP_KEY).orElse(null);
   }
 
+  public boolean reuseConnection() {
+    return settings.getBoolean(REUSE_CONNECTION_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + REUSE_CONNECTION_PROP_KEY));
+  }
+
+  public int blameThreads() {
+    return settings.getInt(BLAME_THREADS_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_THREADS_PROP_KEY));
+  }
+
+  public int blameBatchSize() {
+    return settings.getInt(BLAME_BATCH_SIZE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_BATCH_SIZE_PROP_KEY));
+  }
+
+  @CheckForNull
+  public String localRepository() {
+    return settings.get(LOCAL_REPOSITORY_PROP_KEY).orElse(null);
+  }
+
+  public boolean blameCacheEnabled() {
+    return settings.getBoolean(BLAME_CACHE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_CACHE_PROP_KEY));
+  }
+
+  public File blameCacheDir() {
+    return settings.get(BLAME_CACHE_DIR_PROP_KEY)
+      .map(File::new)
+      .orElseGet(() -> new File(System.getProperty("user.home"), ".sonar/cvs-blame-cache"));
+  }
+
+  public int blameCacheMaxSize() {
+    return settings.getInt(BLAME_CACHE_MAX_SIZE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_CACHE_MAX_SIZE_PROP_KEY));
+  }
+
+  public int blameTimeout() {
+    return settings.getInt(BLAME_TIMEOUT_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_TIMEOUT_PROP_KEY));
+  }
+
+  public int blameRetries() {
+    return settings.getInt(BLAME_RETRIES_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_RETRIES_PROP_KEY));
+  }
+
+  public boolean blameHedge() {
+    return settings.getBoolean(BLAME_HEDGE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_HEDGE_PROP_KEY));
+  }
+
+  public boolean blameSkipFailures() {
+    return settings.getBoolean(BLAME_SKIP_FAILURES_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_SKIP_FAILURES_PROP_KEY));
+  }
+
+  public boolean blameModule() {
+    return settings.getBoolean(BLAME_MODULE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_MODULE_PROP_KEY));
+  }
+
+  public boolean blameRannotate() {
+    return settings.getBoolean(BLAME_RANNOTATE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_RANNOTATE_PROP_KEY));
+  }
+
+  public boolean compressionAuto() {
+    return settings.getBoolean(COMPRESSION_AUTO_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + COMPRESSION_AUTO_PROP_KEY));
+  }
+
+  public boolean blamePipeline() {
+    return settings.getBoolean(BLAME_PIPELINE_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_PIPELINE_PROP_KEY));
+  }
+
+  public boolean blameVirtualThreads() {
+    return settings.getBoolean(BLAME_VIRTUAL_THREADS_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_VIRTUAL_THREADS_PROP_KEY));
+  }
+
+  public int blameMaxLines() {
+    return settings.getInt(BLAME_MAX_LINES_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_MAX_LINES_PROP_KEY));
+  }
+
+  public boolean blameIncremental() {
+    return settings.getBoolean(BLAME_INCREMENTAL_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_INCREMENTAL_PROP_KEY));
+  }
+
+  public boolean blameLocalChanges() {
+    return settings.getBoolean(BLAME_LOCAL_CHANGES_PROP_KEY).orElseThrow(() -> new IllegalStateException("Missing default value of " + BLAME_LOCAL_CHANGES_PROP_KEY));
+  }
+
 }
@@ -0,0 +1,124 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.netbeans.lib.cvsclient.admin.Entry;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Revision and timestamp of the CVS/Entries entry of each file at the time of the previous analysis.
+ * A file whose entry didn't change has the same blame as during the previous analysis.
+ * <p>
+ * Thread safe.
+ */
+class CvsEntriesSnapshot {
+
+  private static final Logger LOG = Loggers.get(CvsEntriesSnapshot.class);
+
+  private static final char SEPARATOR = '\t';
+
+  private final File file;
+  private final Map<String, String> previous;
+  private final Map<String, String> current = new ConcurrentHashMap<>();
+
+  private CvsEntriesSnapshot(File file, Map<String, String> previous) {
+    this.file = file;
+    this.previous = previous;
+  }
+
+  static CvsEntriesSnapshot load(File file) {
+    Map<String, String> previous = new HashMap<>();
+    if (file.isFile()) {
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int separator = line.indexOf(SEPARATOR);
+          if (separator > 0) {
+            previous.put(line.substring(0, separator), line.substring(separator + 1));
+          }
+        }
+      } catch (IOException e) {
+        LOG.debug("Ignoring invalid snapshot " + file.getAbsolutePath() + ": " + e.getMessage());
+        previous.clear();
+      }
+    }
+    return new CvsEntriesSnapshot(file, previous);
+  }
+
+  /**
+   * Record the current entry of the file
+   *
+   * @return true when the entry of the file is the same than during previous analysis
+   */
+  boolean unchanged(String relativePath, @Nullable Entry entry) {
+    if (entry == null || entry.isNewUserFile() || entry.isUserFileToBeRemoved()) {
+      return false;
+    }
+    String state = entry.getRevision() + SEPARATOR + (entry.getLastModified() != null ? entry.getLastModified().getTime() : "");
+    current.put(relativePath, state);
+    return state.equals(previous.get(relativePath));
+  }
+
+  /**
+   * @return revision of the entry of the file during previous analysis, null when it was not recorded
+   */
+  @CheckForNull
+  String previousRevision(String relativePath) {
+    String state = previous.get(relativePath);
+    if (state == null) {
+      return null;
+    }
+    int separator = state.indexOf(SEPARATOR);
+    return separator > 0 ? state.substring(0, separator) : null;
+  }
+
+  /**
+   * Save the entries recorded during this analysis, to be compared with during next one
+   */
+  void save() {
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+          writer.write(entry.getKey() + SEPARATOR + entry.getValue());
+          writer.newLine();
+        }
+      }
+      Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to save snapshot " + file.getAbsolutePath() + ": " + e.getMessage());
+    }
+  }
+}
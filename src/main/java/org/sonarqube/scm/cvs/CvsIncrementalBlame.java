@@ -0,0 +1,166 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.netbeans.lib.cvsclient.event.CVSAdapter;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blame of a new revision of a file from the blame of a previous revision and the differences between both, as output by
+ * cvs diff in its normal format: unchanged lines keep their annotation, added and changed lines are annotated with the new revision.
+ * <p>
+ * Only the commands of the diff ("5,7c5,8", "12a13", "20d20") are read, the content lines following them are ignored.
+ */
+final class CvsIncrementalBlame {
+
+  private static final Pattern COMMAND = Pattern.compile("(\\d+)(?:,(\\d+))?([acd])(\\d+)(?:,(\\d+))?");
+  /**
+   * "date: 2014/10/21 10:00:00;  author: julien;  state: Exp;", or "date: 2014-10-21 10:00:00 +0000;" since CVS 1.12
+   */
+  private static final Pattern LOG_DATE = Pattern.compile("date: (\\d{4})[/-](\\d{1,2})[/-](\\d{1,2})[^;]*;\\s+author: ([^;]+);.*");
+
+  private CvsIncrementalBlame() {
+    // only static methods
+  }
+
+  /**
+   * @return true when lines are added or changed, so that the annotation of the new revision is needed
+   */
+  static boolean addsLines(List<String> diff) {
+    for (String line : diff) {
+      Matcher matcher = COMMAND.matcher(line);
+      if (matcher.matches() && !"d".equals(matcher.group(3))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param revision annotation of the added and changed lines, may only be null when the diff doesn't add any line
+   * @throws IllegalStateException when the differences don't apply to the blame of the previous revision
+   */
+  static CvsCompactBlame apply(List<BlameLine> previous, List<String> diff, @Nullable BlameLine revision) {
+    CvsCompactBlame result = new CvsCompactBlame();
+    int copied = 0;
+    for (String line : diff) {
+      Matcher matcher = COMMAND.matcher(line);
+      if (!matcher.matches()) {
+        continue;
+      }
+      int leftStart = Integer.parseInt(matcher.group(1));
+      int leftEnd = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : leftStart;
+      char type = matcher.group(3).charAt(0);
+      int rightStart = Integer.parseInt(matcher.group(4));
+      int rightEnd = matcher.group(5) != null ? Integer.parseInt(matcher.group(5)) : rightStart;
+      // Lines are added after the left line, changed or deleted from it
+      int unchangedEnd = type == 'a' ? leftStart : (leftStart - 1);
+      if (unchangedEnd < copied || leftEnd < leftStart || leftEnd > previous.size()) {
+        throw new IllegalStateException("Unexpected difference " + line + " with a previous revision of " + previous.size() + " lines");
+      }
+      copy(previous, copied, unchangedEnd, result);
+      copied = type == 'a' ? leftStart : leftEnd;
+      if (type == 'd') {
+        if (rightStart != result.size()) {
+          throw new IllegalStateException("Unexpected difference " + line + " after " + result.size() + " lines");
+        }
+      } else {
+        if (rightStart != result.size() + 1 || rightEnd < rightStart) {
+          throw new IllegalStateException("Unexpected difference " + line + " after " + result.size() + " lines");
+        }
+        if (revision == null) {
+          throw new IllegalStateException("Missing annotation of the lines of difference " + line);
+        }
+        result.add(rightEnd - rightStart + 1, revision.revision(), revision.author(), revision.date());
+      }
+    }
+    copy(previous, copied, previous.size(), result);
+    return result;
+  }
+
+  private static void copy(List<BlameLine> previous, int from, int to, CvsCompactBlame result) {
+    for (int i = from; i < to; i++) {
+      BlameLine line = previous.get(i);
+      result.add(line.revision(), line.author(), line.date());
+    }
+  }
+
+  /**
+   * Annotation of the lines of a revision from the output of cvs log. Like with annotate, only the day of the date
+   * and the first characters of the author are kept.
+   *
+   * @return null when the revision is not in the output
+   */
+  @CheckForNull
+  static BlameLine revision(List<String> log, String revision, CvsBlameDictionary dictionary) {
+    boolean found = false;
+    for (String line : log) {
+      if (found) {
+        Matcher matcher = LOG_DATE.matcher(line);
+        if (!matcher.matches()) {
+          return null;
+        }
+        return new BlameLine()
+          .revision(dictionary.intern(revision))
+          .author(dictionary.intern(RcsAnnotator.truncate(matcher.group(4).trim())))
+          .date(dictionary.date(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3))));
+      }
+      found = line.equals("revision " + revision);
+    }
+    return null;
+  }
+
+  /**
+   * Lines of the output of a command
+   */
+  static class Output extends CVSAdapter {
+    private final StringBuffer taggedLine = new StringBuffer();
+    private final List<String> stdout = new ArrayList<>();
+    private final StringBuilder stderr = new StringBuilder();
+
+    @Override
+    public void messageSent(MessageEvent e) {
+      String message = e.isTagged() ? MessageEvent.parseTaggedMessage(taggedLine, e.getMessage()) : e.getMessage();
+      if (message == null) {
+        return;
+      }
+      if (e.isError()) {
+        stderr.append(message).append("\n");
+      } else {
+        stdout.add(message);
+      }
+    }
+
+    List<String> stdout() {
+      return stdout;
+    }
+
+    String stderr() {
+      return stderr.toString();
+    }
+  }
+}
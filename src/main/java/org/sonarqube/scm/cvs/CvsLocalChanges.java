@@ -0,0 +1,177 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blame of a working file modified since it was checked out, from the blame of its revision and the content of the annotated
+ * lines: lines found in the same order in both keep their blame, the other lines of the working file are attributed to an
+ * uncommitted revision, dated from the last modification of the file.
+ * <p>
+ * Lines are matched with the Myers difference algorithm, once the common first and last lines are set aside.
+ */
+final class CvsLocalChanges {
+
+  static final String UNCOMMITTED = "uncommitted";
+
+  /**
+   * Beyond this number of added and removed lines, the remaining lines are considered changed instead of searching further
+   */
+  static final int MAX_EDITS = 1000;
+
+  private CvsLocalChanges() {
+    // only static methods
+  }
+
+  /**
+   * The netbeans client decodes annotate output with the default charset, so does this method, for equal lines to be equal strings
+   *
+   * @return lines of the working file, without the empty line after the last line break like annotate
+   */
+  static List<String> readLines(File workingFile) throws IOException {
+    String content = new String(Files.readAllBytes(workingFile.toPath()), Charset.defaultCharset());
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    while (start < content.length()) {
+      int end = content.indexOf('\n', start);
+      if (end < 0) {
+        end = content.length();
+      }
+      lines.add(content.substring(start, end));
+      start = end + 1;
+    }
+    return lines;
+  }
+
+  static CvsCompactBlame align(List<BlameLine> annotated, List<String> annotatedContents, List<String> workingLines, Date modified) {
+    int[] matches = matches(withoutCarriageReturns(annotatedContents), withoutCarriageReturns(workingLines));
+    CvsCompactBlame result = new CvsCompactBlame();
+    for (int match : matches) {
+      if (match >= 0) {
+        BlameLine line = annotated.get(match);
+        result.add(line.revision(), line.author(), line.date());
+      } else {
+        result.add(UNCOMMITTED, null, modified);
+      }
+    }
+    return result;
+  }
+
+  private static List<String> withoutCarriageReturns(List<String> lines) {
+    List<String> result = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      result.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+    }
+    return result;
+  }
+
+  /**
+   * @return for each line of the working file, index of the same line in the annotated file, or -1
+   */
+  static int[] matches(List<String> annotated, List<String> working) {
+    int[] result = new int[working.size()];
+    Arrays.fill(result, -1);
+    int n = annotated.size();
+    int m = working.size();
+    int prefix = 0;
+    while (prefix < n && prefix < m && annotated.get(prefix).equals(working.get(prefix))) {
+      result[prefix] = prefix;
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < n - prefix && suffix < m - prefix && annotated.get(n - 1 - suffix).equals(working.get(m - 1 - suffix))) {
+      result[m - 1 - suffix] = n - 1 - suffix;
+      suffix++;
+    }
+    match(annotated.subList(prefix, n - suffix), working.subList(prefix, m - suffix), prefix, prefix, result);
+    return result;
+  }
+
+  /**
+   * Shortest edit script of Myers: for each number of edits d, the furthest reaching path on each diagonal k = x - y, where x is
+   * a line of the annotated file and y a line of the working file. The path is then followed back from the end.
+   */
+  private static void match(List<String> a, List<String> b, int aOffset, int bOffset, int[] result) {
+    int n = a.size();
+    int m = b.size();
+    if (n == 0 || m == 0) {
+      return;
+    }
+    int maxEdits = Math.min(n + m, MAX_EDITS);
+    int center = maxEdits + 1;
+    int[] v = new int[2 * maxEdits + 3];
+    // Diagonals reachable with d edits, before step d: from k = -d - 1 to k = d + 1
+    List<int[]> trace = new ArrayList<>();
+    for (int d = 0; d <= maxEdits; d++) {
+      trace.add(Arrays.copyOfRange(v, center - d - 1, center + d + 2));
+      for (int k = -d; k <= d; k += 2) {
+        int x;
+        if (k == -d || (k != d && v[center + k - 1] < v[center + k + 1])) {
+          // Line added to the working file
+          x = v[center + k + 1];
+        } else {
+          // Line removed from the annotated file
+          x = v[center + k - 1] + 1;
+        }
+        int y = x - k;
+        while (x < n && y < m && a.get(x).equals(b.get(y))) {
+          x++;
+          y++;
+        }
+        v[center + k] = x;
+        if (x >= n && y >= m) {
+          backtrack(trace, n, m, aOffset, bOffset, result);
+          return;
+        }
+      }
+    }
+    // Too many differences: unmatched lines are considered changed
+  }
+
+  private static void backtrack(List<int[]> trace, int n, int m, int aOffset, int bOffset, int[] result) {
+    int x = n;
+    int y = m;
+    for (int d = trace.size() - 1; d >= 0; d--) {
+      int[] v = trace.get(d);
+      // Index of diagonal k in the state before step d
+      int center = d + 1;
+      int k = x - y;
+      int previousK = (k == -d || (k != d && v[center + k - 1] < v[center + k + 1])) ? (k + 1) : (k - 1);
+      int previousX = v[center + previousK];
+      int previousY = previousX - previousK;
+      while (x > previousX && y > previousY) {
+        x--;
+        y--;
+        result[bOffset + y] = aOffset + x;
+      }
+      x = previousX;
+      y = previousY;
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.ScannerSide;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Timers and counters of a blame execution, reported at its end in the log and in a JSON file of the work directory,
+ * so that the figures can be compared across builds.
+ * <p>
+ * Thread safe.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+@ScannerSide
+public class CvsMetrics {
+
+  static final String REPORT_FILENAME = "cvs-blame-metrics.json";
+
+  private static final Logger LOG = Loggers.get(CvsMetrics.class);
+  private static final int SLOWEST_FILES = 10;
+
+  enum Phase {
+    CONNECT("Connect"),
+    COMMAND("Commands on server"),
+    PARSE("Parse annotate output"),
+    RCS("Blame from RCS files"),
+    CACHE("Blame from cache"),
+    DIFF("Blame from revision diffs");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder files = new LongAdder();
+  private final LongAdder lines = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder hedged = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  /**
+   * Smallest duration first, so that it is the one removed when full
+   */
+  private final PriorityQueue<FileTiming> slowestFiles = new PriorityQueue<>(Comparator.comparingLong(t -> t.nanos));
+
+  public CvsMetrics() {
+    for (Phase phase : Phase.values()) {
+      timers.put(phase, new Timer());
+    }
+  }
+
+  void time(Phase phase, long nanos) {
+    timers.get(phase).add(nanos);
+  }
+
+  long count(Phase phase) {
+    return timers.get(phase).count.sum();
+  }
+
+  void transferred(long in, long out) {
+    bytesIn.add(in);
+    bytesOut.add(out);
+  }
+
+  long bytesIn() {
+    return bytesIn.sum();
+  }
+
+  long bytesOut() {
+    return bytesOut.sum();
+  }
+
+  void retried() {
+    retries.increment();
+  }
+
+  long retries() {
+    return retries.sum();
+  }
+
+  void hedged() {
+    hedged.increment();
+  }
+
+  long hedgedCount() {
+    return hedged.sum();
+  }
+
+  void skipped(int fileCount) {
+    skipped.add(fileCount);
+  }
+
+  long skippedCount() {
+    return skipped.sum();
+  }
+
+  long lines() {
+    return lines.sum();
+  }
+
+  long files() {
+    return files.sum();
+  }
+
+  /**
+   * @param nanos time to get the blame of the file, shared with the other files when annotated in the same command
+   */
+  void blamed(String path, long nanos, int lineCount) {
+    files.increment();
+    lines.add(lineCount);
+    synchronized (slowestFiles) {
+      if (slowestFiles.size() < SLOWEST_FILES || slowestFiles.peek().nanos < nanos) {
+        slowestFiles.add(new FileTiming(path, nanos, lineCount));
+        if (slowestFiles.size() > SLOWEST_FILES) {
+          slowestFiles.poll();
+        }
+      }
+    }
+  }
+
+  List<FileTiming> slowestFiles() {
+    List<FileTiming> result;
+    synchronized (slowestFiles) {
+      result = new ArrayList<>(slowestFiles);
+    }
+    result.sort(Comparator.comparingLong((FileTiming t) -> t.nanos).reversed());
+    return result;
+  }
+
+  /**
+   * Forget the figures of a previous blame execution, like the one of another module
+   */
+  void reset() {
+    timers.values().forEach(Timer::reset);
+    bytesIn.reset();
+    bytesOut.reset();
+    files.reset();
+    lines.reset();
+    retries.reset();
+    hedged.reset();
+    skipped.reset();
+    synchronized (slowestFiles) {
+      slowestFiles.clear();
+    }
+  }
+
+  void report(long elapsedNanos, File workDir) {
+    LOG.info(summary(elapsedNanos));
+    File reportFile = new File(workDir, REPORT_FILENAME);
+    try {
+      Files.createDirectories(workDir.toPath());
+      try (Writer writer = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+        writeJson(elapsedNanos, writer);
+      }
+      LOG.debug("CVS blame metrics written to " + reportFile.getAbsolutePath());
+    } catch (IOException e) {
+      LOG.warn("Unable to write " + reportFile.getAbsolutePath(), e);
+    }
+  }
+
+  String summary(long elapsedNanos) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ENGLISH, "CVS blame of %d file(s), %d line(s) in %d ms, %d retries, %d hedged, %d skipped, %d KB received, %d KB sent%n",
+      files(), lines(), millis(elapsedNanos), retries(), hedgedCount(), skippedCount(), bytesIn() / 1024, bytesOut() / 1024));
+    sb.append(String.format(Locale.ENGLISH, "  %-24s %8s %10s %10s%n", "Phase", "Count", "Total (ms)", "Max (ms)"));
+    for (Map.Entry<Phase, Timer> timer : timers.entrySet()) {
+      Timer t = timer.getValue();
+      sb.append(String.format(Locale.ENGLISH, "  %-24s %8d %10d %10d%n", timer.getKey().label, t.count.sum(), millis(t.total.sum()), millis(t.max.get())));
+    }
+    List<FileTiming> slowest = slowestFiles();
+    if (!slowest.isEmpty()) {
+      sb.append("  Slowest files:");
+      for (FileTiming file : slowest) {
+        sb.append(String.format(Locale.ENGLISH, "%n    %8d ms %8d line(s)  %s", millis(file.nanos), file.lines, file.path));
+      }
+    }
+    return sb.toString().trim();
+  }
+
+  private void writeJson(long elapsedNanos, Writer writer) {
+    JsonWriter json = JsonWriter.of(writer);
+    json.beginObject()
+      .prop("elapsedMs", millis(elapsedNanos))
+      .prop("files", files())
+      .prop("lines", lines())
+      .prop("retries", retries())
+      .prop("hedged", hedgedCount())
+      .prop("skipped", skippedCount())
+      .prop("bytesIn", bytesIn())
+      .prop("bytesOut", bytesOut());
+    json.name("phases").beginObject();
+    for (Map.Entry<Phase, Timer> timer : timers.entrySet()) {
+      Timer t = timer.getValue();
+      json.name(timer.getKey().name().toLowerCase(Locale.ENGLISH)).beginObject()
+        .prop("count", t.count.sum())
+        .prop("totalMs", millis(t.total.sum()))
+        .prop("maxMs", millis(t.max.get()))
+        .endObject();
+    }
+    json.endObject();
+    json.name("slowestFiles").beginArray();
+    for (FileTiming file : slowestFiles()) {
+      json.beginObject()
+        .prop("path", file.path)
+        .prop("ms", millis(file.nanos))
+        .prop("lines", file.lines)
+        .endObject();
+    }
+    json.endArray();
+    json.endObject().close();
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private static class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private void add(long nanos) {
+      count.increment();
+      total.add(nanos);
+      max.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void reset() {
+      count.reset();
+      total.reset();
+      max.set(0);
+    }
+  }
+
+  static class FileTiming {
+    private final String path;
+    private final long nanos;
+    private final int lines;
+
+    private FileTiming(String path, long nanos, int lines) {
+      this.path = path;
+      this.nanos = nanos;
+      this.lines = lines;
+    }
+
+    String path() {
+      return path;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.annotation.CheckForNull;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Consumes the output of a rannotate command, of files or of a whole module. The server streams one section per file, each one
+ * starting with an "Annotations for &lt;path in the repository&gt;" header. A section is handed to the listener as soon as the next one
+ * starts, so that a single file is kept in memory. Sections of files that were not requested are discarded.
+ */
+class CvsModuleBlameConsumer extends CvsBlameConsumer {
+
+  private static final String HEADER = "Annotations for ";
+
+  private final Map<String, InputFile> filesByPath;
+  private final BiConsumer<InputFile, List<BlameLine>> listener;
+
+  @CheckForNull
+  private InputFile currentFile;
+  private CvsCompactBlame currentLines = new CvsCompactBlame();
+  private int discarded = 0;
+
+  /**
+   * @param filesByPath files to blame, by path relative to the root of the repository
+   */
+  CvsModuleBlameConsumer(Map<String, InputFile> filesByPath, BiConsumer<InputFile, List<BlameLine>> listener, CvsBlameDictionary dictionary) {
+    super("", dictionary);
+    this.filesByPath = filesByPath;
+    this.listener = listener;
+  }
+
+  @Override
+  void consume(boolean isError, String message) {
+    if (message.startsWith(HEADER)) {
+      flush();
+      String path = message.substring(HEADER.length()).trim();
+      setFilename(path);
+      currentFile = filesByPath.get(path);
+      if (currentFile == null) {
+        discarded++;
+      }
+    }
+    super.consume(isError, message);
+  }
+
+  @Override
+  @CheckForNull
+  protected CvsCompactBlame currentLines() {
+    return currentFile != null ? currentLines : null;
+  }
+
+  /**
+   * Hand the last section to the listener, once the command completed
+   */
+  void flush() {
+    if (currentFile != null) {
+      listener.accept(currentFile, currentLines);
+      currentFile = null;
+      currentLines = new CvsCompactBlame();
+    }
+  }
+
+  /**
+   * @return number of sections of files that were not requested
+   */
+  int discarded() {
+    return discarded;
+  }
+
+}
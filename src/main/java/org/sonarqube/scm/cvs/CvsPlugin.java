@@ -28,7 +28,8 @@ public final class CvsPlugin implements Plugin {
     context.addExtensions(CvsScmProvider.class,
       CvsBlameCommand.class,
       CvsConfiguration.class,
-      CvsCommandExecutor.class);
+      CvsCommandExecutor.class,
+      CvsMetrics.class);
     context.addExtensions(CvsConfiguration.getProperties());
   }
 }
@@ -19,17 +19,22 @@
  */
 package org.sonarqube.scm.cvs;
 
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.ScmProvider;
 
-import java.io.File;
-
 public class CvsScmProvider extends ScmProvider {
 
   private final CvsBlameCommand blameCommand;
+  private final CvsBranchChanges branchChanges;
 
-  public CvsScmProvider(CvsBlameCommand blameCommand) {
+  public CvsScmProvider(CvsBlameCommand blameCommand, CvsConfiguration config) {
     this.blameCommand = blameCommand;
+    this.branchChanges = new CvsBranchChanges(config, blameCommand);
   }
 
   @Override
@@ -47,4 +52,18 @@ public class CvsScmProvider extends ScmProvider {
   public BlameCommand blameCommand() {
     return this.blameCommand;
   }
+
+  @CheckForNull
+  @Override
+  public Set<Path> branchChangedFiles(String targetBranchName, Path rootBaseDir) {
+    return branchChanges.changedFiles(targetBranchName, rootBaseDir);
+  }
+
+  /**
+   * Not part of the API of SonarQube 6.7, called by more recent versions
+   */
+  @CheckForNull
+  public Map<Path, Set<Integer>> branchChangedLines(String targetBranchName, Path rootBaseDir, Set<Path> files) {
+    return branchChanges.changedLines(targetBranchName, rootBaseDir, files);
+  }
 }
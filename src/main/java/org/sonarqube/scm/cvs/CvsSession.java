@@ -0,0 +1,376 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.CheckForNull;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.netbeans.lib.cvsclient.Client;
+import org.netbeans.lib.cvsclient.admin.StandardAdminHandler;
+import org.netbeans.lib.cvsclient.command.Command;
+import org.netbeans.lib.cvsclient.command.CommandException;
+import org.netbeans.lib.cvsclient.command.GlobalOptions;
+import org.netbeans.lib.cvsclient.connection.AuthenticationException;
+import org.netbeans.lib.cvsclient.connection.Connection;
+import org.netbeans.lib.cvsclient.connection.ConnectionModifier;
+import org.netbeans.lib.cvsclient.event.CVSListener;
+import org.netbeans.lib.cvsclient.request.Request;
+import org.netbeans.lib.cvsclient.request.UnconfiguredRequestException;
+import org.netbeans.lib.cvsclient.response.ResponseException;
+import org.netbeans.lib.cvsclient.util.LoggedDataInputStream;
+import org.netbeans.lib.cvsclient.util.LoggedDataOutputStream;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * An opened connection to a CVS server, together with the client driving the protocol on it.
+ * The initial handshake (Root, Valid-responses, valid-requests, global options) is only sent
+ * with the first command, so several commands can be executed on the same session.
+ */
+class CvsSession {
+
+  private static final Logger LOG = Loggers.get(CvsSession.class);
+  private static final String GZIP_STREAM = "Gzip-stream";
+  /**
+   * Private field of the client with the requests accepted by the server, null when another version of cvsclient doesn't have it
+   */
+  private static final Field VALID_REQUESTS = validRequestsField();
+
+  private final String cvsRoot;
+
+  /**
+   * The connection to the server
+   */
+  private final Connection connection;
+
+  /**
+   * The client that manages interactions with the server
+   */
+  private final Client client;
+
+  /**
+   * Bytes exchanged on the wire since authentication, below any compression
+   */
+  private CountingInputStream countingIn;
+  private CountingOutputStream countingOut;
+  private SamplingInputStream samplingIn;
+
+  /**
+   * Level asked for the connection, even when the server doesn't support compression
+   */
+  private int compressionLevel = 0;
+
+  CvsSession(String cvsRoot, Connection connection) {
+    this.cvsRoot = cvsRoot;
+    this.connection = connection;
+    this.client = new Client(connection, new StandardAdminHandler());
+    countBytes();
+  }
+
+  private void countBytes() {
+    ConnectionModifier counting = new ConnectionModifier() {
+      @Override
+      public void modifyInputStream(LoggedDataInputStream in) {
+        countingIn = new CountingInputStream(in.getUnderlyingStream());
+        samplingIn = new SamplingInputStream(countingIn, CvsSession.this::bytesWritten);
+        in.setUnderlyingStream(samplingIn);
+      }
+
+      @Override
+      public void modifyOutputStream(LoggedDataOutputStream out) {
+        countingOut = new CountingOutputStream(out.getUnderlyingStream());
+        out.setUnderlyingStream(countingOut);
+      }
+    };
+    try {
+      connection.modifyInputStream(counting);
+      connection.modifyOutputStream(counting);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to count bytes exchanged with the server", e);
+    }
+  }
+
+  long bytesRead() {
+    return countingIn != null ? countingIn.getByteCount() : 0;
+  }
+
+  long bytesWritten() {
+    return countingOut != null ? countingOut.getByteCount() : 0;
+  }
+
+  String cvsRoot() {
+    return cvsRoot;
+  }
+
+  /**
+   * Compress both directions of the connection with zlib, like the -z option of the cvs command line. Unlike the
+   * gzip-file-contents request sent by the netbeans client, which only applies to the files sent to the server, responses
+   * are compressed too.
+   * <p>
+   * Must be called before the first command: the handshake is sent, then the Gzip-stream request when the server supports it.
+   *
+   * @return whether the connection is compressed
+   */
+  boolean compress(int level) throws CommandException {
+    StreamCompressionRequest request = new StreamCompressionRequest(level, () -> supports(client, GZIP_STREAM));
+    try {
+      client.processRequests(new ArrayList<>(Collections.singletonList(request)));
+      // Only the handshake was sent, global options are still to be sent with the first command
+      client.setIsFirstCommand(true);
+      compressionLevel = level;
+      if (request.sent) {
+        connection.modifyInputStream(new ConnectionModifier() {
+          @Override
+          public void modifyInputStream(LoggedDataInputStream in) {
+            in.setUnderlyingStream(new InflaterInputStream(in.getUnderlyingStream()));
+          }
+
+          @Override
+          public void modifyOutputStream(LoggedDataOutputStream out) {
+            // Modified by the request
+          }
+        });
+      }
+    } catch (IOException | UnconfiguredRequestException | ResponseException e) {
+      throw new CommandException(e, "Unable to compress the connection");
+    }
+    return request.sent;
+  }
+
+  int compressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Keep the bytes received from now on, up to the given size
+   */
+  void startSampling(int maxBytes) {
+    samplingIn.start(maxBytes);
+  }
+
+  CvsCompressionTuner.Sample stopSampling() {
+    return samplingIn.stop();
+  }
+
+  boolean isOpen() {
+    return connection.isOpen();
+  }
+
+  boolean execute(Command command, GlobalOptions globalOptions, File workingDir, CVSListener listener) throws AuthenticationException, CommandException {
+    client.setLocalPath(workingDir.getAbsolutePath());
+    client.getEventManager().addCVSListener(listener);
+    try {
+      return client.executeCommand(command, globalOptions);
+    } finally {
+      client.getEventManager().removeCVSListener(listener);
+    }
+  }
+
+  /**
+   * The requests accepted by the server are only known by the client once the handshake is done, right before the request is sent
+   */
+  private static boolean supports(Client client, String request) {
+    if (VALID_REQUESTS == null) {
+      return false;
+    }
+    try {
+      Map<?, ?> validRequests = (Map<?, ?>) VALID_REQUESTS.get(client);
+      return validRequests != null && validRequests.containsKey(request);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.debug("Unable to read the requests supported by the server", e);
+      return false;
+    }
+  }
+
+  @CheckForNull
+  private static Field validRequestsField() {
+    try {
+      Field field = Client.class.getDeclaredField("validRequests");
+      field.setAccessible(true);
+      return field;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.warn("Requests supported by CVS servers can't be read from this version of cvsclient, " + GZIP_STREAM + " compression is disabled: " + e);
+      return null;
+    }
+  }
+
+  void close() {
+    if (connection.isOpen()) {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to disconnect", e);
+      }
+    }
+  }
+
+  /**
+   * The request is empty when the server doesn't support it. The input stream is modified by the session, once the response to
+   * the handshake has been read.
+   */
+  private static class StreamCompressionRequest extends Request {
+    private final int level;
+    private final BooleanSupplier supported;
+    private boolean sent = false;
+
+    private StreamCompressionRequest(int level, BooleanSupplier supported) {
+      this.level = level;
+      this.supported = supported;
+    }
+
+    @Override
+    public String getRequestString() {
+      sent = supported.getAsBoolean();
+      return sent ? (GZIP_STREAM + " " + level + "\n") : "";
+    }
+
+    @Override
+    public boolean isResponseExpected() {
+      return false;
+    }
+
+    @Override
+    public void modifyOutputStream(Connection connection) throws IOException {
+      if (sent) {
+        connection.modifyOutputStream(new ConnectionModifier() {
+          @Override
+          public void modifyInputStream(LoggedDataInputStream in) {
+            // Modified by the session once the handshake response has been read
+          }
+
+          @Override
+          public void modifyOutputStream(LoggedDataOutputStream out) {
+            out.setUnderlyingStream(new DeflaterOutputStream(out.getUnderlyingStream(), new Deflater(level), true));
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Keeps the first bytes read while sampling, and the time spent waiting for them: from the moment no byte is available (the
+   * client polls before reading) to the next read. Waiting for the first bytes after a request is the time of the server to
+   * process it, which is not counted.
+   */
+  private static class SamplingInputStream extends ProxyInputStream {
+    private final LongSupplier bytesWritten;
+    private volatile boolean sampling = false;
+    private ByteArrayOutputStream bytes;
+    private int maxBytes;
+    private long count;
+    private long nanos;
+    private long lastBytesWritten;
+    private long starvedSince;
+
+    private SamplingInputStream(InputStream in, LongSupplier bytesWritten) {
+      super(in);
+      this.bytesWritten = bytesWritten;
+    }
+
+    private synchronized void start(int maxBytes) {
+      this.bytes = new ByteArrayOutputStream();
+      this.maxBytes = maxBytes;
+      this.count = 0;
+      this.nanos = 0;
+      this.lastBytesWritten = bytesWritten.getAsLong();
+      this.starvedSince = 0;
+      this.sampling = true;
+    }
+
+    private synchronized CvsCompressionTuner.Sample stop() {
+      sampling = false;
+      CvsCompressionTuner.Sample sample = new CvsCompressionTuner.Sample(bytes == null ? new byte[0] : bytes.toByteArray(), count, nanos);
+      bytes = null;
+      return sample;
+    }
+
+    @Override
+    public int available() throws IOException {
+      int available = super.available();
+      if (sampling && available == 0) {
+        starved();
+      }
+      return available;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!sampling) {
+        return super.read();
+      }
+      available();
+      int b = super.read();
+      if (b >= 0) {
+        sampled(new byte[] {(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (!sampling) {
+        return super.read(b, off, len);
+      }
+      available();
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        sampled(b, off, n);
+      }
+      return n;
+    }
+
+    private synchronized void starved() {
+      if (starvedSince == 0) {
+        starvedSince = System.nanoTime();
+      }
+    }
+
+    private synchronized void sampled(byte[] b, int off, int n) {
+      if (bytes == null) {
+        return;
+      }
+      long written = bytesWritten.getAsLong();
+      if (starvedSince != 0 && written == lastBytesWritten) {
+        nanos += System.nanoTime() - starvedSince;
+      }
+      starvedSince = 0;
+      lastBytesWritten = written;
+      count += n;
+      int kept = Math.min(n, maxBytes - bytes.size());
+      if (kept > 0) {
+        bytes.write(b, off, kept);
+      }
+    }
+  }
+}
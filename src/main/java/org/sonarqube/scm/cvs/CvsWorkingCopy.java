@@ -0,0 +1,190 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.annotation.CheckForNull;
+import org.apache.commons.io.FileUtils;
+import org.netbeans.lib.cvsclient.admin.Entry;
+
+/**
+ * Reads the administrative files (CVS/Repository, CVS/Entries, CVS/Entries.Log) of a working copy.
+ * Files of a directory are only read once.
+ * <p>
+ * Thread safe.
+ */
+class CvsWorkingCopy {
+
+  private static final String ADMIN_DIR = "CVS";
+
+  private final Map<File, Optional<String>> repositories = new ConcurrentHashMap<>();
+  private final Map<File, Map<String, Entry>> entries = new ConcurrentHashMap<>();
+
+  /**
+   * @return content of CVS/Repository: path of the directory in the repository, either absolute or relative to the CVSRoot
+   */
+  @CheckForNull
+  String repository(File workingDir) {
+    return repositories.computeIfAbsent(workingDir, dir -> {
+      File repositoryFile = new File(dir, "CVS/Repository");
+      if (!repositoryFile.isFile()) {
+        return Optional.empty();
+      }
+      return Optional.of(read(repositoryFile).trim());
+    }).orElse(null);
+  }
+
+  /**
+   * @return path of the file in the repository, null when the directory is not under CVS control
+   */
+  @CheckForNull
+  String repositoryPath(File workingFile) {
+    String repository = repository(workingFile.getParentFile());
+    return repository != null ? (repository + "/" + workingFile.getName()) : null;
+  }
+
+  /**
+   * @return entry of the file in CVS/Entries, null when the file is not under CVS control
+   */
+  @CheckForNull
+  Entry entry(File workingFile) {
+    return entries.computeIfAbsent(workingFile.getParentFile(), CvsWorkingCopy::readEntries).get(workingFile.getName());
+  }
+
+  /**
+   * Like cvs, a file is modified when its timestamp is not the one of its entry, which has a precision of a second, or after a
+   * merge with conflicts
+   *
+   * @return true when the committed file has local changes
+   */
+  boolean locallyModified(File workingFile) {
+    Entry entry = entry(workingFile);
+    if (entry == null || entry.isNewUserFile() || entry.isUserFileToBeRemoved()) {
+      return false;
+    }
+    Date timestamp = entry.getLastModified();
+    return timestamp == null || entry.hadConflicts() || timestamp.getTime() / 1000 != workingFile.lastModified() / 1000;
+  }
+
+  /**
+   * Read the CVS/Entries files of all the directories of the working copy in a single walk,
+   * instead of each directory on demand.
+   *
+   * @return number of entries
+   */
+  int scan(File baseDir) {
+    AtomicInteger count = new AtomicInteger();
+    try {
+      Files.walkFileTree(baseDir.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          if (ADMIN_DIR.equals(dir.getFileName().toString())) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          File workingDir = dir.toFile();
+          if (!new File(workingDir, ADMIN_DIR).isDirectory()) {
+            // Not under CVS control, nor any of its sub directories
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          count.addAndGet(entries.computeIfAbsent(workingDir, CvsWorkingCopy::readEntries).size());
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to scan " + baseDir.getAbsolutePath(), e);
+    }
+    return count.get();
+  }
+
+  /**
+   * @return files of all the entries read so far, see {@link #scan(File)}
+   */
+  List<File> files() {
+    List<File> files = new ArrayList<>();
+    entries.forEach((dir, dirEntries) -> dirEntries.keySet().forEach(name -> files.add(new File(dir, name))));
+    return files;
+  }
+
+  private static Map<String, Entry> readEntries(File workingDir) {
+    Map<String, Entry> result = new HashMap<>();
+    File entriesFile = new File(workingDir, "CVS/Entries");
+    if (!entriesFile.isFile()) {
+      return result;
+    }
+    forEachLine(entriesFile, line -> {
+      // Lines of sub directories start with D
+      if (line.startsWith("/")) {
+        Entry entry = new Entry(line);
+        result.put(entry.getName(), entry);
+      }
+    });
+    // Changes not merged yet in CVS/Entries: "A <entry>" for added entries, "R <entry>" for removed ones
+    File logFile = new File(workingDir, "CVS/Entries.Log");
+    if (logFile.isFile()) {
+      forEachLine(logFile, line -> {
+        if (line.length() > 2 && line.charAt(2) == '/') {
+          Entry entry = new Entry(line.substring(2));
+          if (line.charAt(0) == 'A') {
+            result.put(entry.getName(), entry);
+          } else if (line.charAt(0) == 'R') {
+            result.remove(entry.getName());
+          }
+        }
+      });
+    }
+    return result;
+  }
+
+  private static void forEachLine(File file, Consumer<String> consumer) {
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        consumer.accept(line);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't read " + file.getAbsolutePath(), e);
+    }
+  }
+
+  private static String read(File file) {
+    try {
+      return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't read " + file.getAbsolutePath(), e);
+    }
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Computes the same annotations than the cvs annotate command, from the content of a RCS file.
+ * <p>
+ * Trunk revisions are stored as reverse deltas from the head: going from a revision to its
+ * predecessor, the deleted lines are the ones introduced by the revision. Branch revisions are
+ * stored as forward deltas from the revision they sprout from: the added lines are the ones
+ * introduced by the branch revision.
+ */
+class RcsAnnotator {
+
+  /**
+   * cvs annotate output is truncated to this width, and so is the author reported by {@link CvsBlameConsumer}
+   * and {@link CvsIncrementalBlame}
+   */
+  private static final int AUTHOR_WIDTH = 8;
+
+  private static final class Line {
+    private String revision;
+    /**
+     * Delta text holding the content of the line, between start and end (exclusive, before the newline)
+     */
+    private final RcsText text;
+    private final int start;
+    private final int end;
+
+    private Line(@Nullable String revision, RcsText text, int start, int end) {
+      this.revision = revision;
+      this.text = text;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final RcsFile rcsFile;
+
+  RcsAnnotator(RcsFile rcsFile) {
+    this.rcsFile = rcsFile;
+  }
+
+  /**
+   * @param tag revision, tag or branch to annotate, default branch when null
+   * @return null when the tag doesn't exist in this file
+   */
+  @CheckForNull
+  List<BlameLine> annotate(@Nullable String tag) {
+    return annotate(tag, false);
+  }
+
+  /**
+   * @param keepContents whether the content of the lines is kept, like the one annotated by the server, to align blame with a modified
+   * working file (see {@link CvsCompactBlame#contents()})
+   * @return null when the tag doesn't exist in this file
+   */
+  @CheckForNull
+  List<BlameLine> annotate(@Nullable String tag, boolean keepContents) {
+    String revision = resolve(tag);
+    if (revision == null) {
+      return null;
+    }
+    CvsCompactBlame result = new CvsCompactBlame();
+    if (delta(revision).isDead()) {
+      // cvs annotate reports nothing for removed files
+      return result;
+    }
+    for (Line line : annotateRevision(revision)) {
+      RcsFile.Delta delta = delta(line.revision);
+      result.add(delta.revision(), truncate(delta.author()), toDate(delta.date()));
+      if (keepContents) {
+        // Decoded like the working file read by CvsLocalChanges
+        result.addContent(line.text.decode(line.start, line.end, Charset.defaultCharset()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param target revision, tag or branch compared with, default branch when null or unknown in this file
+   * @return true when the revision contains changes that are not part of the target
+   */
+  boolean isChanged(String revision, @Nullable String target) {
+    return !ancestors(base(target)).contains(revision);
+  }
+
+  /**
+   * @param target revision, tag or branch compared with, default branch when null or unknown in this file
+   * @return numbers (starting at 1) of the lines of the revision introduced by revisions that are not part of the target
+   */
+  Set<Integer> changedLines(String revision, @Nullable String target) {
+    Set<String> ancestors = ancestors(base(target));
+    Set<Integer> result = new HashSet<>();
+    if (delta(revision).isDead()) {
+      return result;
+    }
+    List<Line> lines = annotateRevision(revision);
+    for (int i = 0; i < lines.size(); i++) {
+      if (!ancestors.contains(lines.get(i).revision)) {
+        result.add(i + 1);
+      }
+    }
+    return result;
+  }
+
+  @CheckForNull
+  private String base(@Nullable String target) {
+    String base = resolve(target);
+    return base != null ? base : resolve(null);
+  }
+
+  /**
+   * @return the revision and all the revisions it derives from
+   */
+  private Set<String> ancestors(@Nullable String revision) {
+    Set<String> result = new HashSet<>();
+    String current = revision;
+    while (current != null) {
+      if (current.split("\\.").length <= 2) {
+        // Trunk revisions point to their predecessor
+        for (String trunk = current; trunk != null; trunk = delta(trunk).next()) {
+          result.add(trunk);
+        }
+        return result;
+      }
+      // Branch revisions point to their successor, starting from the branch point
+      String branch = current.substring(0, current.lastIndexOf('.'));
+      String branchPoint = branch.substring(0, branch.lastIndexOf('.'));
+      for (String onBranch = firstOnBranch(delta(branchPoint), branch); onBranch != null; onBranch = delta(onBranch).next()) {
+        result.add(onBranch);
+        if (onBranch.equals(current)) {
+          break;
+        }
+      }
+      current = branchPoint;
+    }
+    return result;
+  }
+
+  /**
+   * Resolve a revision, a symbolic tag or a branch to a revision of this file
+   */
+  @CheckForNull
+  String resolve(@Nullable String tag) {
+    if (tag == null || "HEAD".equals(tag)) {
+      return rcsFile.branch() != null ? branchHead(rcsFile.branch()) : rcsFile.head();
+    }
+    String revision = Character.isDigit(tag.charAt(0)) ? tag : rcsFile.symbol(tag);
+    if (revision == null) {
+      return null;
+    }
+    String[] numbers = revision.split("\\.");
+    if (numbers.length > 2 && "0".equals(numbers[numbers.length - 2])) {
+      // Magic branch number x.y.0.z stands for branch x.y.z
+      StringBuilder branch = new StringBuilder();
+      for (int i = 0; i < numbers.length; i++) {
+        if (i != numbers.length - 2) {
+          branch.append(branch.length() > 0 ? "." : "").append(numbers[i]);
+        }
+      }
+      return branchHead(branch.toString());
+    }
+    if (numbers.length % 2 == 1) {
+      return branchHead(revision);
+    }
+    return rcsFile.delta(revision) != null ? revision : null;
+  }
+
+  /**
+   * Latest revision of a branch, or the revision it sprouts from when nothing was committed on it yet
+   */
+  @CheckForNull
+  private String branchHead(String branch) {
+    int lastDot = branch.lastIndexOf('.');
+    if (lastDot < 0) {
+      // Trunk
+      return rcsFile.head();
+    }
+    String branchPoint = branch.substring(0, lastDot);
+    RcsFile.Delta delta = rcsFile.delta(branchPoint);
+    if (delta == null) {
+      return null;
+    }
+    String current = firstOnBranch(delta, branch);
+    if (current == null) {
+      return branchPoint;
+    }
+    String next;
+    while ((next = delta(current).next()) != null) {
+      current = next;
+    }
+    return current;
+  }
+
+  @CheckForNull
+  private static String firstOnBranch(RcsFile.Delta branchPoint, String branch) {
+    for (String revision : branchPoint.branches()) {
+      if (revision.startsWith(branch + ".")) {
+        return revision;
+      }
+    }
+    return null;
+  }
+
+  private List<Line> annotateRevision(String revision) {
+    String[] numbers = revision.split("\\.");
+    if (numbers.length <= 2) {
+      return annotateTrunk(revision);
+    }
+    String branchPoint = revision.substring(0, revision.lastIndexOf('.', revision.lastIndexOf('.') - 1));
+    String branch = revision.substring(0, revision.lastIndexOf('.'));
+    List<Line> lines = annotateRevision(branchPoint);
+    String current = firstOnBranch(delta(branchPoint), branch);
+    while (current != null) {
+      lines = apply(lines, delta(current).text(), current, null);
+      if (current.equals(revision)) {
+        return lines;
+      }
+      current = delta(current).next();
+    }
+    throw new IllegalStateException("Revision " + revision + " not found on its branch");
+  }
+
+  private List<Line> annotateTrunk(String revision) {
+    String current = rcsFile.head();
+    List<Line> lines = new ArrayList<>();
+    RcsText text = delta(current).text();
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.endOfLine(start);
+      lines.add(new Line(null, text, start, end));
+      start = end + 1;
+    }
+    while (!current.equals(revision)) {
+      current = previous(current);
+      lines = apply(lines, delta(current).text(), null, null);
+    }
+    List<Line> result = lines;
+    String previous;
+    while ((previous = delta(current).next()) != null) {
+      lines = apply(lines, delta(previous).text(), null, current);
+      current = previous;
+    }
+    // Remaining lines exist since the initial revision
+    for (Line line : result) {
+      if (line.revision == null) {
+        line.revision = current;
+      }
+    }
+    return result;
+  }
+
+  private String previous(String revision) {
+    String previous = delta(revision).next();
+    if (previous == null) {
+      throw new IllegalStateException("Revision " + revision + " has no predecessor");
+    }
+    return previous;
+  }
+
+  /**
+   * Apply an edit script made of "dL N" (delete N lines starting at line L) and "aL N" (add the N following lines after line L) commands.
+   *
+   * @param insertedBy revision attributed to the added lines
+   * @param deletedBy revision attributed to the deleted lines that are not attributed yet
+   */
+  private static List<Line> apply(List<Line> source, RcsText script, @Nullable String insertedBy, @Nullable String deletedBy) {
+    List<Line> result = new ArrayList<>(source.size());
+    int consumed = 0;
+    int pos = 0;
+    while (pos < script.length()) {
+      byte command = script.byteAt(pos);
+      if (command == '\n') {
+        pos++;
+        continue;
+      }
+      // Command is a letter followed by two numbers separated by a space
+      int eol = script.endOfLine(pos);
+      int line = 0;
+      int i = pos + 1;
+      for (; i < eol && script.byteAt(i) != ' '; i++) {
+        line = line * 10 + digit(script, i);
+      }
+      int count = 0;
+      for (i++; i < eol && script.byteAt(i) != '\r'; i++) {
+        count = count * 10 + digit(script, i);
+      }
+      pos = eol + 1;
+      if (command == 'd') {
+        while (consumed < line - 1) {
+          result.add(source.get(consumed++));
+        }
+        for (int n = 0; n < count; n++) {
+          Line deleted = source.get(consumed++);
+          if (deleted.revision == null) {
+            deleted.revision = deletedBy;
+          }
+        }
+      } else if (command == 'a') {
+        while (consumed < line) {
+          result.add(source.get(consumed++));
+        }
+        for (int n = 0; n < count; n++) {
+          int end = script.endOfLine(pos);
+          result.add(new Line(insertedBy, script, pos, end));
+          pos = end + 1;
+        }
+      } else {
+        throw new IllegalStateException("Invalid edit command: " + (char) command);
+      }
+    }
+    while (consumed < source.size()) {
+      result.add(source.get(consumed++));
+    }
+    return result;
+  }
+
+  private static int digit(RcsText script, int index) {
+    byte b = script.byteAt(index);
+    if (b < '0' || b > '9') {
+      throw new IllegalStateException("Invalid edit command at offset " + index);
+    }
+    return b - '0';
+  }
+
+  private RcsFile.Delta delta(String revision) {
+    RcsFile.Delta delta = rcsFile.delta(revision);
+    if (delta == null) {
+      throw new IllegalStateException("Revision " + revision + " not found");
+    }
+    return delta;
+  }
+
+  /**
+   * Like cvs annotate, only keep the day, then interpret it in the local timezone like {@link CvsBlameConsumer}
+   */
+  static Date toDate(String rcsDate) {
+    String[] fields = rcsDate.split("\\.");
+    int year = Integer.parseInt(fields[0]);
+    if (year < 100) {
+      year += 1900;
+    }
+    LocalDate day = LocalDate.of(year, Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+    return Date.from(day.atStartOfDay(ZoneId.systemDefault()).toInstant());
+  }
+
+  static String truncate(String author) {
+    return author.length() > AUTHOR_WIDTH ? author.substring(0, AUTHOR_WIDTH) : author;
+  }
+}
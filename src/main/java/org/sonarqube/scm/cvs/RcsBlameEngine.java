@@ -0,0 +1,150 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.netbeans.lib.cvsclient.CVSRoot;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Computes blame straight from the RCS files of the repository, without any client/server
+ * protocol, when the repository is reachable from the file system: either a :local: CVSRoot
+ * or a repository mounted at the path given by {@link CvsConfiguration#LOCAL_REPOSITORY_PROP_KEY}.
+ * <p>
+ * Thread safe.
+ */
+class RcsBlameEngine {
+
+  private static final Logger LOG = Loggers.get(RcsBlameEngine.class);
+
+  private static final String RCS_SUFFIX = ",v";
+
+  private final File repositoryDir;
+  private final String serverRepository;
+  @Nullable
+  private final String revision;
+  private final CvsWorkingCopy workingCopy;
+
+  RcsBlameEngine(File repositoryDir, String serverRepository, @Nullable String revision, CvsWorkingCopy workingCopy) {
+    this.repositoryDir = repositoryDir;
+    this.serverRepository = serverRepository;
+    this.revision = revision;
+    this.workingCopy = workingCopy;
+  }
+
+  @CheckForNull
+  static RcsBlameEngine create(CvsConfiguration config, String cvsRoot, CvsWorkingCopy workingCopy) {
+    CVSRoot root;
+    try {
+      root = CVSRoot.parse(cvsRoot);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    File repositoryDir;
+    if (config.localRepository() != null) {
+      repositoryDir = new File(config.localRepository());
+    } else if (root.isLocal()) {
+      repositoryDir = new File(root.getRepository());
+    } else {
+      return null;
+    }
+    if (!repositoryDir.isDirectory()) {
+      LOG.warn("CVS repository " + repositoryDir.getAbsolutePath() + " is not reachable, annotate will be executed by the server");
+      return null;
+    }
+    LOG.debug("Blame will be computed from RCS files of " + repositoryDir.getAbsolutePath());
+    return new RcsBlameEngine(repositoryDir, root.getRepository(), config.revision(), workingCopy);
+  }
+
+  /**
+   * @return null when the RCS file can't be found, meaning blame should be requested to the server
+   */
+  @CheckForNull
+  List<BlameLine> blame(InputFile inputFile) {
+    return blame(inputFile, false);
+  }
+
+  /**
+   * @param keepContents whether the content of the lines is kept, see {@link RcsAnnotator#annotate(String, boolean)}
+   * @return null when the RCS file can't be found, meaning blame should be requested to the server
+   */
+  @CheckForNull
+  List<BlameLine> blame(InputFile inputFile, boolean keepContents) {
+    RcsAnnotator annotator = annotator(inputFile.file());
+    if (annotator == null) {
+      return null;
+    }
+    List<BlameLine> lines = annotator.annotate(revision, keepContents);
+    // Like cvs annotate, nothing is reported when the revision doesn't exist for this file
+    return lines != null ? lines : new ArrayList<>();
+  }
+
+  /**
+   * @return null when the RCS file can't be found
+   */
+  @CheckForNull
+  RcsAnnotator annotator(File workingFile) {
+    File rcsFile = rcsFile(workingFile);
+    if (rcsFile == null) {
+      return null;
+    }
+    try {
+      return new RcsAnnotator(RcsFile.parse(rcsFile));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read " + rcsFile.getAbsolutePath(), e);
+    }
+  }
+
+  @CheckForNull
+  File rcsFile(File workingFile) {
+    String repository = workingCopy.repository(workingFile.getParentFile());
+    if (repository == null) {
+      return null;
+    }
+    File rcsDir = rcsDir(repository);
+    String rcsName = workingFile.getName() + RCS_SUFFIX;
+    File rcsFile = new File(rcsDir, rcsName);
+    if (rcsFile.isFile()) {
+      return rcsFile;
+    }
+    // Files removed from the trunk are moved to the Attic
+    File atticFile = new File(new File(rcsDir, "Attic"), rcsName);
+    return atticFile.isFile() ? atticFile : null;
+  }
+
+  private File rcsDir(String repository) {
+    if (repository.startsWith("/")) {
+      // Absolute path on the server, to be relocated when the repository is mounted elsewhere
+      if (!repository.startsWith(serverRepository + "/")) {
+        return new File(repository);
+      }
+      return new File(repositoryDir, repository.substring(serverRepository.length() + 1));
+    }
+    return new File(repositoryDir, repository);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Content of a RCS (,v) file, as stored in a CVS repository. Delta texts are kept as they are in the file,
+ * and only read when a revision built from them is needed.
+ */
+class RcsFile {
+
+  static final class Delta {
+    private final String revision;
+    private String date;
+    private String author;
+    private String state;
+    private final List<String> branches = new ArrayList<>();
+    private String next;
+    @Nullable
+    private RcsText text;
+
+    private Delta(String revision) {
+      this.revision = revision;
+    }
+
+    String revision() {
+      return revision;
+    }
+
+    /**
+     * Date of the revision, in UTC, formatted as Y.mm.dd.hh.mm.ss with a two digits year before 2000.
+     */
+    String date() {
+      return date;
+    }
+
+    String author() {
+      return author;
+    }
+
+    boolean isDead() {
+      return "dead".equals(state);
+    }
+
+    List<String> branches() {
+      return branches;
+    }
+
+    @CheckForNull
+    String next() {
+      return next;
+    }
+
+    /**
+     * Full content for the head revision, edit script from the adjacent revision for the others.
+     *
+     * @throws IllegalStateException when the RCS file has no text for this revision, like a truncated file
+     */
+    RcsText text() {
+      if (text == null) {
+        throw new IllegalStateException("No text of revision " + revision + ", the RCS file is truncated");
+      }
+      return text;
+    }
+  }
+
+  private String head;
+  private String branch;
+  private final Map<String, String> symbols = new HashMap<>();
+  private final Map<String, Delta> deltas = new LinkedHashMap<>();
+
+  private RcsFile() {
+  }
+
+  @CheckForNull
+  String head() {
+    return head;
+  }
+
+  /**
+   * Default branch, when it is not the trunk
+   */
+  @CheckForNull
+  String branch() {
+    return branch;
+  }
+
+  @CheckForNull
+  String symbol(String name) {
+    return symbols.get(name);
+  }
+
+  @CheckForNull
+  Delta delta(String revision) {
+    return deltas.get(revision);
+  }
+
+  static RcsFile parse(File file) throws IOException {
+    RcsFile rcsFile = new RcsFile();
+    RcsParser.parse(file, rcsFile.new Builder());
+    return rcsFile;
+  }
+
+  private class Builder implements RcsParser.Handler {
+
+    @Override
+    public void head(@Nullable String revision) {
+      head = revision;
+    }
+
+    @Override
+    public void branch(@Nullable String revision) {
+      branch = revision;
+    }
+
+    @Override
+    public void symbol(String name, String revision) {
+      symbols.put(name, revision);
+    }
+
+    @Override
+    public void delta(String revision, List<RcsParser.Phrase> phrases) {
+      Delta delta = new Delta(revision);
+      for (RcsParser.Phrase phrase : phrases) {
+        String value = phrase.value();
+        if ("date".equals(phrase.keyword())) {
+          delta.date = value;
+        } else if ("author".equals(phrase.keyword())) {
+          delta.author = value;
+        } else if ("state".equals(phrase.keyword())) {
+          delta.state = value;
+        } else if ("branches".equals(phrase.keyword())) {
+          delta.branches.addAll(phrase.values());
+        } else if ("next".equals(phrase.keyword())) {
+          delta.next = value;
+        }
+      }
+      deltas.put(revision, delta);
+    }
+
+    @Override
+    public void deltaText(String revision, RcsText log, RcsText text) {
+      Delta delta = deltas.get(revision);
+      if (delta != null) {
+        delta.text = text;
+      }
+    }
+  }
+}
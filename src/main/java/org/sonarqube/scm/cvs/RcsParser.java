@@ -0,0 +1,282 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Streaming parser of RCS files, see rcsfile(5) for the grammar. Large files are memory mapped, and
+ * strings are reported as {@link RcsText} slices of the mapped buffer, so delta texts are neither
+ * copied nor decoded by the parser.
+ */
+class RcsParser {
+
+  /**
+   * Mapping a file has a fixed cost that is not worth it for small files, which are simply read
+   */
+  private static final int MAPPING_THRESHOLD = 64 * 1024;
+
+  /**
+   * Receives the content of the RCS file, in the order of the file
+   */
+  interface Handler {
+
+    default void head(@Nullable String revision) {
+    }
+
+    default void branch(@Nullable String revision) {
+    }
+
+    default void symbol(String name, String revision) {
+    }
+
+    default void delta(String revision, List<Phrase> phrases) {
+    }
+
+    default void deltaText(String revision, RcsText log, RcsText text) {
+    }
+  }
+
+  /**
+   * A keyword followed by its values, like "next 1.1;"
+   */
+  static final class Phrase {
+    private final String keyword;
+    private final List<String> values;
+
+    Phrase(String keyword, List<String> values) {
+      this.keyword = keyword;
+      this.values = values;
+    }
+
+    String keyword() {
+      return keyword;
+    }
+
+    List<String> values() {
+      return values;
+    }
+
+    @Nullable
+    String value() {
+      return values.isEmpty() ? null : values.get(0);
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final String filename;
+  private int pos;
+
+  RcsParser(ByteBuffer buffer, String filename) {
+    this.buffer = buffer;
+    this.filename = filename;
+  }
+
+  static void parse(File file, Handler handler) throws IOException {
+    new RcsParser(load(file), file.getName()).parse(handler);
+  }
+
+  private static ByteBuffer load(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= MAPPING_THRESHOLD) {
+        // The mapping stays valid once the channel is closed
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // Keep reading
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  void parse(Handler handler) {
+    parseAdmin(handler);
+    while (peekIsNum()) {
+      String revision = next();
+      handler.delta(revision, phrasesUntilNumOrDesc());
+    }
+    expect("desc");
+    nextString();
+    while (hasNext()) {
+      parseDeltaText(handler);
+    }
+  }
+
+  private void parseAdmin(Handler handler) {
+    for (Phrase phrase : phrasesUntilNumOrDesc()) {
+      if ("head".equals(phrase.keyword())) {
+        handler.head(phrase.value());
+      } else if ("branch".equals(phrase.keyword())) {
+        handler.branch(phrase.value());
+      } else if ("symbols".equals(phrase.keyword())) {
+        // Values are name:revision pairs
+        List<String> values = phrase.values();
+        for (int i = 0; i + 2 < values.size(); i += 3) {
+          handler.symbol(values.get(i), values.get(i + 2));
+        }
+      }
+    }
+  }
+
+  private List<Phrase> phrasesUntilNumOrDesc() {
+    List<Phrase> phrases = new ArrayList<>();
+    while (hasNext() && !peekIsNum() && !peekIs("desc")) {
+      String keyword = next();
+      phrases.add(new Phrase(keyword, phraseValues()));
+    }
+    return phrases;
+  }
+
+  private void parseDeltaText(Handler handler) {
+    String revision = next();
+    RcsText log = RcsText.EMPTY;
+    RcsText text = RcsText.EMPTY;
+    while (hasNext() && !peekIsNum()) {
+      String keyword = next();
+      if ("log".equals(keyword)) {
+        log = nextString();
+      } else if ("text".equals(keyword)) {
+        text = nextString();
+      } else {
+        phraseValues();
+      }
+    }
+    handler.deltaText(revision, log, text);
+  }
+
+  private boolean hasNext() {
+    skipWhitespaces();
+    return pos < buffer.limit();
+  }
+
+  private boolean peekIsNum() {
+    return hasNext() && isDigit(buffer.get(pos));
+  }
+
+  private boolean peekIs(String keyword) {
+    if (!hasNext() || pos + keyword.length() > buffer.limit()) {
+      return false;
+    }
+    for (int i = 0; i < keyword.length(); i++) {
+      if (buffer.get(pos + i) != keyword.charAt(i)) {
+        return false;
+      }
+    }
+    return isDelimiter(pos + keyword.length());
+  }
+
+  private void expect(String keyword) {
+    String token = next();
+    if (!keyword.equals(token)) {
+      throw new IllegalStateException("Expected '" + keyword + "' but got '" + token + "' in " + filename);
+    }
+  }
+
+  /**
+   * Next word, number, single char (':' or ';') or decoded string token
+   */
+  private String next() {
+    if (!hasNext()) {
+      throw new IllegalStateException("Unexpected end of " + filename);
+    }
+    byte b = buffer.get(pos);
+    if (b == ';' || b == ':') {
+      pos++;
+      return String.valueOf((char) b);
+    }
+    if (b == '@') {
+      return nextString().decode();
+    }
+    int start = pos;
+    while (!isDelimiter(pos)) {
+      pos++;
+    }
+    byte[] bytes = new byte[pos - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Values of the current phrase up to the terminating ';'
+   */
+  private List<String> phraseValues() {
+    List<String> values = new ArrayList<>();
+    String token;
+    while (!";".equals(token = next())) {
+      values.add(token);
+    }
+    return values;
+  }
+
+  private RcsText nextString() {
+    if (!hasNext() || buffer.get(pos) != '@') {
+      throw new IllegalStateException("Expected a string in " + filename + " at offset " + pos);
+    }
+    int start = pos + 1;
+    int i = start;
+    while (i < buffer.limit()) {
+      if (buffer.get(i) == '@') {
+        if (i + 1 < buffer.limit() && buffer.get(i + 1) == '@') {
+          i += 2;
+          continue;
+        }
+        pos = i + 1;
+        return new RcsText(buffer, start, i - start);
+      }
+      i++;
+    }
+    throw new IllegalStateException("Unterminated string in " + filename);
+  }
+
+  private void skipWhitespaces() {
+    while (pos < buffer.limit() && isWhitespace(buffer.get(pos))) {
+      pos++;
+    }
+  }
+
+  private boolean isDelimiter(int index) {
+    if (index >= buffer.limit()) {
+      return true;
+    }
+    byte b = buffer.get(index);
+    return isWhitespace(b) || b == ';' || b == ':' || b == '@';
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+}
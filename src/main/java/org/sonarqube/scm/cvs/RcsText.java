@@ -0,0 +1,104 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Content of a @-quoted string of a RCS file, as a slice of the buffer holding the file.
+ * Nothing is copied: the content is still escaped (@@ standing for @) and only decoded on demand.
+ * An escaped @ never contains a newline, so lines can be counted and walked without decoding.
+ */
+final class RcsText {
+
+  static final RcsText EMPTY = new RcsText(ByteBuffer.allocate(0), 0, 0);
+
+  private final ByteBuffer buffer;
+  private final int offset;
+  private final int length;
+
+  RcsText(ByteBuffer buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  int length() {
+    return length;
+  }
+
+  byte byteAt(int index) {
+    return buffer.get(offset + index);
+  }
+
+  /**
+   * @return index of the first newline at or after the given index, or the length when there is none
+   */
+  int endOfLine(int from) {
+    for (int i = from; i < length; i++) {
+      if (buffer.get(offset + i) == '\n') {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * The last line may not be terminated by a newline
+   */
+  int lineCount() {
+    int count = 0;
+    int start = 0;
+    while (start < length) {
+      start = endOfLine(start) + 1;
+      count++;
+    }
+    return count;
+  }
+
+  String decode() {
+    return decode(0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @param from index of the first byte
+   * @param to exclusive index of the last byte
+   */
+  String decode(int from, int to, Charset charset) {
+    byte[] bytes = new byte[to - from];
+    int size = 0;
+    for (int i = from; i < to; i++) {
+      byte b = buffer.get(offset + i);
+      bytes[size++] = b;
+      if (b == '@') {
+        // Skip the escaping @
+        i++;
+      }
+    }
+    return new String(bytes, 0, size, charset);
+  }
+
+  @Override
+  public String toString() {
+    return decode();
+  }
+}
@@ -20,10 +20,7 @@
 package org.sonarqube.scm.cvs;
 
 import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
-import java.io.File;
 import java.io.IOException;
 import javax.annotation.Nullable;
 import org.netbeans.lib.cvsclient.connection.AbstractConnection;
@@ -34,6 +31,9 @@ import org.netbeans.lib.cvsclient.util.LoggedDataOutputStream;
 
 /**
  * Provides support for the :ext: connection method.
+ * <p>
+ * Each connection is an exec channel running "cvs server", opened on an SSH session shared with the other connections
+ * to the same host and user (see {@link SshSessionPool}).
  */
 public class SshConnection extends AbstractConnection {
 
@@ -45,17 +45,36 @@ public class SshConnection extends AbstractConnection {
 
   private String password;
 
-  private Session sesConnection;
+  private final SshSessionPool sessionPool;
+
+  /**
+   * Whether the pool was created for this connection only, and must be closed with it
+   */
+  private final boolean ownSessionPool;
+
+  private SshSessionPool.SharedSession sharedSession;
 
   private ChannelExec channel;
 
   private String passphrase;
 
   public SshConnection(String host, int port, @Nullable String username, @Nullable String password, @Nullable String passphrase, String repository) {
+    this(host, port, username, password, passphrase, repository, new SshSessionPool(), true);
+  }
+
+  SshConnection(String host, int port, @Nullable String username, @Nullable String password, @Nullable String passphrase, String repository,
+    SshSessionPool sessionPool) {
+    this(host, port, username, password, passphrase, repository, sessionPool, false);
+  }
+
+  private SshConnection(String host, int port, @Nullable String username, @Nullable String password, @Nullable String passphrase, String repository,
+    SshSessionPool sessionPool, boolean ownSessionPool) {
     this.username = username;
     this.password = password;
     this.host = host;
     this.passphrase = passphrase;
+    this.sessionPool = sessionPool;
+    this.ownSessionPool = ownSessionPool;
     setRepository(repository);
     this.port = port;
     if (this.port == 0) {
@@ -65,36 +84,35 @@ public class SshConnection extends AbstractConnection {
 
   @Override
   public void open() throws AuthenticationException {
-    JSch jschSSHChannel = new JSch();
     try {
-      if (password == null) {
-        // If user don't define a password, he wants to use a private key
-        File privateKey = findPrivateKey();
-        if (privateKey.exists()) {
-          jschSSHChannel.addIdentity(privateKey.getAbsolutePath(), trimToEmpty(passphrase));
-        }
+      openChannel();
+    } catch (JSchException | IOException e) {
+      // The shared session may have been dropped without being noticed yet, retry once on a new one
+      try {
+        openChannel();
+      } catch (JSchException | IOException retryException) {
+        throw new IllegalStateException(retryException.getMessage(), retryException);
       }
-      sesConnection = jschSSHChannel.getSession(username, host, port);
-      sesConnection.setPassword(password);
-
-      // TODO to be perfectly secured we should allow users to use jschSSHChannel.setKnownHosts(knownHostsFileName);
-      // but since we are only using SSH to do blame I assume it's safe to do:
-      sesConnection.setConfig("StrictHostKeyChecking", "no");
+    }
+  }
 
-      sesConnection.connect(60 * 1000);
+  private void openChannel() throws AuthenticationException, JSchException, IOException {
+    try {
+      sharedSession = sessionPool.acquire(host, port, username, password, passphrase);
     } catch (JSchException e) {
       throw new AuthenticationException(e, e.getMessage());
     }
-
     try {
-      channel = (ChannelExec) sesConnection.openChannel("exec");
+      channel = (ChannelExec) sharedSession.session().openChannel("exec");
       channel.setCommand("cvs server");
-      channel.connect(60 * 1000);
+      channel.connect(SshSessionPool.CONNECT_TIMEOUT_MS);
 
       setInputStream(new LoggedDataInputStream(channel.getInputStream()));
       setOutputStream(new LoggedDataOutputStream(channel.getOutputStream()));
     } catch (JSchException | IOException e) {
-      throw new IllegalStateException(e.getMessage(), e);
+      sessionPool.invalidate(sharedSession);
+      closeConnection();
+      throw e;
     }
   }
 
@@ -115,15 +133,15 @@ public class SshConnection extends AbstractConnection {
       channel.disconnect();
     }
 
-    if (sesConnection != null) {
-      sesConnection.disconnect();
+    if (sharedSession != null) {
+      sessionPool.release(sharedSession);
     }
 
     reset();
   }
 
   private void reset() {
-    sesConnection = null;
+    sharedSession = null;
     channel = null;
     setInputStream(null);
     setOutputStream(null);
@@ -132,11 +150,14 @@ public class SshConnection extends AbstractConnection {
   @Override
   public void close() {
     closeConnection();
+    if (ownSessionPool) {
+      sessionPool.close();
+    }
   }
 
   @Override
   public boolean isOpen() {
-    return sesConnection != null;
+    return channel != null && channel.isConnected();
   }
 
   @Override
@@ -153,16 +174,4 @@ public class SshConnection extends AbstractConnection {
   public void modifyOutputStream(ConnectionModifier modifier) throws IOException {
     modifier.modifyOutputStream(getOutputStream());
   }
-
-  private static File findPrivateKey() {
-    File privateKey = new File(System.getProperty("user.home"), ".ssh/id_dsa");
-    if (!privateKey.exists()) {
-      privateKey = new File(System.getProperty("user.home"), ".ssh/id_rsa");
-    }
-    return privateKey;
-  }
-
-  private static String trimToEmpty(@Nullable String str) {
-    return str == null ? "" : str.trim();
-  }
 }
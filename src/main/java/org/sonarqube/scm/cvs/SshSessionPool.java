@@ -0,0 +1,217 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * SSH sessions shared by the :ext: connections to a same host and user. Key exchange and authentication are done once,
+ * then each connection only opens an exec channel on the session.
+ * <p>
+ * Sessions are reference counted: a session stays opened while channels use it, and idle sessions are kept until the pool is
+ * closed. A session found disconnected (dropped by the server or the network) is replaced by a new one, and disconnected
+ * once the channels still referencing it are released.
+ * <p>
+ * Thread safe.
+ */
+class SshSessionPool {
+
+  private static final Logger LOG = Loggers.get(SshSessionPool.class);
+
+  static final int CONNECT_TIMEOUT_MS = 60 * 1000;
+  static final int KEEP_ALIVE_INTERVAL_MS = 30 * 1000;
+  static final int KEEP_ALIVE_MAX_COUNT = 3;
+
+  /**
+   * Default of MaxSessions in OpenSSH: a server refuses more channels on a same connection
+   */
+  static final int MAX_CHANNELS_PER_SESSION = 10;
+
+  @FunctionalInterface
+  interface Connector {
+    Session connect(String host, int port, @Nullable String username, @Nullable String password, @Nullable String passphrase) throws JSchException;
+  }
+
+  private final Connector connector;
+  private final Map<String, List<SharedSession>> sessions = new HashMap<>();
+  private final Map<String, Object> connectLocks = new ConcurrentHashMap<>();
+
+  SshSessionPool() {
+    this(SshSessionPool::connect);
+  }
+
+  SshSessionPool(Connector connector) {
+    this.connector = connector;
+  }
+
+  /**
+   * @return a session to open a channel on, to be released once the channel is closed
+   */
+  SharedSession acquire(String host, int port, @Nullable String username, @Nullable String password, @Nullable String passphrase) throws JSchException {
+    String key = username + "@" + host + ":" + port;
+    SharedSession shared = reuse(key);
+    if (shared != null) {
+      return shared;
+    }
+    // One handshake at a time per host and user, so that threads starting together share the same session
+    synchronized (connectLocks.computeIfAbsent(key, k -> new Object())) {
+      shared = reuse(key);
+      if (shared != null) {
+        return shared;
+      }
+      SharedSession created = new SharedSession(connector.connect(host, port, username, password, passphrase));
+      LOG.debug("SSH session opened on " + key);
+      synchronized (this) {
+        created.references++;
+        sessions.computeIfAbsent(key, k -> new ArrayList<>()).add(created);
+      }
+      return created;
+    }
+  }
+
+  @CheckForNull
+  private synchronized SharedSession reuse(String key) {
+    List<SharedSession> candidates = sessions.computeIfAbsent(key, k -> new ArrayList<>());
+    removeDisconnected(candidates);
+    for (SharedSession candidate : candidates) {
+      if (candidate.references < MAX_CHANNELS_PER_SESSION) {
+        candidate.references++;
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  synchronized void release(SharedSession shared) {
+    shared.references--;
+    if (shared.references == 0 && shared.stale) {
+      shared.session.disconnect();
+    }
+  }
+
+  /**
+   * The session is no longer handed out, for example because it failed to open a channel
+   */
+  synchronized void invalidate(SharedSession shared) {
+    for (List<SharedSession> candidates : sessions.values()) {
+      candidates.remove(shared);
+    }
+    shared.stale = true;
+  }
+
+  /**
+   * Disconnect idle sessions. Sessions still used are disconnected when released.
+   */
+  synchronized void close() {
+    for (List<SharedSession> candidates : sessions.values()) {
+      for (SharedSession shared : candidates) {
+        shared.stale = true;
+        if (shared.references == 0) {
+          shared.session.disconnect();
+        }
+      }
+    }
+    sessions.clear();
+  }
+
+  synchronized int sessionCount() {
+    return sessions.values().stream().mapToInt(List::size).sum();
+  }
+
+  private static void removeDisconnected(List<SharedSession> candidates) {
+    Iterator<SharedSession> it = candidates.iterator();
+    while (it.hasNext()) {
+      SharedSession candidate = it.next();
+      if (!candidate.session.isConnected()) {
+        LOG.debug("SSH session dropped, a new one will be opened");
+        it.remove();
+        candidate.stale = true;
+        if (candidate.references == 0) {
+          candidate.session.disconnect();
+        }
+      }
+    }
+  }
+
+  private static Session connect(String host, int port, @Nullable String username, @Nullable String password, @Nullable String passphrase) throws JSchException {
+    JSch jsch = new JSch();
+    if (password == null) {
+      // If user don't define a password, he wants to use a private key
+      File privateKey = findPrivateKey();
+      if (privateKey.exists()) {
+        jsch.addIdentity(privateKey.getAbsolutePath(), trimToEmpty(passphrase));
+      }
+    }
+    Session session = jsch.getSession(username, host, port);
+    session.setPassword(password);
+
+    // TODO to be perfectly secured we should allow users to use jsch.setKnownHosts(knownHostsFileName);
+    // but since we are only using SSH to do blame I assume it's safe to do:
+    session.setConfig("StrictHostKeyChecking", "no");
+    // Detect dropped sessions instead of waiting forever on a channel
+    session.setServerAliveInterval(KEEP_ALIVE_INTERVAL_MS);
+    session.setServerAliveCountMax(KEEP_ALIVE_MAX_COUNT);
+
+    session.connect(CONNECT_TIMEOUT_MS);
+    return session;
+  }
+
+  private static File findPrivateKey() {
+    File privateKey = new File(System.getProperty("user.home"), ".ssh/id_dsa");
+    if (!privateKey.exists()) {
+      privateKey = new File(System.getProperty("user.home"), ".ssh/id_rsa");
+    }
+    return privateKey;
+  }
+
+  private static String trimToEmpty(@Nullable String str) {
+    return str == null ? "" : str.trim();
+  }
+
+  static class SharedSession {
+    private final Session session;
+    /**
+     * Channels using the session, guarded by the pool
+     */
+    private int references = 0;
+    private boolean stale = false;
+
+    private SharedSession(Session session) {
+      this.session = session;
+    }
+
+    Session session() {
+      return session;
+    }
+  }
+}
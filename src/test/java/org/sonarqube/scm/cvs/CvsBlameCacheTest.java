@@ -0,0 +1,132 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CvsBlameCacheTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void storeAndLoad() throws IOException {
+    CvsBlameCache cache = new CvsBlameCache(temp.newFolder(), 1024 * 1024);
+    String key = CvsBlameCache.key(":pserver:host:/cvsroot", "module/src/foo.xoo", "1.3", null);
+    assertThat(cache.get(key)).isNull();
+
+    List<BlameLine> lines = Arrays.asList(
+      new BlameLine().date(DateUtils.parseDate("2014-10-21")).revision("1.2").author("henryju"),
+      new BlameLine().date(DateUtils.parseDate("2014-10-22")).revision("1.3").author(null));
+    cache.put(key, lines);
+
+    assertThat(cache.get(key)).isEqualTo(lines);
+    assertThat(cache.get(CvsBlameCache.key(":pserver:host:/cvsroot", "module/src/foo.xoo", "1.3", "BR"))).isNull();
+    assertThat(cache.hits()).isEqualTo(1);
+    assertThat(cache.misses()).isEqualTo(2);
+  }
+
+  @Test
+  public void storeRunsOfLines() throws IOException {
+    File dir = temp.newFolder();
+    CvsBlameCache cache = new CvsBlameCache(dir, 1024 * 1024);
+    String key = CvsBlameCache.key(":pserver:host:/cvsroot", "module/src/foo.xoo", "1.3", null);
+    List<BlameLine> lines = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      lines.add(new BlameLine().date(DateUtils.parseDate("2014-10-21")).revision(i < 60 ? "1.2" : "1.3").author("henryju"));
+    }
+
+    cache.put(key, lines);
+
+    // Version, then one line per run
+    assertThat(FileUtils.readLines(new File(new File(dir, key.substring(0, 2)), key))).hasSize(3);
+    assertThat(cache.get(key)).isEqualTo(lines);
+  }
+
+  @Test
+  public void noKeyForUncommittedFiles() throws IOException {
+    File baseDir = temp.newFolder();
+    FileUtils.write(new File(baseDir, "CVS/Repository"), "module/src\n");
+    FileUtils.write(new File(baseDir, "CVS/Entries"), "/foo.xoo/1.3/Tue Oct 21 10:00:00 2014//\n/new.xoo/0/dummy timestamp//\nD/sub////\n");
+    CvsWorkingCopy workingCopy = new CvsWorkingCopy();
+
+    assertThat(CvsBlameCache.key(":local:/cvsroot", workingCopy, new File(baseDir, "foo.xoo"), null))
+      .isEqualTo(CvsBlameCache.key(":local:/cvsroot", "module/src/foo.xoo", "1.3", null));
+    assertThat(CvsBlameCache.key(":local:/cvsroot", workingCopy, new File(baseDir, "new.xoo"), null)).isNull();
+    assertThat(CvsBlameCache.key(":local:/cvsroot", workingCopy, new File(baseDir, "unknown.xoo"), null)).isNull();
+  }
+
+  @Test
+  public void evictLeastRecentlyUsedEntries() throws IOException {
+    File dir = temp.newFolder();
+    List<BlameLine> lines = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      lines.add(new BlameLine().date(DateUtils.parseDate("2014-10-21")).revision("1." + i).author("julien"));
+    }
+    CvsBlameCache cache = new CvsBlameCache(dir, 5000);
+    for (int i = 0; i < 5; i++) {
+      String key = CvsBlameCache.key(":local:/cvsroot", "foo" + i + ".xoo", "1.1", null);
+      cache.put(key, lines);
+      // Entries are used in the order they are created
+      new File(dir, key.substring(0, 2) + "/" + key).setLastModified(1000L * i + 1000L);
+    }
+    String first = CvsBlameCache.key(":local:/cvsroot", "foo0.xoo", "1.1", null);
+    new File(dir, first.substring(0, 2) + "/" + first).setLastModified(10000L);
+
+    cache.evict();
+
+    assertThat(cache.get(first)).isNotNull();
+    assertThat(cache.get(CvsBlameCache.key(":local:/cvsroot", "foo1.xoo", "1.1", null))).isNull();
+    assertThat(FileUtils.sizeOfDirectory(dir)).isLessThanOrEqualTo(5000);
+  }
+
+  @Test
+  public void onlyEvictEntries() throws IOException {
+    File dir = temp.newFolder();
+    File choices = new File(dir, CvsCompressionTuner.DIR + "/" + CvsCompressionTuner.FILENAME);
+    File snapshot = new CvsBlameCache(dir, 0).snapshotFile(temp.newFolder(), ":local:/cvsroot", null);
+    for (File file : new File[] {choices, snapshot}) {
+      FileUtils.write(file, String.join("", Collections.nCopies(10_000, "x")));
+      file.setLastModified(1000L);
+    }
+    CvsBlameCache cache = new CvsBlameCache(dir, 1000);
+    String key = CvsBlameCache.key(":local:/cvsroot", "foo.xoo", "1.1", null);
+    cache.put(key, Collections.singletonList(new BlameLine().date(DateUtils.parseDate("2014-10-21")).revision("1.1").author("julien")));
+
+    cache.evict();
+
+    assertThat(choices).exists();
+    assertThat(snapshot).exists();
+    assertThat(cache.get(key)).isNotNull();
+  }
+}
@@ -21,8 +21,16 @@ package org.sonarqube.scm.cvs;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
@@ -50,10 +58,14 @@ import org.sonar.api.utils.TempFolder;
 import org.sonar.api.utils.internal.DefaultTempFolder;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class CvsBlameCommandTest {
@@ -74,7 +86,7 @@ public class CvsBlameCommandTest {
   @Before
   public void prepare() throws IOException {
     baseDir = temp.newFolder();
-    fs = new DefaultFileSystem(baseDir);
+    fs = new DefaultFileSystem(baseDir).setWorkDir(temp.newFolder().toPath());
     input = mock(BlameInput.class);
     when(input.fileSystem()).thenReturn(fs);
 
@@ -82,6 +94,24 @@ public class CvsBlameCommandTest {
     FileUtils.write(cvsRoot, ":pserver:bar");
   }
 
+  @Test
+  public void virtualThreadsWhenSupportedByRuntime() throws Exception {
+    boolean supported = Arrays.stream(Thread.class.getMethods()).anyMatch(m -> "ofVirtual".equals(m.getName()));
+
+    ExecutorService executor = CvsBlameCommand.virtualThreadExecutor();
+
+    if (!supported) {
+      assertThat(executor).isNull();
+      return;
+    }
+    try {
+      Method isVirtual = Thread.class.getMethod("isVirtual");
+      assertThat(executor.submit(() -> isVirtual.invoke(Thread.currentThread())).get()).isEqualTo(Boolean.TRUE);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testParsingOfOutput() throws IOException, AuthenticationException, CommandException {
     File source = new File(baseDir, "src/foo.xoo");
@@ -138,6 +168,341 @@ public class CvsBlameCommandTest {
         new BlameLine().date(DateUtils.parseDateTime("2014-10-21T00:00:00+0000")).revision("1.1").author("julien")));
   }
 
+  @Test
+  public void testRetryOnNewConnectionWhenReused() throws IOException, AuthenticationException, CommandException {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    InputFile inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(7)
+      .build();
+    fs.add(inputFile);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+
+    when(commandExecutor.processCommand(eq("annotate"), any(), any(), any(), any()))
+      .thenThrow(new CommandException("Connection reset", "Connection reset"))
+      .thenAnswer(new Answer<Boolean>() {
+
+        @Override
+        public Boolean answer(InvocationOnMock invocation) throws Throwable {
+          CVSListener listener = (CVSListener) invocation.getArguments()[4];
+          List<String> lines = IOUtils.readLines(getClass().getResourceAsStream("/annotate.xml"), "UTF-8");
+          for (String line : lines) {
+            listener.messageSent(new MessageEvent("", line, false));
+          }
+          return true;
+        }
+      });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(inputFile));
+
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    verify(commandExecutor, times(2)).processCommand(eq("annotate"), any(), any(), any(), any());
+    verify(result).blameResult(eq(inputFile), argThat(lines -> lines.size() == 7));
+  }
+
+  @Test
+  public void testParallelBlame() throws IOException, AuthenticationException, CommandException {
+    List<InputFile> inputFiles = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      InputFile inputFile = new TestInputFileBuilder("foo", "src/foo" + i + ".xoo")
+        .setModuleBaseDir(baseDir.toPath())
+        .setLines(7)
+        .build();
+      fs.add(inputFile);
+      inputFiles.add(inputFile);
+    }
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    Set<String> threadNames = ConcurrentHashMap.newKeySet();
+
+    when(commandExecutor.processCommand(eq("annotate"), any(), any(), any(), any())).thenAnswer(new Answer<Boolean>() {
+
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        threadNames.add(Thread.currentThread().getName());
+        CVSListener listener = (CVSListener) invocation.getArguments()[4];
+        List<String> lines = IOUtils.readLines(getClass().getResourceAsStream("/annotate.xml"), "UTF-8");
+        for (String line : lines) {
+          listener.messageSent(new MessageEvent("", line, false));
+        }
+        return true;
+      }
+    });
+
+    when(input.filesToBlame()).thenReturn(inputFiles);
+
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.BLAME_THREADS_PROP_KEY, "4");
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    for (InputFile inputFile : inputFiles) {
+      verify(result).blameResult(eq(inputFile), argThat(lines -> lines.size() == 7));
+    }
+    assertThat(threadNames).allMatch(name -> name.startsWith("cvs-blame-"));
+  }
+
+  @Test
+  public void testBatchAnnotate() throws IOException, AuthenticationException, CommandException {
+    InputFile foo = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(7)
+      .build();
+    InputFile bar = new TestInputFileBuilder("foo", "src/bar.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(2)
+      .build();
+    fs.add(foo);
+    fs.add(bar);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+
+    when(commandExecutor.processCommand(eq("annotate"), any(), any(), any(), any())).thenAnswer(new Answer<Boolean>() {
+
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        CVSListener listener = (CVSListener) invocation.getArguments()[4];
+        List<String> lines = IOUtils.readLines(getClass().getResourceAsStream("/annotate-batch.xml"), "UTF-8");
+        for (String line : lines) {
+          // Like the real server, headers are sent on stderr
+          boolean isHeader = line.isEmpty() || line.startsWith("Annotations for ") || line.startsWith("*");
+          listener.messageSent(new MessageEvent("", line, isHeader));
+        }
+        return true;
+      }
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "10");
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    verify(commandExecutor).processCommand(eq("annotate"), any(), eq(new String[] {"src/bar.xoo", "src/foo.xoo"}), any(), any());
+    verify(result).blameResult(bar,
+      Arrays.asList(
+        new BlameLine().date(DateUtils.parseDateTime("2014-10-22T00:00:00+0000")).revision("1.3").author("henryju"),
+        new BlameLine().date(DateUtils.parseDateTime("2014-10-21T00:00:00+0000")).revision("1.2").author("julien")));
+    verify(result).blameResult(eq(foo), argThat(lines -> lines.size() == 7));
+  }
+
+  @Test
+  public void testAnnotateAloneFileMissingFromBatch() throws IOException, AuthenticationException, CommandException {
+    InputFile foo = new TestInputFileBuilder("foo", "src/foo.xoo").setModuleBaseDir(baseDir.toPath()).setLines(7).build();
+    InputFile bar = new TestInputFileBuilder("foo", "src/bar.xoo").setModuleBaseDir(baseDir.toPath()).setLines(2).build();
+    InputFile baz = new TestInputFileBuilder("foo", "src/baz.xoo").setModuleBaseDir(baseDir.toPath()).setLines(1).build();
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    when(commandExecutor.processCommand(eq("annotate"), any(), any(), any(), any())).thenAnswer(invocation -> {
+      CVSListener listener = (CVSListener) invocation.getArguments()[4];
+      if (((String[]) invocation.getArguments()[2]).length == 1) {
+        listener.messageSent(new MessageEvent("", "1.1          (julien   20-Oct-14): baz", false));
+        return true;
+      }
+      // Output of the batch has no section for baz.xoo
+      for (String line : IOUtils.readLines(getClass().getResourceAsStream("/annotate-batch.xml"), "UTF-8")) {
+        boolean isHeader = line.isEmpty() || line.startsWith("Annotations for ") || line.startsWith("*");
+        listener.messageSent(new MessageEvent("", line, isHeader));
+      }
+      return true;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar, baz));
+
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "10");
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    verify(commandExecutor).processCommand(eq("annotate"), any(), eq(new String[] {"src/baz.xoo"}), any(), any());
+    verify(result).blameResult(eq(foo), argThat(lines -> lines.size() == 7));
+    verify(result).blameResult(eq(bar), argThat(lines -> lines.size() == 2));
+    verify(result).blameResult(baz,
+      Collections.singletonList(new BlameLine().date(DateUtils.parseDateTime("2014-10-20T00:00:00+0000")).revision("1.1").author("julien")));
+  }
+
+  @Test
+  public void testRevisionsFromRlog() {
+    List<String> header = Arrays.asList(
+      "RCS file: /cvsroot/module/src/foo.xoo,v",
+      "head: 1.3",
+      "branch:",
+      "locks: strict",
+      "=============================================================================",
+      "RCS file: /cvsroot/module/src/imported.xoo,v",
+      "head: 1.1",
+      "branch: 1.1.1",
+      "=============================================================================",
+      "RCS file: /cvsroot/module/src/Attic/removed.xoo,v",
+      "head: 1.2",
+      "branch:");
+    assertThat(CvsBlameCommand.rlogRevisions(header, "/cvsroot", true))
+      .containsOnly(entry("module/src/foo.xoo", "1.3"), entry("module/src/removed.xoo", "1.2"));
+
+    List<String> selected = Arrays.asList(
+      "RCS file: /cvsroot/module/src/foo.xoo,v",
+      "head: 1.3",
+      "----------------------------",
+      "revision 1.2.2.2\tlocked by: julien;",
+      "date: 2014/10/23 10:00:00;  author: julien;  state: Exp;",
+      "----------------------------",
+      "revision 1.2.2.1",
+      "=============================================================================",
+      "RCS file: /cvsroot/module/src/bar.xoo,v",
+      "head: 1.1",
+      "=============================================================================");
+    assertThat(CvsBlameCommand.rlogRevisions(selected, "/cvsroot", false)).containsOnly(entry("module/src/foo.xoo", "1.2.2.2"));
+  }
+
+  @Test
+  public void testBatchesGroupFilesOfSameDirectory() {
+    InputFile a1 = new TestInputFileBuilder("foo", "a/1.xoo").build();
+    InputFile b1 = new TestInputFileBuilder("foo", "b/1.xoo").build();
+    InputFile a2 = new TestInputFileBuilder("foo", "a/2.xoo").build();
+    InputFile a3 = new TestInputFileBuilder("foo", "a/3.xoo").build();
+
+    assertThat(CvsBlameCommand.batches(Arrays.asList(a1, b1, a2, a3), 1)).containsExactly(
+      Arrays.asList(a1), Arrays.asList(b1), Arrays.asList(a2), Arrays.asList(a3));
+    assertThat(CvsBlameCommand.batches(Arrays.asList(a1, b1, a2, a3), 2)).containsExactly(
+      Arrays.asList(a1, a2), Arrays.asList(a3, b1));
+  }
+
+  @Test
+  public void testLargestBatchesFirst() {
+    InputFile small = new TestInputFileBuilder("foo", "a/small.xoo").setLines(10).build();
+    InputFile large = new TestInputFileBuilder("foo", "b/large.xoo").setLines(100_000).build();
+    InputFile medium1 = new TestInputFileBuilder("foo", "c/1.xoo").setLines(300).build();
+    InputFile medium2 = new TestInputFileBuilder("foo", "c/2.xoo").setLines(300).build();
+    List<List<InputFile>> batches = Arrays.asList(Arrays.asList(small), Arrays.asList(medium1, medium2), Arrays.asList(large));
+
+    assertThat(CvsBlameCommand.largestFirst(batches, InputFile::lines)).containsExactly(
+      Arrays.asList(large), Arrays.asList(medium1, medium2), Arrays.asList(small));
+  }
+
+  @Test
+  public void testBlameFromLocalRepository() throws IOException {
+    File repository = temp.newFolder();
+    FileUtils.copyURLToFile(getClass().getResource("/rcs/foo.xoo,v"), new File(repository, "module/src/foo.xoo,v"));
+    FileUtils.write(new File(baseDir, "CVS/Root"), ":local:" + repository.getAbsolutePath());
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src");
+    FileUtils.write(new File(baseDir, "src/foo.xoo"), "B\nc\nx\nd\n");
+    InputFile inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(5)
+      .build();
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.asList(inputFile));
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    verifyZeroInteractions(commandExecutor);
+    verify(result).blameResult(eq(inputFile), argThat(lines -> lines.size() == 5 && "1.3".equals(lines.get(2).revision())));
+  }
+
+  @Test
+  public void testAlignBlameFromLocalRepositoryWithLocalChanges() throws IOException {
+    File repository = temp.newFolder();
+    FileUtils.copyURLToFile(getClass().getResource("/rcs/foo.xoo,v"), new File(repository, "module/src/foo.xoo,v"));
+    FileUtils.write(new File(baseDir, "CVS/Root"), ":local:" + repository.getAbsolutePath());
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), "/foo.xoo/1.3/Wed Oct 22 10:00:00 2014//\n");
+    // Timestamp of the working file is not the one of its entry
+    FileUtils.write(new File(baseDir, "src/foo.xoo"), "B\nc\nchanged\nd\n");
+    InputFile inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(5)
+      .build();
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.asList(inputFile));
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.BLAME_LOCAL_CHANGES_PROP_KEY, "true");
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    verifyZeroInteractions(commandExecutor);
+    verify(result).blameResult(eq(inputFile), argThat(lines -> lines.stream().map(BlameLine::revision).collect(Collectors.toList())
+      .equals(Arrays.asList("1.2", "1.1", CvsLocalChanges.UNCOMMITTED, "1.2", "1.2"))));
+  }
+
+  @Test
+  public void testAnnotateWhenRcsFileIsCorrupt() throws IOException, AuthenticationException, CommandException {
+    File repository = temp.newFolder();
+    // Truncated in the middle of the deltas, like a file being copied
+    String rcs = IOUtils.toString(getClass().getResource("/rcs/foo.xoo,v"), StandardCharsets.ISO_8859_1);
+    FileUtils.write(new File(repository, "module/src/foo.xoo,v"), rcs.substring(0, rcs.indexOf("1.1\nlog")), StandardCharsets.ISO_8859_1);
+    FileUtils.write(new File(baseDir, "CVS/Root"), ":local:" + repository.getAbsolutePath());
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src");
+    FileUtils.write(new File(baseDir, "src/foo.xoo"), "B\nc\nx\nd\n");
+    InputFile inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(7)
+      .build();
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.asList(inputFile));
+
+    BlameOutput result = mock(BlameOutput.class);
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    when(commandExecutor.processCommand(eq("annotate"), any(), any(), any(), any())).thenAnswer(invocation -> {
+      CVSListener listener = (CVSListener) invocation.getArguments()[4];
+      for (String line : IOUtils.readLines(getClass().getResourceAsStream("/annotate.xml"), "UTF-8")) {
+        listener.messageSent(new MessageEvent("", line, false));
+      }
+      return true;
+    });
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor).blame(input, result);
+
+    verify(commandExecutor).processCommand(eq("annotate"), any(), eq(new String[] {"src/foo.xoo"}), any(), any());
+    verify(result).blameResult(eq(inputFile), argThat(lines -> lines.size() == 7));
+  }
+
+  @Test
+  public void testBlameFromCache() throws IOException, AuthenticationException, CommandException {
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), "/foo.xoo/1.2/Tue Oct 21 10:00:00 2014//\n");
+    FileUtils.write(new File(baseDir, "src/foo.xoo"), "sample content");
+    InputFile inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(8)
+      .build();
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.asList(inputFile));
+
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    when(commandExecutor.processCommand(eq("annotate"), any(), any(), any(), any())).thenAnswer(invocation -> {
+      CVSListener listener = (CVSListener) invocation.getArguments()[4];
+      for (String line : IOUtils.readLines(getClass().getResourceAsStream("/annotate.xml"), "UTF-8")) {
+        listener.messageSent(new MessageEvent("", line, false));
+      }
+      return true;
+    });
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_PROP_KEY, true);
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, temp.newFolder().getAbsolutePath());
+    CvsBlameCommand blameCommand = new CvsBlameCommand(new CvsConfiguration(settings.asConfig()), new DefaultTempFolder(temp.newFolder()), commandExecutor);
+
+    BlameOutput firstResult = mock(BlameOutput.class);
+    blameCommand.blame(input, firstResult);
+    BlameOutput secondResult = mock(BlameOutput.class);
+    blameCommand.blame(input, secondResult);
+
+    verify(commandExecutor, times(1)).processCommand(eq("annotate"), any(), any(), any(), any());
+    verify(firstResult).blameResult(eq(inputFile), argThat(lines -> lines.size() == 8));
+    verify(secondResult).blameResult(eq(inputFile), argThat(lines -> lines.size() == 8 && "1.1".equals(lines.get(0).revision())));
+  }
+
   @Test
   public void testUnknowError() throws IOException, AuthenticationException, CommandException {
     File source = new File(baseDir, "src/foo.xoo");
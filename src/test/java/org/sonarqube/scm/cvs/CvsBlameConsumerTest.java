@@ -0,0 +1,132 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CvsBlameConsumerTest {
+
+  @Rule
+  public UTCRule utcRule = new UTCRule();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void parseAnnotations() {
+    CvsBlameConsumer consumer = new CvsBlameConsumer("foo.xoo");
+    consumer.consume(false, "Annotations for foo.xoo");
+    consumer.consume(false, "***************");
+    consumer.consume(false, "1.1          (julien   21-Oct-14): if (a) { b(\"c: d\"); }");
+    consumer.consume(false, "1.12.2.3     (tor 24-MAR-98):");
+    consumer.consume(false, "1.2          (a.b-c    01-Jan-00):   x:y");
+
+    assertThat(consumer.getLines()).containsExactly(
+      new BlameLine().date(DateUtils.parseDateTime("2014-10-21T00:00:00+0000")).revision("1.1").author("julien"),
+      new BlameLine().date(DateUtils.parseDateTime("1998-03-24T00:00:00+0000")).revision("1.12.2.3").author("tor"),
+      new BlameLine().date(DateUtils.parseDateTime("2000-01-01T00:00:00+0000")).revision("1.2").author("a.b-c"));
+  }
+
+  @Test
+  public void matchSectionsOfBatchOnExactPath() {
+    CvsBatchBlameConsumer consumer = new CvsBatchBlameConsumer(Arrays.asList("a/Foo.xoo", "b/a/Foo.xoo", "c/Foo.xoo"));
+    consumer.consume(true, "Annotations for b/a/Foo.xoo");
+    consumer.consume(true, "***************");
+    consumer.consume(false, "1.1          (julien   21-Oct-14): foo");
+    consumer.consume(true, "Annotations for Foo.xoo");
+    consumer.consume(true, "***************");
+    consumer.consume(false, "1.2          (julien   21-Oct-14): foo");
+    consumer.consume(true, "Annotations for c/Foo.xoo");
+    consumer.consume(true, "***************");
+
+    assertThat(consumer.getLines("b/a/Foo.xoo")).extracting(BlameLine::revision).containsExactly("1.1");
+    assertThat(consumer.getLines("c/Foo.xoo")).isEmpty();
+    assertThat(consumer.getLines("a/Foo.xoo")).isNull();
+  }
+
+  @Test
+  public void shareValuesBetweenFiles() {
+    CvsBlameDictionary dictionary = new CvsBlameDictionary();
+    CvsBlameConsumer foo = new CvsBlameConsumer("foo.xoo", dictionary);
+    foo.consume(false, "1.1          (julien   21-Oct-14): foo");
+    CvsBlameConsumer bar = new CvsBlameConsumer("bar.xoo", dictionary);
+    bar.consume(false, "1.1          (julien   21-Oct-14): bar");
+
+    BlameLine fooLine = foo.getLines().get(0);
+    BlameLine barLine = bar.getLines().get(0);
+    assertThat(barLine.date()).isSameAs(fooLine.date());
+    assertThat(barLine.author()).isSameAs(fooLine.author());
+    assertThat(barLine.revision()).isSameAs(fooLine.revision());
+  }
+
+  @Test
+  public void streamSectionsOfModule() {
+    InputFile foo = new TestInputFileBuilder("foo", "src/foo.xoo").build();
+    Map<String, List<BlameLine>> blamed = new LinkedHashMap<>();
+    CvsModuleBlameConsumer consumer = new CvsModuleBlameConsumer(Collections.singletonMap("module/src/foo.xoo", foo),
+      (inputFile, lines) -> blamed.put(inputFile.relativePath(), lines), new CvsBlameDictionary());
+
+    consumer.consume(true, "Annotations for module/src/foo.xoo");
+    consumer.consume(true, "***************");
+    consumer.consume(false, "1.1          (julien   21-Oct-14): foo");
+    consumer.consume(false, "1.2          (tor      22-Oct-14): foo");
+    assertThat(blamed).isEmpty();
+    consumer.consume(true, "Annotations for module/src/bar.xoo");
+    consumer.consume(true, "***************");
+    consumer.consume(false, "1.1          (julien   21-Oct-14): bar");
+    consumer.flush();
+
+    assertThat(blamed).containsOnlyKeys("src/foo.xoo");
+    assertThat(blamed.get("src/foo.xoo")).extracting(BlameLine::revision).containsExactly("1.1", "1.2");
+    assertThat(consumer.discarded()).isEqualTo(1);
+  }
+
+  @Test
+  public void keepOnlyTailOfStdout() {
+    CvsBlameConsumer consumer = new CvsBlameConsumer("foo.xoo");
+    for (int i = 0; i < 1000; i++) {
+      consumer.consume(false, "line " + i);
+    }
+    String stdout = consumer.getStdout().toString();
+    assertThat(stdout).startsWith("[950 lines omitted]\n").endsWith("line 999\n").doesNotContain("line 949\n");
+    assertThat(consumer.getLines()).isEmpty();
+  }
+
+  @Test
+  public void failOnInvalidDate() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Unable to parse date 32-Oct-14 in blame of file foo.xoo");
+
+    new CvsBlameConsumer("foo.xoo").consume(false, "1.1          (julien   32-Oct-14): content");
+  }
+}
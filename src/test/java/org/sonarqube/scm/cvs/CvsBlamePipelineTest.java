@@ -0,0 +1,133 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class CvsBlamePipelineTest {
+
+  @Test
+  public void parseMessagesInOrder() {
+    List<String> parsed = Collections.synchronizedList(new ArrayList<>());
+    try (CvsBlamePipeline pipeline = new CvsBlamePipeline()) {
+      CvsBlamePipeline.Parser parser = pipeline.parser(e -> parsed.add(e.getMessage()));
+      for (int i = 0; i < 3 * CvsBlamePipeline.CHUNK_MESSAGES + 1; i++) {
+        parser.add(new MessageEvent(this, "line " + i, false));
+      }
+      parser.finish();
+    }
+
+    assertThat(parsed).hasSize(3 * CvsBlamePipeline.CHUNK_MESSAGES + 1);
+    assertThat(parsed.get(0)).isEqualTo("line 0");
+    assertThat(parsed.get(parsed.size() - 1)).isEqualTo("line " + 3 * CvsBlamePipeline.CHUNK_MESSAGES);
+  }
+
+  @Test
+  public void reportParseFailureToCommandThread() {
+    try (CvsBlamePipeline pipeline = new CvsBlamePipeline()) {
+      CvsBlamePipeline.Parser parser = pipeline.parser(e -> {
+        throw new IllegalStateException("Unable to parse date");
+      });
+      parser.add(new MessageEvent(this, "1.1 (julien 99-Foo-14): line", false));
+      try {
+        parser.finish();
+        fail("Expected an IllegalStateException");
+      } catch (IllegalStateException e) {
+        assertThat(e).hasMessage("Unable to parse date");
+      }
+    }
+  }
+
+  @Test
+  public void waitForDeliveriesOnClose() {
+    AtomicInteger delivered = new AtomicInteger();
+    try (CvsBlamePipeline pipeline = new CvsBlamePipeline()) {
+      BlameOutput output = pipeline.output((file, lines) -> delivered.incrementAndGet());
+      for (int i = 0; i < 100; i++) {
+        output.blameResult(file(), Collections.emptyList());
+      }
+    }
+
+    assertThat(delivered).hasValue(100);
+  }
+
+  @Test
+  public void blockProducersWhenDeliveryQueueIsFull() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch produced = new CountDownLatch(4);
+    try (CvsBlamePipeline pipeline = new CvsBlamePipeline(2)) {
+      BlameOutput output = pipeline.output((file, lines) -> await(release));
+      Thread producer = new Thread(() -> {
+        for (int i = 0; i < 4; i++) {
+          output.blameResult(file(), Collections.emptyList());
+          produced.countDown();
+        }
+      });
+      producer.start();
+
+      // One result being delivered, two queued, the last one waits for room in the queue
+      assertThat(produced.await(200, TimeUnit.MILLISECONDS)).isFalse();
+      assertThat(produced.getCount()).isEqualTo(1);
+
+      release.countDown();
+      assertThat(produced.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+  }
+
+  @Test
+  public void failOnCloseWhenDeliveryFailed() {
+    CvsBlamePipeline pipeline = new CvsBlamePipeline();
+    pipeline.output((file, lines) -> {
+      throw new IllegalArgumentException("Invalid line");
+    }).blameResult(file(), Collections.emptyList());
+
+    try {
+      pipeline.close();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Unable to report blame: Invalid line");
+    }
+  }
+
+  private static InputFile file() {
+    return new TestInputFileBuilder("foo", "src/foo.xoo").build();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,617 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netbeans.lib.cvsclient.admin.Entry;
+import org.netbeans.lib.cvsclient.command.GlobalOptions;
+import org.netbeans.lib.cvsclient.connection.AuthenticationException;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.internal.DefaultTempFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Executes the commands on a {@link FakePserver}, to check what goes over the wire
+ */
+public class CvsCommandExecutorTest {
+
+  private static final int FILES = 12;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private FakePserver server;
+  private MapSettings settings;
+  private File baseDir;
+  private File workDir;
+  private CvsMetrics metrics = new CvsMetrics();
+
+  @Before
+  public void prepare() throws IOException {
+    server = new FakePserver().user("julien", "secret");
+    settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    settings.setProperty(CvsConfiguration.PASSWORD_PROP_KEY, "secret");
+    settings.setProperty(CvsConfiguration.DISABLE_COMPRESSION_PROP_KEY, "true");
+
+    baseDir = temp.newFolder();
+    workDir = temp.newFolder();
+    FileUtils.write(new File(baseDir, "CVS/Root"), server.cvsRoot("julien") + "\n");
+    FileUtils.write(new File(baseDir, "CVS/Repository"), "module\n");
+    FileUtils.write(new File(baseDir, "CVS/Entries"), "D/src////\n");
+    FileUtils.write(new File(baseDir, "src/CVS/Root"), server.cvsRoot("julien") + "\n");
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src\n");
+    for (int i = 0; i < FILES; i++) {
+      server.file("module/src/foo" + i + ".xoo", 10 + i);
+    }
+    writeEntries(FILES);
+  }
+
+  @After
+  public void stopServer() throws IOException {
+    server.close();
+  }
+
+  @Test
+  public void annotateOnPserver() throws Exception {
+    CvsCommandExecutor executor = new CvsCommandExecutor(config());
+    CvsBlameConsumer consumer = new CvsBlameConsumer("src/foo3.xoo");
+
+    assertThat(executor.processCommand("annotate", globalOptions(), new String[] {"src/foo3.xoo"}, baseDir, consumer)).isTrue();
+
+    assertThat(consumer.getLines()).hasSize(13);
+    assertThat(consumer.getLines().get(1).author()).isEqualTo("henryju");
+    assertThat(consumer.getLines().get(1).revision()).isEqualTo("1.2");
+    assertThat(server.connections()).isEqualTo(1);
+  }
+
+  @Test
+  public void failOnWrongPassword() throws Exception {
+    settings.setProperty(CvsConfiguration.PASSWORD_PROP_KEY, "wrong");
+    CvsCommandExecutor executor = new CvsCommandExecutor(config());
+
+    try {
+      executor.processCommand("annotate", globalOptions(), new String[] {"src/foo3.xoo"}, baseDir, new CvsBlameConsumer("src/foo3.xoo"));
+      fail("Expected an AuthenticationException");
+    } catch (AuthenticationException e) {
+      assertThat(server.commands()).isZero();
+    }
+  }
+
+  @Test
+  public void oneConnectionPerCommandWithoutReuse() throws IOException {
+    blame(FILES);
+
+    assertThat(server.commands()).isEqualTo(FILES);
+    assertThat(server.connections()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void reuseConnection() throws IOException {
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+
+    blame(FILES);
+
+    assertThat(server.commands()).isEqualTo(FILES);
+    assertThat(server.connections()).isEqualTo(1);
+  }
+
+  @Test
+  public void batchFilesInOneCommand() throws IOException {
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "5");
+
+    blame(FILES);
+
+    assertThat(server.commands()).isEqualTo(3);
+    assertThat(server.connections()).isEqualTo(1);
+  }
+
+  @Test
+  public void parallelCommandsOnSeveralConnections() throws IOException {
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_THREADS_PROP_KEY, "4");
+    server.latency(20).maxConcurrentCommands(2);
+
+    blame(FILES);
+
+    assertThat(server.commands()).isEqualTo(FILES);
+    assertThat(server.connections()).isBetween(1, 4);
+    assertThat(server.maxActiveCommands()).isEqualTo(2);
+  }
+
+  @Test
+  public void limitConcurrentCommandsOnVirtualThreads() throws IOException {
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_THREADS_PROP_KEY, "3");
+    settings.setProperty(CvsConfiguration.BLAME_VIRTUAL_THREADS_PROP_KEY, "true");
+    server.latency(20);
+
+    blame(FILES);
+
+    // Platform threads are used when the runtime doesn't support virtual ones
+    assertThat(server.commands()).isEqualTo(FILES);
+    assertThat(server.connections()).isBetween(1, 3);
+    assertThat(server.maxActiveCommands()).isBetween(1, 3);
+  }
+
+  @Test
+  public void skipBinaryAndLargeFilesWithoutCommand() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_MAX_LINES_PROP_KEY, "20");
+    StringBuilder entries = new StringBuilder();
+    for (int i = 0; i < FILES; i++) {
+      String options = i == 3 ? "-kb" : "";
+      entries.append("/foo").append(i).append(".xoo/1.5/Tue Oct 21 00:00:00 2014/").append(options).append("/\n");
+    }
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), entries.toString());
+
+    // foo11.xoo has 21 lines
+    BlameOutput output = blame(FILES, 3, 11);
+
+    verify(output, never()).blameResult(argThat(f -> f.relativePath().equals("src/foo3.xoo")), any());
+    verify(output, never()).blameResult(argThat(f -> f.relativePath().equals("src/foo11.xoo")), any());
+    assertThat(server.commands()).isEqualTo(FILES - 2);
+  }
+
+  @Test
+  public void reportMetrics() throws IOException {
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "5");
+
+    blame(FILES);
+
+    assertThat(metrics.count(CvsMetrics.Phase.CONNECT)).isEqualTo(1);
+    assertThat(metrics.count(CvsMetrics.Phase.COMMAND)).isEqualTo(3);
+    assertThat(metrics.count(CvsMetrics.Phase.PARSE)).isEqualTo(3);
+    assertThat(metrics.files()).isEqualTo(FILES);
+    // 10 + 11 + ... + 21 lines
+    assertThat(metrics.lines()).isEqualTo(186);
+    assertThat(metrics.bytesIn()).isGreaterThan(186 * 30);
+    assertThat(metrics.bytesOut()).isGreaterThan(0);
+    assertThat(metrics.slowestFiles()).hasSize(10);
+    assertThat(new File(workDir, CvsMetrics.REPORT_FILENAME)).exists();
+  }
+
+  @Test
+  public void compressionOnlyAppliesToFileContents() throws IOException {
+    settings.setProperty(CvsConfiguration.DISABLE_COMPRESSION_PROP_KEY, "false");
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+
+    blame(FILES);
+
+    assertThat(server.requests("gzip-file-contents")).isEqualTo(server.connections());
+    assertThat(server.requests("Gzip-stream")).isZero();
+    assertThat(server.commands()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void compressConnectionsOnSlowLink() throws IOException {
+    File cacheDir = temp.newFolder();
+    settings.setProperty(CvsConfiguration.COMPRESSION_AUTO_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, cacheDir.getAbsolutePath());
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    server.bandwidth(8 * 1024);
+
+    blame(FILES);
+
+    // The connection used while sampling is replaced by a compressed one
+    assertThat(server.requests("Gzip-stream")).isEqualTo(1);
+    assertThat(server.connections()).isEqualTo(2);
+    assertThat(server.commands()).isEqualTo(FILES);
+    assertThat(new File(cacheDir, CvsCompressionTuner.DIR + "/" + CvsCompressionTuner.FILENAME)).exists();
+  }
+
+  @Test
+  public void noCompressionOnFastLink() throws IOException {
+    File cacheDir = temp.newFolder();
+    settings.setProperty(CvsConfiguration.COMPRESSION_AUTO_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, cacheDir.getAbsolutePath());
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+
+    blame(FILES);
+
+    assertThat(server.requests("Gzip-stream")).isZero();
+    assertThat(server.connections()).isEqualTo(1);
+    assertThat(FileUtils.readFileToString(new File(cacheDir, CvsCompressionTuner.DIR + "/" + CvsCompressionTuner.FILENAME))).contains("=0,");
+  }
+
+  @Test
+  public void pipelineParsingAndReporting() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_PIPELINE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_THREADS_PROP_KEY, "2");
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "5");
+
+    blame(FILES);
+
+    assertThat(server.commands()).isEqualTo(3);
+    assertThat(metrics.files()).isEqualTo(FILES);
+    assertThat(metrics.count(CvsMetrics.Phase.PARSE)).isEqualTo(3);
+  }
+
+  @Test
+  public void pipelineModuleOutput() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_PIPELINE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_MODULE_PROP_KEY, "true");
+
+    blame(FILES);
+
+    assertThat(server.requests("rannotate")).isEqualTo(1);
+    assertThat(metrics.files()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void retryCommandExceedingItsDeadline() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_TIMEOUT_PROP_KEY, "1");
+    server.stall("module/src/foo3.xoo", 30_000);
+
+    long start = System.nanoTime();
+    blame(FILES);
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(10_000);
+    assertThat(server.commands()).isEqualTo(FILES + 1);
+    assertThat(metrics.retries()).isEqualTo(1);
+  }
+
+  @Test
+  public void skipFilesWhoseBlameFailed() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_TIMEOUT_PROP_KEY, "1");
+    settings.setProperty(CvsConfiguration.BLAME_RETRIES_PROP_KEY, "0");
+    settings.setProperty(CvsConfiguration.BLAME_SKIP_FAILURES_PROP_KEY, "true");
+    server.stall("module/src/foo3.xoo", 30_000);
+
+    BlameOutput output = blame(FILES, 3);
+
+    verify(output, never()).blameResult(argThat(f -> f.relativePath().equals("src/foo3.xoo")), any());
+    assertThat(metrics.skippedCount()).isEqualTo(1);
+    assertThat(metrics.files()).isEqualTo(FILES - 1);
+  }
+
+  @Test
+  public void failWhenDeadlineExceededWithoutSkipping() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_TIMEOUT_PROP_KEY, "1");
+    settings.setProperty(CvsConfiguration.BLAME_RETRIES_PROP_KEY, "0");
+    server.stall("module/src/foo3.xoo", 30_000);
+
+    try {
+      blame(FILES);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("annotate", "src/foo3.xoo");
+      assertThat(e.getCause().getMessage()).contains("exceeded its deadline of 1000 ms");
+    }
+  }
+
+  @Test
+  public void hedgeSlowCommand() throws IOException {
+    settings.setProperty(CvsConfiguration.REUSE_CONNECTION_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_HEDGE_PROP_KEY, "true");
+    for (int i = FILES; i < 30; i++) {
+      server.file("module/src/foo" + i + ".xoo", 10 + i);
+    }
+    writeEntries(30);
+    server.stall("module/src/foo29.xoo", 30_000);
+
+    long start = System.nanoTime();
+    blame(30);
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(20_000);
+    // Jitter of the loopback may also get a regular command hedged
+    assertThat(metrics.hedgedCount()).isPositive();
+    assertThat(metrics.retries()).isZero();
+    assertThat(server.commands()).isBetween(31, 30 + (int) metrics.hedgedCount());
+  }
+
+  @Test
+  public void annotateWholeModuleInOneCommand() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_MODULE_PROP_KEY, "true");
+    server.file("module/src/notAnalyzed.xoo", 5);
+    server.file("other/foo.xoo", 5);
+
+    blame(FILES);
+
+    assertThat(server.commands()).isEqualTo(1);
+    assertThat(server.requests("rannotate")).isEqualTo(1);
+    assertThat(server.requests("Entry")).isZero();
+    assertThat(metrics.files()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void acceptAbsoluteRepositoryPaths() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_MODULE_PROP_KEY, "true");
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "/cvsroot/module/src\n");
+
+    blame(FILES);
+
+    assertThat(server.requests("rannotate")).isEqualTo(1);
+    assertThat(server.requests("annotate")).isZero();
+  }
+
+  @Test
+  public void annotateFilesOutsideOfModuleOneByOne() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_MODULE_PROP_KEY, "true");
+    // Directory of another module, like with an alias in CVSROOT/modules
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "other/src\n");
+    for (int i = 0; i < FILES; i++) {
+      server.file("other/src/foo" + i + ".xoo", 10 + i);
+    }
+
+    blame(FILES);
+
+    // None of the files is in the module, which is not annotated
+    assertThat(server.requests("rlog")).isEqualTo(1);
+    assertThat(server.requests("rannotate")).isZero();
+    assertThat(server.requests("annotate")).isEqualTo(FILES);
+    assertThat(metrics.files()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void annotateFilesAtAnotherRevisionThanModuleByBatches() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_MODULE_PROP_KEY, "true");
+    // foo3 is out of date, foo4 is on a branch
+    server.head("module/src/foo3.xoo", "1.6");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), FileUtils.readFileToString(new File(baseDir, "src/CVS/Entries"))
+      .replace("/foo4.xoo/1.5/Tue Oct 21 00:00:00 2014//", "/foo4.xoo/1.5.2.1/Tue Oct 21 00:00:00 2014//TBR"));
+
+    blame(FILES);
+
+    assertThat(server.requests("rlog")).isEqualTo(1);
+    assertThat(server.requests("rannotate")).isEqualTo(1);
+    assertThat(server.requests("annotate")).isEqualTo(2);
+    assertThat(metrics.files()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void annotateByRepositoryPath() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_RANNOTATE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "5");
+
+    blame(FILES);
+
+    assertThat(server.requests("rannotate")).isEqualTo(3);
+    assertThat(server.requests("annotate")).isZero();
+    assertThat(server.requests("Entry")).isZero();
+    assertThat(metrics.files()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void oneCommandPerRevisionOfBatch() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_RANNOTATE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "20");
+    StringBuilder entries = new StringBuilder();
+    for (int i = 0; i < FILES; i++) {
+      // Locally added file has no revision on the server yet
+      String revision = i == 0 ? "0" : ("1." + (i % 2 + 1));
+      entries.append("/foo").append(i).append(".xoo/").append(revision).append("/Tue Oct 21 00:00:00 2014//\n");
+    }
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), entries.toString());
+
+    blame(FILES);
+
+    assertThat(server.requests("rannotate")).isEqualTo(2);
+    assertThat(server.requests("annotate")).isEqualTo(1);
+    assertThat(metrics.files()).isEqualTo(FILES);
+  }
+
+  @Test
+  public void blameFromDifferencesWithCachedRevision() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(CvsConfiguration.BLAME_INCREMENTAL_PROP_KEY, "true");
+    String path = "module/src/foo3.xoo";
+    blame(FILES);
+    assertThat(server.requests("annotate")).isEqualTo(FILES);
+
+    // foo3 is updated to 1.6: a line changed, another one removed and one added
+    server.revision(path, "1.5");
+    List<String> annotations = server.annotations(path);
+    annotations.set(1, "1.6          (tor      22-Oct-14): changed");
+    annotations.remove(6);
+    annotations.add(10, "1.6          (tor      22-Oct-14): added");
+    server.file(path, annotations).revision(path, "1.6");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"),
+      FileUtils.readFileToString(new File(baseDir, "src/CVS/Entries")).replace("/foo3.xoo/1.5/Tue Oct 21", "/foo3.xoo/1.6/Wed Oct 22"));
+    CvsBlameConsumer expected = new CvsBlameConsumer(path);
+    annotations.forEach(line -> expected.consume(false, line));
+
+    BlameOutput output = blame(FILES);
+
+    assertThat(server.requests("annotate")).isEqualTo(FILES);
+    assertThat(server.requests("diff")).isEqualTo(1);
+    assertThat(server.requests("log")).isEqualTo(1);
+    verify(output).blameResult(argThat(inputFile -> inputFile.relativePath().equals("src/foo3.xoo")),
+      argThat(lines -> lines.equals(expected.getLines())));
+  }
+
+  @Test
+  public void annotateWhenBlameFromDiffDoesNotMatchFile() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(CvsConfiguration.BLAME_INCREMENTAL_PROP_KEY, "true");
+    String path = "module/src/foo3.xoo";
+    blame(FILES);
+    // Differences of 1.6 remove two lines, while the working file has as many lines as before
+    server.revision(path, "1.5");
+    List<String> annotations = server.annotations(path);
+    annotations.remove(6);
+    annotations.remove(6);
+    server.file(path, annotations).revision(path, "1.6");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"),
+      FileUtils.readFileToString(new File(baseDir, "src/CVS/Entries")).replace("/foo3.xoo/1.5/Tue Oct 21", "/foo3.xoo/1.6/Wed Oct 22"));
+    server.file(path, 13);
+
+    blame(FILES);
+
+    assertThat(server.requests("diff")).isEqualTo(1);
+    assertThat(server.requests("annotate")).isEqualTo(FILES + 1);
+  }
+
+  @Test
+  public void annotateWhenDiffExceedsItsDeadline() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(CvsConfiguration.BLAME_INCREMENTAL_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_TIMEOUT_PROP_KEY, "1");
+    String path = "module/src/foo3.xoo";
+    blame(FILES);
+    server.revision(path, "1.5");
+    List<String> annotations = server.annotations(path);
+    annotations.set(1, "1.6          (tor      22-Oct-14): changed");
+    server.file(path, annotations).revision(path, "1.6");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"),
+      FileUtils.readFileToString(new File(baseDir, "src/CVS/Entries")).replace("/foo3.xoo/1.5/Tue Oct 21", "/foo3.xoo/1.6/Wed Oct 22"));
+    server.stall(path, 30_000);
+
+    long start = System.nanoTime();
+    BlameOutput output = blame(FILES);
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(10_000);
+    assertThat(server.requests("diff")).isEqualTo(1);
+    assertThat(server.requests("annotate")).isEqualTo(FILES + 1);
+    verify(output).blameResult(argThat(inputFile -> inputFile.relativePath().equals("src/foo3.xoo")), any());
+  }
+
+  @Test
+  public void annotateWhenPreviousRevisionIsNotCached() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_PROP_KEY, "true");
+    settings.setProperty(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(CvsConfiguration.BLAME_INCREMENTAL_PROP_KEY, "true");
+    blame(FILES);
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"),
+      FileUtils.readFileToString(new File(baseDir, "src/CVS/Entries")).replace("/foo3.xoo/1.5/Tue Oct 21", "/foo3.xoo/1.6/Wed Oct 22"));
+    FileUtils.deleteDirectory(new File(settings.asConfig().get(CvsConfiguration.BLAME_CACHE_DIR_PROP_KEY).get()));
+
+    blame(FILES);
+
+    assertThat(server.requests("diff")).isZero();
+    assertThat(server.requests("annotate")).isEqualTo(2 * FILES);
+  }
+
+  @Test
+  public void alignBlameWithLocalChanges() throws IOException {
+    settings.setProperty(CvsConfiguration.BLAME_LOCAL_CHANGES_PROP_KEY, "true");
+    long checkout = new Entry("/foo0.xoo/1.5/Tue Oct 21 00:00:00 2014//").getLastModified().getTime();
+    for (int i = 0; i < FILES; i++) {
+      new File(baseDir, "src/foo" + i + ".xoo").setLastModified(checkout);
+    }
+    // foo3 is patched: a line changed, another one removed and one added
+    List<String> working = new ArrayList<>();
+    for (int i = 0; i < 13; i++) {
+      working.add("line " + i);
+    }
+    working.set(4, "patched");
+    working.remove(8);
+    working.add(10, "added");
+    FileUtils.write(new File(baseDir, "src/foo3.xoo"), String.join("\n", working) + "\n");
+
+    BlameOutput output = blame(FILES);
+
+    assertThat(server.requests("annotate")).isEqualTo(FILES);
+    verify(output).blameResult(argThat(inputFile -> inputFile.relativePath().equals("src/foo3.xoo")), argThat(lines -> {
+      List<String> revisions = lines.stream().map(BlameLine::revision).collect(Collectors.toList());
+      return revisions.equals(Arrays.asList("1.1", "1.2", "1.3", "1.4", "uncommitted", "1.1", "1.2", "1.3", "1.5", "1.1", "uncommitted", "1.2", "1.3"));
+    }));
+    verify(output).blameResult(argThat(inputFile -> inputFile.relativePath().equals("src/foo2.xoo")),
+      argThat(lines -> lines.stream().noneMatch(line -> CvsLocalChanges.UNCOMMITTED.equals(line.revision()))));
+  }
+
+  private void writeEntries(int fileCount) throws IOException {
+    StringBuilder entries = new StringBuilder();
+    for (int i = 0; i < fileCount; i++) {
+      FileUtils.write(new File(baseDir, "src/foo" + i + ".xoo"), "content\n");
+      entries.append("/foo").append(i).append(".xoo/1.5/Tue Oct 21 00:00:00 2014//\n");
+    }
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), entries.toString());
+  }
+
+  /**
+   * @param notBlamed indexes of the files whose blame is expected to be skipped
+   */
+  private BlameOutput blame(int fileCount, int... notBlamed) throws IOException {
+    DefaultFileSystem fs = new DefaultFileSystem(baseDir).setWorkDir(workDir.toPath());
+    List<InputFile> inputFiles = new ArrayList<>();
+    for (int i = 0; i < fileCount; i++) {
+      InputFile inputFile = new TestInputFileBuilder("foo", "src/foo" + i + ".xoo")
+        .setModuleBaseDir(baseDir.toPath())
+        .setLines(10 + i)
+        .build();
+      fs.add(inputFile);
+      inputFiles.add(inputFile);
+    }
+    BlameInput input = mock(BlameInput.class);
+    when(input.fileSystem()).thenReturn(fs);
+    when(input.filesToBlame()).thenReturn(inputFiles);
+    BlameOutput output = mock(BlameOutput.class);
+
+    CvsConfiguration config = config();
+    CvsCommandExecutor executor = new CvsCommandExecutor(config, metrics);
+    try {
+      new CvsBlameCommand(config, new DefaultTempFolder(temp.newFolder()), executor, metrics).blame(input, output);
+    } finally {
+      executor.stop();
+    }
+
+    List<Integer> skipped = Arrays.stream(notBlamed).boxed().collect(Collectors.toList());
+    for (int i = 0; i < fileCount; i++) {
+      if (!skipped.contains(i)) {
+        int expectedLines = 10 + i;
+        verify(output).blameResult(eq(inputFiles.get(i)), argThat(lines -> lines.size() == expectedLines));
+      }
+    }
+    return output;
+  }
+
+  private CvsConfiguration config() {
+    return new CvsConfiguration(settings.asConfig());
+  }
+
+  private GlobalOptions globalOptions() {
+    GlobalOptions globalOptions = new GlobalOptions();
+    globalOptions.setCVSRoot(server.cvsRoot("julien"));
+    return globalOptions;
+  }
+}
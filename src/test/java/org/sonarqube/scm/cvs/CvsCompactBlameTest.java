@@ -0,0 +1,86 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class CvsCompactBlameTest {
+
+  private static final Date DAY1 = DateUtils.parseDate("2014-10-21");
+  private static final Date DAY2 = DateUtils.parseDate("2014-10-22");
+
+  @Test
+  public void mergeConsecutiveLinesOfSameAnnotation() {
+    CvsCompactBlame blame = new CvsCompactBlame();
+    blame.add("1.1", "julien", DAY1);
+    blame.add("1.1", "julien", DAY1);
+    blame.add("1.2", "henryju", DAY2);
+    blame.add(3, "1.1", "julien", DAY1);
+
+    assertThat(blame).hasSize(6);
+    assertThat(blame.runCount()).isEqualTo(3);
+    assertThat(blame.runLength(2)).isEqualTo(3);
+    // The annotation of the third run is the one of the first run
+    assertThat(blame.runAnnotation(2)).isSameAs(blame.runAnnotation(0));
+    assertThat(blame.get(1).revision()).isEqualTo("1.1");
+    assertThat(blame.get(2).revision()).isEqualTo("1.2");
+    assertThat(blame.get(2).author()).isEqualTo("henryju");
+    assertThat(blame.get(3).revision()).isEqualTo("1.1");
+    assertThat(blame.get(5).date()).isEqualTo(DAY1);
+  }
+
+  @Test
+  public void expandToOneLinePerLine() {
+    List<BlameLine> lines = Arrays.asList(
+      new BlameLine().revision("1.1").author("julien").date(DAY1),
+      new BlameLine().revision("1.2").author(null).date(DAY2),
+      new BlameLine().revision("1.2").author(null).date(DAY2));
+
+    CvsCompactBlame blame = CvsCompactBlame.of(lines);
+
+    assertThat(blame.runCount()).isEqualTo(2);
+    assertThat(blame.expand()).isEqualTo(lines);
+    assertThat(blame).isEqualTo(lines);
+  }
+
+  @Test
+  public void appendOnly() {
+    CvsCompactBlame blame = new CvsCompactBlame();
+    blame.add("1.1", "julien", DAY1);
+    blame.add(blame.get(0));
+    assertThat(blame).hasSize(2);
+    assertThat(blame.runCount()).isEqualTo(1);
+
+    try {
+      blame.add(0, new BlameLine().revision("1.2").author("tor").date(DAY2));
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) {
+      assertThat(blame).hasSize(2);
+    }
+  }
+}
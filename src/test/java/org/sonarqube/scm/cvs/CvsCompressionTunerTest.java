@@ -0,0 +1,110 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netbeans.lib.cvsclient.CVSRoot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CvsCompressionTunerTest {
+
+  private static final String KEY = ":pserver:julien@host:2401/cvsroot";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void noCompressionOnFastLink() {
+    assertThat(CvsCompressionTuner.choose(0.5, annotateOutput(64 * 1024))).isZero();
+  }
+
+  @Test
+  public void compressOnSlowLink() {
+    // 1 Mbit/s
+    assertThat(CvsCompressionTuner.choose(8000, annotateOutput(64 * 1024))).isPositive();
+  }
+
+  @Test
+  public void noCompressionOfIncompressibleResponses() {
+    byte[] random = new byte[64 * 1024];
+    new Random(42).nextBytes(random);
+    assertThat(CvsCompressionTuner.choose(8000, random)).isZero();
+  }
+
+  @Test
+  public void rememberChoice() throws IOException {
+    File file = new File(temp.newFolder(), CvsCompressionTuner.FILENAME);
+    CvsCompressionTuner tuner = new CvsCompressionTuner(file);
+    assertThat(tuner.level(KEY)).isNull();
+
+    for (int i = 0; i < CvsCompressionTuner.SAMPLE_RESPONSES; i++) {
+      tuner.sampled(KEY, new CvsCompressionTuner.Sample(annotateOutput(4 * 1024), 4 * 1024, 4 * 1024 * 8000L));
+    }
+
+    Integer level = tuner.level(KEY);
+    assertThat(level).isPositive();
+    assertThat(new CvsCompressionTuner(file).level(KEY)).isEqualTo(level);
+    assertThat(new CvsCompressionTuner(file).level(":pserver:julien@other:2401/cvsroot")).isNull();
+  }
+
+  @Test
+  public void noCompressionOfSmallResponses() throws IOException {
+    CvsCompressionTuner tuner = new CvsCompressionTuner(new File(temp.newFolder(), CvsCompressionTuner.FILENAME));
+
+    for (int i = 0; i < CvsCompressionTuner.MAX_SAMPLE_RESPONSES; i++) {
+      assertThat(tuner.level(KEY)).isNull();
+      tuner.sampled(KEY, new CvsCompressionTuner.Sample(new byte[10], 10, 100_000));
+    }
+
+    assertThat(tuner.level(KEY)).isZero();
+  }
+
+  @Test
+  public void probeAgainWhenChoiceExpired() throws IOException {
+    File file = new File(temp.newFolder(), CvsCompressionTuner.FILENAME);
+    long chosenAt = System.currentTimeMillis() - CvsCompressionTuner.TTL_MS - 1000;
+    FileUtils.write(file, KEY.replace(":", "\\:") + "=6," + chosenAt + "\n", StandardCharsets.ISO_8859_1);
+
+    assertThat(new CvsCompressionTuner(file).level(KEY)).isNull();
+  }
+
+  @Test
+  public void keyWithoutPassword() {
+    assertThat(CvsCompressionTuner.key(CVSRoot.parse(":pserver:julien:secret@host:2401/cvsroot"))).isEqualTo(KEY);
+  }
+
+  private static byte[] annotateOutput(int size) {
+    StringBuilder sb = new StringBuilder();
+    int i = 0;
+    while (sb.length() < size) {
+      sb.append(String.format("M 1.%-12d (%-8.8s 21-Oct-14): line %d of the file%n", i % 7 + 1, i % 3 == 0 ? "julien" : "henryju", i));
+      i++;
+    }
+    return sb.substring(0, size).getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CvsEntriesSnapshotTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File baseDir;
+
+  @Before
+  public void prepare() throws IOException {
+    baseDir = temp.newFolder();
+    FileUtils.write(new File(baseDir, "CVS/Entries"), "/pom.xml/1.1/Tue Oct 21 10:00:00 2014//\nD/src////\nD/untracked////\n");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), "/foo.xoo/1.3/Tue Oct 21 10:00:00 2014//\n/bar.xoo/1.2/Tue Oct 21 10:00:00 2014//\n");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries.Log"), "A /baz.xoo/1.1/Wed Oct 22 10:00:00 2014//\nR /bar.xoo/1.2/Tue Oct 21 10:00:00 2014//\n");
+    FileUtils.write(new File(baseDir, "untracked/foo.xoo"), "foo");
+  }
+
+  @Test
+  public void scanEntriesAndLog() {
+    CvsWorkingCopy workingCopy = new CvsWorkingCopy();
+    assertThat(workingCopy.scan(baseDir)).isEqualTo(3);
+    assertThat(workingCopy.entry(new File(baseDir, "src/foo.xoo")).getRevision()).isEqualTo("1.3");
+    assertThat(workingCopy.entry(new File(baseDir, "src/baz.xoo")).getRevision()).isEqualTo("1.1");
+    assertThat(workingCopy.entry(new File(baseDir, "src/bar.xoo"))).isNull();
+    assertThat(workingCopy.entry(new File(baseDir, "untracked/foo.xoo"))).isNull();
+  }
+
+  @Test
+  public void compareWithPreviousAnalysis() throws IOException {
+    File snapshotFile = new File(temp.newFolder(), "snapshot");
+    CvsWorkingCopy workingCopy = new CvsWorkingCopy();
+    CvsEntriesSnapshot first = CvsEntriesSnapshot.load(snapshotFile);
+    assertThat(first.unchanged("src/foo.xoo", workingCopy.entry(new File(baseDir, "src/foo.xoo")))).isFalse();
+    assertThat(first.unchanged("src/baz.xoo", workingCopy.entry(new File(baseDir, "src/baz.xoo")))).isFalse();
+    first.save();
+
+    FileUtils.write(new File(baseDir, "src/CVS/Entries.Log"), "A /baz.xoo/1.2/Thu Oct 23 10:00:00 2014//\n", true);
+    workingCopy = new CvsWorkingCopy();
+    CvsEntriesSnapshot second = CvsEntriesSnapshot.load(snapshotFile);
+    assertThat(second.unchanged("src/foo.xoo", workingCopy.entry(new File(baseDir, "src/foo.xoo")))).isTrue();
+    assertThat(second.unchanged("src/baz.xoo", workingCopy.entry(new File(baseDir, "src/baz.xoo")))).isFalse();
+    assertThat(second.unchanged("untracked/foo.xoo", null)).isFalse();
+    assertThat(second.previousRevision("src/baz.xoo")).isEqualTo("1.1");
+    assertThat(second.previousRevision("untracked/foo.xoo")).isNull();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class CvsIncrementalBlameTest {
+
+  private final CvsBlameDictionary dictionary = new CvsBlameDictionary();
+  private final Date date = dictionary.date(2014, 10, 21);
+
+  @Test
+  public void shiftPreviousBlame() {
+    CvsCompactBlame previous = new CvsCompactBlame();
+    previous.add(3, "1.1", "julien", date);
+    previous.add(4, "1.2", "tor", date);
+    BlameLine revision = new BlameLine().revision("1.3").author("duarte").date(dictionary.date(2014, 10, 22));
+
+    List<String> diff = Arrays.asList(
+      "Index: src/foo.xoo",
+      "0a1",
+      "> header",
+      "2c3,4",
+      "< old",
+      "---",
+      "> new",
+      "> new",
+      "5,6d6",
+      "< removed",
+      "< removed");
+    CvsCompactBlame lines = CvsIncrementalBlame.apply(previous, diff, revision);
+
+    assertThat(lines.stream().map(BlameLine::revision).collect(Collectors.toList()))
+      .containsExactly("1.3", "1.1", "1.3", "1.3", "1.1", "1.2", "1.2");
+    assertThat(lines.get(2).author()).isEqualTo("duarte");
+    assertThat(lines.get(5).date()).isEqualTo(date);
+    assertThat(CvsIncrementalBlame.addsLines(diff)).isTrue();
+  }
+
+  @Test
+  public void onlyDeletedLines() {
+    CvsCompactBlame previous = new CvsCompactBlame();
+    previous.add(3, "1.1", "julien", date);
+    List<String> diff = Collections.singletonList("3d2");
+
+    assertThat(CvsIncrementalBlame.addsLines(diff)).isFalse();
+    assertThat(CvsIncrementalBlame.apply(previous, diff, null)).hasSize(2);
+  }
+
+  @Test
+  public void rejectDifferencesOfAnotherRevision() {
+    CvsCompactBlame previous = new CvsCompactBlame();
+    previous.add(3, "1.1", "julien", date);
+    try {
+      CvsIncrementalBlame.apply(previous, Collections.singletonList("4,5d3"), null);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Unexpected difference 4,5d3 with a previous revision of 3 lines");
+    }
+  }
+
+  @Test
+  public void revisionFromLog() {
+    List<String> log = Arrays.asList(
+      "RCS file: /cvsroot/module/src/foo.xoo,v",
+      "----------------------------",
+      "revision 1.42",
+      "date: 2014/10/22 23:30:00;  author: julien;  state: Exp;  lines: +2 -1",
+      "message");
+    BlameLine line = CvsIncrementalBlame.revision(log, "1.42", dictionary);
+    assertThat(line.revision()).isEqualTo("1.42");
+    assertThat(line.author()).isEqualTo("julien");
+    assertThat(line.date()).isEqualTo(dictionary.date(2014, 10, 22));
+
+    BlameLine cvs112 = CvsIncrementalBlame.revision(Arrays.asList("revision 1.42", "date: 2014-10-22 23:30:00 +0000;  author: tor;  state: Exp;"),
+      "1.42", dictionary);
+    assertThat(cvs112.author()).isEqualTo("tor");
+    BlameLine longAuthor = CvsIncrementalBlame.revision(Arrays.asList("revision 1.42", "date: 2014/10/22 23:30:00;  author: branchauthor;  state: Exp;"),
+      "1.42", dictionary);
+    assertThat(longAuthor.author()).isEqualTo("branchau");
+    assertThat(CvsIncrementalBlame.revision(log, "1.41", dictionary)).isNull();
+  }
+}
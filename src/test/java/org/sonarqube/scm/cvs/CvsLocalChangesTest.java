@@ -0,0 +1,92 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CvsLocalChangesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final Date date = new CvsBlameDictionary().date(2014, 10, 21);
+
+  @Test
+  public void matchUnchangedLines() {
+    List<String> annotated = Arrays.asList("a", "b", "c", "d", "e", "f");
+    List<String> working = Arrays.asList("a", "x", "c", "e", "y", "f", "z");
+
+    assertThat(CvsLocalChanges.matches(annotated, working)).containsExactly(0, -1, 2, 4, -1, 5, -1);
+    assertThat(CvsLocalChanges.matches(annotated, annotated)).containsExactly(0, 1, 2, 3, 4, 5);
+    // Reversed lines have a single one in common
+    assertThat(Arrays.stream(CvsLocalChanges.matches(annotated, Arrays.asList("f", "e", "d"))).filter(match -> match >= 0).count()).isEqualTo(1);
+    assertThat(CvsLocalChanges.matches(Arrays.asList(), Arrays.asList("a"))).containsExactly(-1);
+  }
+
+  @Test
+  public void leaveLinesUnmatchedBeyondMaxEdits() {
+    List<String> annotated = new ArrayList<>();
+    List<String> working = new ArrayList<>();
+    for (int i = 0; i < CvsLocalChanges.MAX_EDITS; i++) {
+      annotated.add("old " + i);
+      working.add("new " + i);
+    }
+    annotated.add("common");
+    working.add(0, "common");
+
+    assertThat(Arrays.stream(CvsLocalChanges.matches(annotated, working)).allMatch(match -> match == -1)).isTrue();
+  }
+
+  @Test
+  public void attributeLocalChangesToUncommittedRevision() {
+    CvsCompactBlame annotated = new CvsCompactBlame();
+    annotated.add(2, "1.1", "julien", date);
+    annotated.add("1.2", "tor", date);
+    Date modified = new Date();
+
+    CvsCompactBlame lines = CvsLocalChanges.align(annotated, Arrays.asList("a", "b\r", "c"), Arrays.asList("a", "new", "b", "c"), modified);
+
+    assertThat(lines.stream().map(BlameLine::revision).collect(Collectors.toList())).containsExactly("1.1", "uncommitted", "1.1", "1.2");
+    assertThat(lines.get(1).author()).isNull();
+    assertThat(lines.get(1).date()).isEqualTo(modified);
+  }
+
+  @Test
+  public void readLinesLikeAnnotate() throws IOException {
+    File file = temp.newFile();
+    FileUtils.write(file, "a\r\n\nb\n");
+    assertThat(CvsLocalChanges.readLines(file)).containsExactly("a\r", "", "b");
+    FileUtils.write(file, "a\nb");
+    assertThat(CvsLocalChanges.readLines(file)).containsExactly("a", "b");
+  }
+}
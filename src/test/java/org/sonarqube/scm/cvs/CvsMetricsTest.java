@@ -0,0 +1,81 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CvsMetricsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void keepSlowestFiles() {
+    CvsMetrics metrics = new CvsMetrics();
+    for (int i = 0; i < 100; i++) {
+      metrics.blamed("src/foo" + i + ".xoo", TimeUnit.MILLISECONDS.toNanos(i), 10);
+    }
+
+    assertThat(metrics.files()).isEqualTo(100);
+    assertThat(metrics.lines()).isEqualTo(1000);
+    assertThat(metrics.slowestFiles().stream().map(CvsMetrics.FileTiming::path).collect(Collectors.toList()))
+      .containsExactly("src/foo99.xoo", "src/foo98.xoo", "src/foo97.xoo", "src/foo96.xoo", "src/foo95.xoo",
+        "src/foo94.xoo", "src/foo93.xoo", "src/foo92.xoo", "src/foo91.xoo", "src/foo90.xoo");
+
+    metrics.reset();
+    assertThat(metrics.files()).isZero();
+    assertThat(metrics.slowestFiles()).isEmpty();
+  }
+
+  @Test
+  public void writeReport() throws IOException {
+    CvsMetrics metrics = new CvsMetrics();
+    metrics.time(CvsMetrics.Phase.CONNECT, TimeUnit.MILLISECONDS.toNanos(120));
+    metrics.time(CvsMetrics.Phase.COMMAND, TimeUnit.MILLISECONDS.toNanos(300));
+    metrics.time(CvsMetrics.Phase.COMMAND, TimeUnit.MILLISECONDS.toNanos(500));
+    metrics.transferred(4096, 512);
+    metrics.retried();
+    metrics.blamed("src/foo.xoo", TimeUnit.MILLISECONDS.toNanos(500), 42);
+
+    assertThat(metrics.summary(TimeUnit.SECONDS.toNanos(1)))
+      .startsWith("CVS blame of 1 file(s), 42 line(s) in 1000 ms, 1 retries, 0 hedged, 0 skipped, 4 KB received, 0 KB sent")
+      .contains("Commands on server              2        800        500")
+      .contains("500 ms       42 line(s)  src/foo.xoo");
+
+    File workDir = new File(temp.getRoot(), "work");
+    metrics.report(TimeUnit.SECONDS.toNanos(1), workDir);
+    String json = FileUtils.readFileToString(new File(workDir, CvsMetrics.REPORT_FILENAME), StandardCharsets.UTF_8);
+    assertThat(json)
+      .contains("\"elapsedMs\":1000")
+      .contains("\"bytesIn\":4096")
+      .contains("\"command\":{\"count\":2,\"totalMs\":800,\"maxMs\":500}")
+      .contains("\"slowestFiles\":[{\"path\":\"src/foo.xoo\",\"ms\":500,\"lines\":42}]");
+  }
+}
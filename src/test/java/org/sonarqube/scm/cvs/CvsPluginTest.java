@@ -37,6 +37,6 @@ public class CvsPluginTest {
 
     new CvsPlugin().define(context);
 
-    assertThat(context.getExtensions()).hasSize(12);
+    assertThat(context.getExtensions()).hasSize(32);
   }
 }
@@ -21,12 +21,31 @@ package org.sonarqube.scm.cvs;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
+import org.netbeans.lib.cvsclient.event.CVSListener;
+import org.netbeans.lib.cvsclient.event.MessageEvent;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.internal.DefaultTempFolder;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 public class CvsScmProviderTest {
 
@@ -37,17 +56,137 @@ public class CvsScmProviderTest {
 
   @Test
   public void sanityCheck() {
-    assertThat(new CvsScmProvider(null).key()).isEqualTo("cvs");
+    assertThat(new CvsScmProvider(null, null).key()).isEqualTo("cvs");
   }
 
   @Test
   public void testAutodetection() throws IOException {
     File baseDirEmpty = temp.newFolder();
-    assertThat(new CvsScmProvider(null).supports(baseDirEmpty)).isFalse();
+    assertThat(new CvsScmProvider(null, null).supports(baseDirEmpty)).isFalse();
 
     File cvsBaseDir = temp.newFolder();
     new File(cvsBaseDir, "CVS").mkdir();
-    assertThat(new CvsScmProvider(null).supports(cvsBaseDir)).isTrue();
+    assertThat(new CvsScmProvider(null, null).supports(cvsBaseDir)).isTrue();
   }
 
+  @Test
+  public void branchChangesFromLocalRepository() throws IOException {
+    File repository = temp.newFolder();
+    FileUtils.copyURLToFile(getClass().getResource("/rcs/foo.xoo,v"), new File(repository, "module/src/foo.xoo,v"));
+    FileUtils.write(new File(repository, "module/src/bar.xoo,v"), "head\t1.1;\naccess;\nsymbols;\nlocks; strict;\n\n"
+      + "1.1\ndate\t2014.10.20.10.00.00;\tauthor julien;\tstate Exp;\nbranches;\nnext\t;\n\n"
+      + "desc\n@@\n\n1.1\nlog\n@Initial revision\n@\ntext\n@bar\n@\n", StandardCharsets.ISO_8859_1);
+    File baseDir = prepareWorkingCopy(":local:" + repository.getAbsolutePath());
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    CvsScmProvider provider = newProvider(commandExecutor);
+
+    Path foo = new File(baseDir, "src/foo.xoo").toPath();
+    Path added = new File(baseDir, "src/added.xoo").toPath();
+    assertThat(provider.branchChangedFiles("master", baseDir.toPath())).containsOnly(foo, added);
+    assertThat(provider.branchChangedLines("master", baseDir.toPath(), new HashSet<>(Arrays.asList(foo, added))))
+      .containsOnly(entry(foo, Collections.singleton(4)), entry(added, new HashSet<>(Arrays.asList(1, 2))));
+    // Revision 1.2.2.1 is part of the history of the branch
+    assertThat(provider.branchChangedFiles("BR", baseDir.toPath())).containsOnly(added);
+    verifyZeroInteractions(commandExecutor);
+  }
+
+  @Test
+  public void branchChangesFromServer() throws Exception {
+    File baseDir = prepareWorkingCopy(":pserver:bar");
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    when(commandExecutor.processCommand(eq("annotate"), any(), eq(new String[] {"-r", "1.2.2.1", "src/foo.xoo"}), eq(baseDir), any())).thenAnswer(invocation -> {
+      CVSListener listener = (CVSListener) invocation.getArguments()[4];
+      listener.messageSent(new MessageEvent("", "1.1          (julien   20-Oct-14): a", false));
+      listener.messageSent(new MessageEvent("", "1.2.2.1      (branchau 23-Oct-14): y", false));
+      listener.messageSent(new MessageEvent("", "1.2          (henryju  21-Oct-14): d", false));
+      return true;
+    });
+    CvsScmProvider provider = newProvider(commandExecutor);
+
+    Path foo = new File(baseDir, "src/foo.xoo").toPath();
+    Path bar = new File(baseDir, "src/bar.xoo").toPath();
+    Path added = new File(baseDir, "src/added.xoo").toPath();
+    assertThat(provider.branchChangedFiles("master", baseDir.toPath())).containsOnly(foo, added);
+    assertThat(provider.branchChangedLines("master", baseDir.toPath(), new HashSet<>(Arrays.asList(foo, bar))))
+      .containsOnly(entry(foo, Collections.singleton(2)), entry(bar, Collections.emptySet()));
+  }
+
+  @Test
+  public void annotateBranchChangesByBatches() throws Exception {
+    File baseDir = prepareWorkingCopy(":pserver:bar");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), "/foo.xoo/1.2.2.1/Thu Oct 23 10:00:00 2014//TBR\n"
+      + "/baz.xoo/1.2.2.1/Thu Oct 23 10:00:00 2014//TBR\n");
+    FileUtils.write(new File(baseDir, "src/baz.xoo"), "baz\n");
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    when(commandExecutor.processCommand(eq("annotate"), any(), eq(new String[] {"-r", "1.2.2.1", "src/baz.xoo", "src/foo.xoo"}), eq(baseDir), any()))
+      .thenAnswer(invocation -> {
+        CVSListener listener = (CVSListener) invocation.getArguments()[4];
+        listener.messageSent(new MessageEvent("", "Annotations for src/baz.xoo", true));
+        listener.messageSent(new MessageEvent("", "***************", true));
+        listener.messageSent(new MessageEvent("", "1.2.2.1      (branchau 23-Oct-14): baz", false));
+        listener.messageSent(new MessageEvent("", "Annotations for src/foo.xoo", true));
+        listener.messageSent(new MessageEvent("", "***************", true));
+        listener.messageSent(new MessageEvent("", "1.1          (julien   20-Oct-14): a", false));
+        listener.messageSent(new MessageEvent("", "1.2.2.1      (branchau 23-Oct-14): y", false));
+        return true;
+      });
+    CvsScmProvider provider = newProvider(commandExecutor, CvsConfiguration.BLAME_BATCH_SIZE_PROP_KEY, "10");
+
+    Path foo = new File(baseDir, "src/foo.xoo").toPath();
+    Path baz = new File(baseDir, "src/baz.xoo").toPath();
+    assertThat(provider.branchChangedLines("master", baseDir.toPath(), new HashSet<>(Arrays.asList(foo, baz))))
+      .containsOnly(entry(foo, Collections.singleton(2)), entry(baz, Collections.singleton(1)));
+    verify(commandExecutor, times(1)).processCommand(eq("annotate"), any(), any(), any(), any());
+  }
+
+  @Test
+  public void importedFilesAreNotBranchChanges() throws Exception {
+    File baseDir = prepareWorkingCopy(":pserver:bar");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), "/imported.xoo/1.1.1.1/Mon Oct 20 10:00:00 2014//\n");
+    FileUtils.write(new File(baseDir, "src/imported.xoo"), "imported\n");
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    CvsScmProvider provider = newProvider(commandExecutor);
+
+    Path imported = new File(baseDir, "src/imported.xoo").toPath();
+    assertThat(provider.branchChangedFiles("master", baseDir.toPath())).isEmpty();
+    assertThat(provider.branchChangedLines("master", baseDir.toPath(), Collections.singleton(imported)))
+      .containsOnly(entry(imported, Collections.emptySet()));
+    verifyZeroInteractions(commandExecutor);
+  }
+
+  @Test
+  public void noBranchChangesFromServerComparedWithAnotherBranch() throws Exception {
+    File baseDir = prepareWorkingCopy(":pserver:bar");
+    CvsCommandExecutor commandExecutor = mock(CvsCommandExecutor.class);
+    CvsScmProvider provider = newProvider(commandExecutor);
+
+    Path foo = new File(baseDir, "src/foo.xoo").toPath();
+    assertThat(provider.branchChangedFiles("BR", baseDir.toPath())).isNull();
+    assertThat(provider.branchChangedLines("BR", baseDir.toPath(), Collections.singleton(foo))).isNull();
+    verifyZeroInteractions(commandExecutor);
+  }
+
+  private File prepareWorkingCopy(String cvsRoot) throws IOException {
+    File baseDir = temp.newFolder();
+    FileUtils.write(new File(baseDir, "CVS/Root"), cvsRoot);
+    FileUtils.write(new File(baseDir, "CVS/Entries"), "D/src////\n");
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src");
+    FileUtils.write(new File(baseDir, "src/CVS/Entries"), "/foo.xoo/1.2.2.1/Thu Oct 23 10:00:00 2014//TBR\n"
+      + "/bar.xoo/1.1/Mon Oct 20 10:00:00 2014//TBR\n"
+      + "/added.xoo/0/dummy timestamp//TBR\n");
+    FileUtils.write(new File(baseDir, "src/foo.xoo"), "a\nb\nx\ny\nd\n");
+    FileUtils.write(new File(baseDir, "src/bar.xoo"), "bar\n");
+    FileUtils.write(new File(baseDir, "src/added.xoo"), "new\nfile\n");
+    return baseDir;
+  }
+
+  private CvsScmProvider newProvider(CvsCommandExecutor commandExecutor, String... properties) throws IOException {
+    MapSettings settings = new MapSettings(new PropertyDefinitions(CvsConfiguration.getProperties()));
+    for (int i = 0; i + 1 < properties.length; i += 2) {
+      settings.setProperty(properties[i], properties[i + 1]);
+    }
+    CvsConfiguration config = new CvsConfiguration(settings.asConfig());
+    CvsBlameCommand blameCommand = new CvsBlameCommand(config, new DefaultTempFolder(temp.newFolder()), commandExecutor);
+    return new CvsScmProvider(blameCommand, config);
+  }
 }
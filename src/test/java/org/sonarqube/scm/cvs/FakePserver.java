@@ -0,0 +1,726 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.netbeans.lib.cvsclient.connection.StandardScrambler;
+
+/**
+ * In-process stand-in of a CVS server, speaking enough of the client/server protocol over the pserver
+ * method for the plugin: authentication, valid-requests, Directory/Entry/Argument, expand-modules, annotate/rannotate, diff/log
+ * between revisions and Gzip-stream.
+ * <p>
+ * It serves a synthetic repository, with configurable latency (before each response), bandwidth (of the output)
+ * and concurrency (commands executed at the same time, the other ones waiting for a slot).
+ */
+class FakePserver implements Closeable {
+
+  static final String REPOSITORY = "/cvsroot";
+
+  private static final String[] AUTHORS = {"julien", "henryju", "tor", "duarte"};
+  private static final String VALID_REQUESTS = "Root Valid-responses valid-requests Directory Entry Modified Unchanged Is-modified Questionable "
+    + "Argument Argumentx Global_option Gzip-stream gzip-file-contents UseUnchanged Sticky Static-directory Case expand-modules annotate rannotate "
+    + "diff log rlog noop";
+  private static final DateTimeFormatter ANNOTATE_DATE = DateTimeFormatter.ofPattern("dd-MMM-yy", Locale.ENGLISH);
+  private static final DateTimeFormatter LOG_DATE = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+  private static final Pattern ANNOTATION = Pattern.compile("(\\S+)\\s+\\((\\S+)\\s+(\\S+)\\): .*");
+
+  /**
+   * Annotate output of each file, by path relative to the repository root
+   */
+  private final Map<String, List<String>> files = new TreeMap<>();
+  /**
+   * Annotate output of the previous revisions of the files, by path and revision
+   */
+  private final Map<String, Map<String, List<String>>> revisions = new ConcurrentHashMap<>();
+  /**
+   * Head revision of the files, by path, when it is not the latest revision of their lines
+   */
+  private final Map<String, String> heads = new ConcurrentHashMap<>();
+  private final Map<String, String> passwords = new ConcurrentHashMap<>();
+  /**
+   * Delay of the next annotate of a file, by path relative to the repository root
+   */
+  private final Map<String, Long> stalls = new ConcurrentHashMap<>();
+
+  private final ServerSocket serverSocket;
+  private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "fake-pserver");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Thread acceptor;
+
+  private volatile long latencyMs = 0;
+  private volatile long bytesPerSecond = 0;
+  private volatile Semaphore slots = new Semaphore(Integer.MAX_VALUE);
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger commands = new AtomicInteger();
+  private final AtomicInteger activeCommands = new AtomicInteger();
+  private final AtomicInteger maxActiveCommands = new AtomicInteger();
+  private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+  FakePserver() throws IOException {
+    serverSocket = new ServerSocket(0);
+    acceptor = new Thread(this::acceptLoop, "fake-pserver-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  String cvsRoot(String user) {
+    return ":pserver:" + user + "@localhost:" + port() + REPOSITORY;
+  }
+
+  FakePserver user(String name, String password) {
+    passwords.put(name, password);
+    return this;
+  }
+
+  /**
+   * Add a file whose lines are attributed to synthetic revisions and authors
+   */
+  FakePserver file(String path, int lineCount) {
+    List<String> lines = new ArrayList<>(lineCount);
+    for (int i = 0; i < lineCount; i++) {
+      lines.add(String.format("1.%-12d (%-8.8s %s): line %d", i % 5 + 1, AUTHORS[i % AUTHORS.length], "21-Oct-14", i));
+    }
+    return file(path, lines);
+  }
+
+  /**
+   * @param annotations lines of annotate output, like "1.1          (julien   21-Oct-14): content"
+   */
+  FakePserver file(String path, List<String> annotations) {
+    synchronized (files) {
+      files.put(path, annotations);
+    }
+    return this;
+  }
+
+  List<String> annotations(String path) {
+    synchronized (files) {
+      return new ArrayList<>(files.get(path));
+    }
+  }
+
+  /**
+   * Keep the current annotate output of the file as this revision, to be compared by diff and described by log
+   */
+  FakePserver revision(String path, String revision) {
+    revisions.computeIfAbsent(path, p -> new ConcurrentHashMap<>()).put(revision, annotations(path));
+    return this;
+  }
+
+  /**
+   * Report this revision as the head of the file in rlog, instead of the latest revision of its lines
+   */
+  FakePserver head(String path, String revision) {
+    heads.put(path, revision);
+    return this;
+  }
+
+  FakePserver latency(long millis) {
+    this.latencyMs = millis;
+    return this;
+  }
+
+  FakePserver bandwidth(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    return this;
+  }
+
+  /**
+   * Hang the next annotate of the file, like on a locked directory. The following ones respond normally.
+   */
+  FakePserver stall(String path, long millis) {
+    stalls.put(path, millis);
+    return this;
+  }
+
+  FakePserver maxConcurrentCommands(int max) {
+    this.slots = new Semaphore(max);
+    return this;
+  }
+
+  int connections() {
+    return connections.get();
+  }
+
+  int commands() {
+    return commands.get();
+  }
+
+  /**
+   * @return highest number of commands executed at the same time
+   */
+  int maxActiveCommands() {
+    return maxActiveCommands.get();
+  }
+
+  /**
+   * @return number of requests received with this name, like "Gzip-stream" or "gzip-file-contents"
+   */
+  int requests(String name) {
+    AtomicInteger count = requests.get(name);
+    return count != null ? count.get() : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    workers.shutdownNow();
+    try {
+      acceptor.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        workers.submit(() -> serve(socket));
+      } catch (SocketException e) {
+        // Closed
+        return;
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      new Session(s.getInputStream(), s.getOutputStream()).run();
+    } catch (IOException e) {
+      // Client went away
+    }
+  }
+
+  private void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * State of the protocol for a connection
+   */
+  private class Session {
+    private final InputStream rawIn;
+    private final OutputStream rawOut;
+    private InputStream in;
+    private OutputStream out;
+
+    private final List<String> arguments = new ArrayList<>();
+    private String directory = "";
+
+    Session(InputStream in, OutputStream out) {
+      this.rawIn = new BufferedInputStream(in);
+      this.rawOut = new ThrottledOutputStream(out);
+      this.in = rawIn;
+      this.out = new BufferedOutputStream(rawOut);
+    }
+
+    void run() throws IOException {
+      if (!authenticate()) {
+        return;
+      }
+      String request;
+      while ((request = readLine()) != null) {
+        handle(request);
+      }
+    }
+
+    private boolean authenticate() throws IOException {
+      if (!"BEGIN AUTH REQUEST".equals(readLine())) {
+        return false;
+      }
+      String repository = readLine();
+      String user = readLine();
+      String scrambled = readLine();
+      readLine();
+      sleep(latencyMs);
+      String expected = passwords.get(user);
+      if (!REPOSITORY.equals(repository) || expected == null || !StandardScrambler.getInstance().scramble(expected).equals(scrambled)) {
+        write("I HATE YOU\n");
+        return false;
+      }
+      write("I LOVE YOU\n");
+      return true;
+    }
+
+    private void handle(String request) throws IOException {
+      int space = request.indexOf(' ');
+      String name = space < 0 ? request : request.substring(0, space);
+      String value = space < 0 ? "" : request.substring(space + 1);
+      requests.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+      switch (name) {
+        case "valid-requests":
+          respond("Valid-requests " + VALID_REQUESTS + "\nok\n");
+          break;
+        case "Directory":
+          directory = relativeToRoot(readLine());
+          break;
+        case "Modified":
+          skipFileContent();
+          break;
+        case "Argument":
+          arguments.add(value);
+          break;
+        case "Argumentx":
+          int last = arguments.size() - 1;
+          arguments.set(last, arguments.get(last) + "\n" + value);
+          break;
+        case "Gzip-stream":
+          compress(Integer.parseInt(value));
+          break;
+        case "annotate":
+          annotate(false);
+          break;
+        case "rannotate":
+          annotate(true);
+          break;
+        case "diff":
+          diff();
+          break;
+        case "log":
+          log();
+          break;
+        case "rlog":
+          rlog();
+          break;
+        case "expand-modules":
+          expandModules();
+          break;
+        case "noop":
+          respond("ok\n");
+          break;
+        default:
+          // Requests without response: Root, Valid-responses, Entry, Unchanged, Global_option, gzip-file-contents...
+          break;
+      }
+    }
+
+    /**
+     * No module is defined in CVSROOT/modules, each one expands to itself
+     */
+    private void expandModules() throws IOException {
+      StringBuilder response = new StringBuilder();
+      for (String argument : arguments) {
+        response.append("Module-expansion ").append(argument).append("\n");
+      }
+      arguments.clear();
+      respond(response.append("ok\n").toString());
+    }
+
+    private void annotate(boolean remote) throws IOException {
+      commands.incrementAndGet();
+      Semaphore currentSlots = slots;
+      try {
+        currentSlots.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      maxActiveCommands.accumulateAndGet(activeCommands.incrementAndGet(), Math::max);
+      try {
+        doAnnotate(remote);
+      } finally {
+        activeCommands.decrementAndGet();
+        currentSlots.release();
+      }
+    }
+
+    private void doAnnotate(boolean remote) throws IOException {
+      List<String> paths = new ArrayList<>();
+      for (int i = 0; i < arguments.size(); i++) {
+        String argument = arguments.get(i);
+        if ("-r".equals(argument) || "-D".equals(argument)) {
+          // Revision is ignored, the synthetic repository has a single one
+          i++;
+        } else if (!argument.startsWith("-")) {
+          paths.add(argument);
+        }
+      }
+      arguments.clear();
+      StringBuilder response = new StringBuilder();
+      for (String path : paths) {
+        String repositoryPath = remote ? path : (directory.isEmpty() ? path : (directory + "/" + path));
+        Map<String, List<String>> annotated = matching(repositoryPath);
+        if (annotated.isEmpty()) {
+          response.append("E cvs annotate: nothing known about `").append(path).append("'\n");
+          continue;
+        }
+        for (Map.Entry<String, List<String>> file : annotated.entrySet()) {
+          Long stall = stalls.remove(file.getKey());
+          if (stall != null) {
+            sleep(stall);
+          }
+          // Reported relatively to the working directory, or to the root of the repository with rannotate
+          String reported = remote || directory.isEmpty() ? file.getKey() : file.getKey().substring(directory.length() + 1);
+          response.append("E Annotations for ").append(reported).append("\n");
+          response.append("E ***************\n");
+          for (String line : file.getValue()) {
+            response.append("M ").append(line).append("\n");
+          }
+        }
+      }
+      respond(response.append("ok\n").toString());
+    }
+
+    /**
+     * Differences in the normal format between the contents of two revisions of each file, exiting with an error status
+     * when there are some, like cvs diff
+     */
+    private void diff() throws IOException {
+      List<String> revisionArguments = new ArrayList<>();
+      List<String> paths = new ArrayList<>();
+      for (int i = 0; i < arguments.size(); i++) {
+        String argument = arguments.get(i);
+        if ("-r".equals(argument)) {
+          revisionArguments.add(arguments.get(++i));
+        } else if (argument.startsWith("-r")) {
+          revisionArguments.add(argument.substring(2));
+        } else if (!argument.startsWith("-")) {
+          paths.add(argument);
+        }
+      }
+      arguments.clear();
+      StringBuilder response = new StringBuilder();
+      boolean differences = false;
+      for (String path : paths) {
+        String repositoryPath = directory.isEmpty() ? path : (directory + "/" + path);
+        Long stall = stalls.remove(repositoryPath);
+        if (stall != null) {
+          sleep(stall);
+        }
+        Map<String, List<String>> fileRevisions = revisions.getOrDefault(repositoryPath, Collections.emptyMap());
+        List<String> left = fileRevisions.get(revisionArguments.get(0));
+        List<String> right = fileRevisions.get(revisionArguments.get(1));
+        if (left == null || right == null) {
+          response.append("E cvs diff: tag ").append(left == null ? revisionArguments.get(0) : revisionArguments.get(1))
+            .append(" is not in file ").append(path).append("\n");
+          differences = true;
+          continue;
+        }
+        response.append("M Index: ").append(path).append("\n");
+        response.append("M RCS file: ").append(REPOSITORY).append('/').append(repositoryPath).append(",v\n");
+        response.append("M diff -r").append(revisionArguments.get(0)).append(" -r").append(revisionArguments.get(1)).append("\n");
+        List<String> hunks = normalDiff(contents(left), contents(right));
+        for (String line : hunks) {
+          response.append("M ").append(line).append("\n");
+        }
+        differences |= !hunks.isEmpty();
+      }
+      respond(response.append(differences ? "error  \n" : "ok\n").toString());
+    }
+
+    /**
+     * Date and author of a revision of a file, from the first line annotated with it
+     */
+    private void log() throws IOException {
+      String revision = null;
+      String path = null;
+      for (String argument : arguments) {
+        if (argument.startsWith("-r")) {
+          revision = argument.substring(2);
+        } else if (!argument.startsWith("-")) {
+          path = argument;
+        }
+      }
+      arguments.clear();
+      String repositoryPath = directory.isEmpty() ? path : (directory + "/" + path);
+      List<String> annotations = revisions.getOrDefault(repositoryPath, Collections.emptyMap()).get(revision);
+      StringBuilder response = new StringBuilder();
+      response.append("M RCS file: ").append(REPOSITORY).append('/').append(repositoryPath).append(",v\n");
+      response.append("M Working file: ").append(path).append("\n");
+      response.append("M ----------------------------\n");
+      for (String annotation : annotations != null ? annotations : Collections.<String>emptyList()) {
+        Matcher matcher = ANNOTATION.matcher(annotation);
+        if (matcher.matches() && matcher.group(1).equals(revision)) {
+          String date = LocalDate.parse(matcher.group(3), ANNOTATE_DATE).format(LOG_DATE);
+          response.append("M revision ").append(revision).append("\n");
+          response.append("M date: ").append(date).append(" 10:00:00;  author: ").append(matcher.group(2)).append(";  state: Exp;\n");
+          response.append("M message\n");
+          break;
+        }
+      }
+      respond(response.append("M =============================================================================\nok\n").toString());
+    }
+
+    /**
+     * Header of the files of a module, with their head revision, or the revision selected with -r
+     */
+    private void rlog() throws IOException {
+      String revision = null;
+      List<String> paths = new ArrayList<>();
+      for (String argument : arguments) {
+        if (argument.startsWith("-r")) {
+          revision = argument.substring(2);
+        } else if (!argument.startsWith("-")) {
+          paths.add(argument);
+        }
+      }
+      arguments.clear();
+      StringBuilder response = new StringBuilder();
+      for (String path : paths) {
+        for (Map.Entry<String, List<String>> file : matching(path).entrySet()) {
+          String head = heads.getOrDefault(file.getKey(), latestRevision(file.getValue()));
+          response.append("M \n");
+          response.append("M RCS file: ").append(REPOSITORY).append('/').append(file.getKey()).append(",v\n");
+          response.append("M head: ").append(head).append("\n");
+          response.append("M branch:\n");
+          response.append("M locks: strict\n");
+          response.append("M access list:\n");
+          response.append("M keyword substitution: kv\n");
+          if (revision != null) {
+            response.append("M ----------------------------\n");
+            if (revision.equals(head) || revisions.getOrDefault(file.getKey(), Collections.emptyMap()).containsKey(revision)) {
+              response.append("M revision ").append(revision).append("\n");
+              response.append("M date: 2014/10/21 10:00:00;  author: julien;  state: Exp;\n");
+            }
+          }
+          response.append("M =============================================================================\n");
+        }
+      }
+      respond(response.append("ok\n").toString());
+    }
+
+    private String latestRevision(List<String> annotations) {
+      String latest = "1.1";
+      for (String annotation : annotations) {
+        Matcher matcher = ANNOTATION.matcher(annotation);
+        if (matcher.matches() && compareRevisions(matcher.group(1), latest) > 0) {
+          latest = matcher.group(1);
+        }
+      }
+      return latest;
+    }
+
+    private int compareRevisions(String left, String right) {
+      String[] leftNumbers = left.split("\\.");
+      String[] rightNumbers = right.split("\\.");
+      for (int i = 0; i < Math.min(leftNumbers.length, rightNumbers.length); i++) {
+        int compared = Integer.compare(Integer.parseInt(leftNumbers[i]), Integer.parseInt(rightNumbers[i]));
+        if (compared != 0) {
+          return compared;
+        }
+      }
+      return Integer.compare(leftNumbers.length, rightNumbers.length);
+    }
+
+    private List<String> contents(List<String> annotations) {
+      return annotations.stream().map(a -> a.substring(a.indexOf("): ") + 3)).collect(Collectors.toList());
+    }
+
+    /**
+     * A file, or all the files of a directory, recursively
+     */
+    private Map<String, List<String>> matching(String path) {
+      Map<String, List<String>> result = new TreeMap<>();
+      synchronized (files) {
+        for (Map.Entry<String, List<String>> file : files.entrySet()) {
+          if (file.getKey().equals(path) || path.isEmpty() || file.getKey().startsWith(path + "/")) {
+            result.put(file.getKey(), file.getValue());
+          }
+        }
+      }
+      return result;
+    }
+
+    private String relativeToRoot(String repositoryDir) {
+      if (repositoryDir.equals(REPOSITORY)) {
+        return "";
+      }
+      if (repositoryDir.startsWith(REPOSITORY + "/")) {
+        return repositoryDir.substring(REPOSITORY.length() + 1);
+      }
+      return repositoryDir;
+    }
+
+    /**
+     * "Modified" is followed by the mode, the size and the content of the file
+     */
+    private void skipFileContent() throws IOException {
+      readLine();
+      String size = readLine();
+      long remaining = Long.parseLong(size.startsWith("z") ? size.substring(1) : size);
+      while (remaining > 0) {
+        long skipped = in.skip(remaining);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            return;
+          }
+          skipped = 1;
+        }
+        remaining -= skipped;
+      }
+    }
+
+    /**
+     * Like the cvs server, both directions are zlib streams from this request on, flushed after each response
+     */
+    private void compress(int level) throws IOException {
+      out.flush();
+      out = new DeflaterOutputStream(rawOut, new Deflater(level), true);
+      in = new InflaterInputStream(rawIn);
+    }
+
+    private void respond(String response) throws IOException {
+      sleep(latencyMs);
+      write(response);
+    }
+
+    private void write(String response) throws IOException {
+      out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) {
+          return line.size() == 0 ? null : line.toString("ISO-8859-1");
+        }
+        line.write(b);
+      }
+      return line.toString("ISO-8859-1");
+    }
+  }
+
+  /**
+   * Normal diff from the longest common subsequence of the lines
+   */
+  static List<String> normalDiff(List<String> left, List<String> right) {
+    int[][] common = new int[left.size() + 1][right.size() + 1];
+    for (int i = left.size() - 1; i >= 0; i--) {
+      for (int j = right.size() - 1; j >= 0; j--) {
+        common[i][j] = left.get(i).equals(right.get(j)) ? (common[i + 1][j + 1] + 1) : Math.max(common[i + 1][j], common[i][j + 1]);
+      }
+    }
+    List<String> result = new ArrayList<>();
+    int i = 0;
+    int j = 0;
+    while (i < left.size() || j < right.size()) {
+      if (i < left.size() && j < right.size() && left.get(i).equals(right.get(j))) {
+        i++;
+        j++;
+        continue;
+      }
+      int leftStart = i;
+      int rightStart = j;
+      while ((i < left.size() || j < right.size()) && !(i < left.size() && j < right.size() && left.get(i).equals(right.get(j)))) {
+        if (j == right.size() || (i < left.size() && common[i + 1][j] >= common[i][j + 1])) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      if (rightStart == j) {
+        result.add(range(leftStart + 1, i) + "d" + rightStart);
+      } else if (leftStart == i) {
+        result.add(leftStart + "a" + range(rightStart + 1, j));
+      } else {
+        result.add(range(leftStart + 1, i) + "c" + range(rightStart + 1, j));
+      }
+      left.subList(leftStart, i).forEach(line -> result.add("< " + line));
+      if (leftStart != i && rightStart != j) {
+        result.add("---");
+      }
+      right.subList(rightStart, j).forEach(line -> result.add("> " + line));
+    }
+    return result;
+  }
+
+  private static String range(int start, int end) {
+    return start == end ? Integer.toString(start) : (start + "," + end);
+  }
+
+  /**
+   * Limits the throughput to the configured bandwidth, sending packets so that a response is received progressively
+   */
+  private class ThrottledOutputStream extends FilterOutputStream {
+    private static final int PACKET_SIZE = 256;
+
+    ThrottledOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long rate = bytesPerSecond;
+      if (rate <= 0) {
+        out.write(b, off, len);
+        return;
+      }
+      for (int sent = 0; sent < len; sent += PACKET_SIZE) {
+        int size = Math.min(PACKET_SIZE, len - sent);
+        out.write(b, off + sent, size);
+        out.flush();
+        sleep(size * 1000L / rate);
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RcsBlameEngineTest {
+
+  @Rule
+  public UTCRule utcRule = new UTCRule();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File repository;
+  private File baseDir;
+  private InputFile inputFile;
+
+  @Before
+  public void prepare() throws IOException {
+    repository = temp.newFolder();
+    FileUtils.copyURLToFile(getClass().getResource("/rcs/foo.xoo,v"), new File(repository, "module/src/foo.xoo,v"));
+
+    baseDir = temp.newFolder();
+    FileUtils.write(new File(baseDir, "src/CVS/Repository"), "module/src\n");
+    FileUtils.write(new File(baseDir, "src/foo.xoo"), "B\nc\nx\nd\n");
+    inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setModuleBaseDir(baseDir.toPath())
+      .setLines(4)
+      .build();
+  }
+
+  @Test
+  public void annotateHead() {
+    assertThat(new RcsBlameEngine(repository, "/cvsroot", null, new CvsWorkingCopy()).blame(inputFile)).containsExactly(
+      line("2014-10-21", "1.2", "henryju"),
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-22", "1.3", "julien"),
+      line("2014-10-21", "1.2", "henryju"));
+  }
+
+  @Test
+  public void annotateTag() {
+    assertThat(new RcsBlameEngine(repository, "/cvsroot", "REL_1", new CvsWorkingCopy()).blame(inputFile)).containsExactly(
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-21", "1.2", "henryju"),
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-21", "1.2", "henryju"));
+    assertThat(new RcsBlameEngine(repository, "/cvsroot", "1.1", new CvsWorkingCopy()).blame(inputFile)).containsExactly(
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-20", "1.1", "julien"));
+    assertThat(new RcsBlameEngine(repository, "/cvsroot", "UNKNOWN", new CvsWorkingCopy()).blame(inputFile)).isEmpty();
+  }
+
+  @Test
+  public void annotateBranch() {
+    // Like cvs annotate, author is truncated to 8 characters
+    assertThat(new RcsBlameEngine(repository, "/cvsroot", "BR", new CvsWorkingCopy()).blame(inputFile)).containsExactly(
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-21", "1.2", "henryju"),
+      line("2014-10-20", "1.1", "julien"),
+      line("2014-10-23", "1.2.2.1", "branchau"),
+      line("2014-10-21", "1.2", "henryju"));
+  }
+
+  @Test
+  public void keepContentsOfAnnotatedLines() {
+    RcsBlameEngine engine = new RcsBlameEngine(repository, "/cvsroot", null, new CvsWorkingCopy());
+    assertThat(((CvsCompactBlame) engine.blame(inputFile, true)).contents()).containsExactly("B", "c", "x", "d");
+    assertThat(((CvsCompactBlame) engine.blame(inputFile)).contents()).isNull();
+
+    engine = new RcsBlameEngine(repository, "/cvsroot", "BR", new CvsWorkingCopy());
+    assertThat(((CvsCompactBlame) engine.blame(inputFile, true)).contents()).containsExactly("a", "B", "c", "y", "d");
+  }
+
+  @Test
+  public void locateRcsFiles() throws IOException {
+    RcsBlameEngine engine = new RcsBlameEngine(repository, "/cvsroot", null, new CvsWorkingCopy());
+    assertThat(engine.rcsFile(new File(baseDir, "src/foo.xoo"))).isEqualTo(new File(repository, "module/src/foo.xoo,v"));
+    assertThat(engine.rcsFile(new File(baseDir, "src/unknown.xoo"))).isNull();
+    assertThat(engine.rcsFile(new File(baseDir, "other/foo.xoo"))).isNull();
+
+    FileUtils.touch(new File(repository, "module/src/Attic/removed.xoo,v"));
+    assertThat(engine.rcsFile(new File(baseDir, "src/removed.xoo"))).isEqualTo(new File(repository, "module/src/Attic/removed.xoo,v"));
+
+    // Absolute repository path on the server is relocated in the mounted repository
+    FileUtils.write(new File(baseDir, "abs/CVS/Repository"), "/cvsroot/module/src\n");
+    assertThat(engine.rcsFile(new File(baseDir, "abs/foo.xoo"))).isEqualTo(new File(repository, "module/src/foo.xoo,v"));
+  }
+
+  private static BlameLine line(String date, String revision, String author) {
+    return new BlameLine().date(DateUtils.parseDateTime(date + "T00:00:00+0000")).revision(revision).author(author);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RcsParserTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void streamContent() throws IOException {
+    File file = temp.newFile("foo.xoo,v");
+    FileUtils.copyURLToFile(getClass().getResource("/rcs/foo.xoo,v"), file);
+
+    Map<String, String> symbols = new HashMap<>();
+    List<String> deltas = new ArrayList<>();
+    Map<String, RcsText> logs = new HashMap<>();
+    Map<String, RcsText> texts = new HashMap<>();
+    RcsParser.parse(file, new RcsParser.Handler() {
+      @Override
+      public void symbol(String name, String revision) {
+        symbols.put(name, revision);
+      }
+
+      @Override
+      public void delta(String revision, List<RcsParser.Phrase> phrases) {
+        deltas.add(revision);
+      }
+
+      @Override
+      public void deltaText(String revision, RcsText log, RcsText text) {
+        logs.put(revision, log);
+        texts.put(revision, text);
+      }
+    });
+
+    assertThat(symbols).containsEntry("BR", "1.2.0.2").containsEntry("REL_1", "1.2");
+    assertThat(deltas).containsExactly("1.3", "1.2", "1.1", "1.2.2.1");
+    assertThat(logs.get("1.2").decode()).isEqualTo("Second revision, reported by julien@sonarsource.com");
+    assertThat(texts.get("1.3").decode()).isEqualTo("B\nc\nx\nd\n");
+    assertThat(texts.get("1.3").lineCount()).isEqualTo(4);
+    assertThat(texts.get("1.1").decode()).isEqualTo("d2 1\na2 1\nb\nd4 1\n");
+  }
+
+  @Test
+  public void mapLargeFiles() throws IOException {
+    StringBuilder head = new StringBuilder();
+    for (int i = 0; i < 20_000; i++) {
+      head.append("line ").append(i).append(" with an escaped @@\n");
+    }
+    // No trailing newline on the last line
+    head.append("last");
+    File file = temp.newFile("large.xoo,v");
+    FileUtils.write(file, "head\t1.1;\naccess;\nsymbols;\nlocks; strict;\n\n1.1\ndate\t2014.10.20.10.00.00;\tauthor julien;\tstate Exp;\nbranches;\nnext\t;\n\n"
+      + "desc\n@@\n\n1.1\nlog\n@Initial revision\n@\ntext\n@" + head + "@\n", StandardCharsets.ISO_8859_1);
+    assertThat(file.length()).isGreaterThan(64 * 1024);
+
+    RcsFile rcsFile = RcsFile.parse(file);
+    RcsText text = rcsFile.delta("1.1").text();
+    assertThat(text.lineCount()).isEqualTo(20_001);
+    assertThat(text.decode()).startsWith("line 0 with an escaped @\nline 1").endsWith("@\nlast");
+    assertThat(new RcsAnnotator(rcsFile).annotate(null)).hasSize(20_001);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * SonarQube :: Plugins :: SCM :: CVS
+ * Copyright (C) 2014-2019 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarqube.scm.cvs;
+
+import com.jcraft.jsch.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshSessionPoolTest {
+
+  private final List<Session> connected = new ArrayList<>();
+
+  private final SshSessionPool pool = new SshSessionPool((host, port, username, password, passphrase) -> {
+    Session session = mock(Session.class);
+    when(session.isConnected()).thenReturn(true);
+    synchronized (connected) {
+      connected.add(session);
+    }
+    return session;
+  });
+
+  @Test
+  public void shareSessionBetweenChannels() throws Exception {
+    SshSessionPool.SharedSession first = pool.acquire("host", 22, "julien", null, null);
+    SshSessionPool.SharedSession second = pool.acquire("host", 22, "julien", null, null);
+    pool.release(first);
+    SshSessionPool.SharedSession third = pool.acquire("host", 22, "julien", null, null);
+
+    assertThat(second.session()).isSameAs(first.session());
+    assertThat(third.session()).isSameAs(first.session());
+    assertThat(connected).hasSize(1);
+
+    pool.release(second);
+    pool.release(third);
+    // Idle sessions are kept until the end of the batch
+    verify(first.session(), never()).disconnect();
+  }
+
+  @Test
+  public void oneSessionPerHostAndUser() throws Exception {
+    pool.acquire("host", 22, "julien", null, null);
+    pool.acquire("host", 22, "henryju", null, null);
+    pool.acquire("other", 22, "julien", null, null);
+    pool.acquire("host", 2222, "julien", null, null);
+
+    assertThat(connected).hasSize(4);
+    assertThat(pool.sessionCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void openAnotherSessionBeyondMaxChannels() throws Exception {
+    for (int i = 0; i < SshSessionPool.MAX_CHANNELS_PER_SESSION + 1; i++) {
+      pool.acquire("host", 22, "julien", null, null);
+    }
+
+    assertThat(connected).hasSize(2);
+  }
+
+  @Test
+  public void replaceDroppedSession() throws Exception {
+    SshSessionPool.SharedSession first = pool.acquire("host", 22, "julien", null, null);
+    when(first.session().isConnected()).thenReturn(false);
+
+    SshSessionPool.SharedSession second = pool.acquire("host", 22, "julien", null, null);
+
+    assertThat(second.session()).isNotSameAs(first.session());
+    verify(first.session(), never()).disconnect();
+    pool.release(first);
+    verify(first.session()).disconnect();
+  }
+
+  @Test
+  public void invalidateSession() throws Exception {
+    SshSessionPool.SharedSession first = pool.acquire("host", 22, "julien", null, null);
+    pool.invalidate(first);
+    pool.release(first);
+
+    verify(first.session()).disconnect();
+    assertThat(pool.acquire("host", 22, "julien", null, null).session()).isNotSameAs(first.session());
+  }
+
+  @Test
+  public void disconnectOnClose() throws Exception {
+    SshSessionPool.SharedSession idle = pool.acquire("host", 22, "julien", null, null);
+    pool.release(idle);
+    SshSessionPool.SharedSession used = pool.acquire("other", 22, "julien", null, null);
+
+    pool.close();
+
+    verify(idle.session()).disconnect();
+    verify(used.session(), never()).disconnect();
+    pool.release(used);
+    verify(used.session()).disconnect();
+    assertThat(pool.sessionCount()).isZero();
+  }
+
+  @Test
+  public void authenticateOnceForConcurrentChannels() throws Exception {
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<SshSessionPool.SharedSession>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return pool.acquire("host", 22, "julien", null, null);
+        }));
+      }
+      start.countDown();
+      for (Future<SshSessionPool.SharedSession> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(connected).hasSize(1);
+  }
+}